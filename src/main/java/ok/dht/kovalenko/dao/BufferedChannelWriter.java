@@ -0,0 +1,68 @@
+package ok.dht.kovalenko.dao;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Accumulates small records in a direct buffer, so the file is written by big chunks, not by a syscall per record.
+ * A record which doesn't fit the buffer is written together with the buffered bytes by a single gathering write.
+ */
+final class BufferedChannelWriter {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private long written;
+
+    BufferedChannelWriter(FileChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    // Position in the file of the next record
+    long position() {
+        return this.written + this.buffer.position();
+    }
+
+    void put(byte b) throws IOException {
+        ensureRemaining(Byte.BYTES);
+        this.buffer.put(b);
+    }
+
+    void putInt(int i) throws IOException {
+        ensureRemaining(Integer.BYTES);
+        this.buffer.putInt(i);
+    }
+
+    void putLong(long l) throws IOException {
+        ensureRemaining(Long.BYTES);
+        this.buffer.putLong(l);
+    }
+
+    void put(ByteBuffer src) throws IOException {
+        if (src.remaining() <= this.buffer.remaining()) {
+            this.buffer.put(src);
+            return;
+        }
+
+        ByteBuffer[] srcs = {this.buffer.flip(), src};
+        while (src.hasRemaining()) {
+            this.written += this.channel.write(srcs);
+        }
+        this.buffer.clear();
+    }
+
+    void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.written += this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+
+    private void ensureRemaining(int size) throws IOException {
+        if (this.buffer.remaining() < size) {
+            flush();
+        }
+    }
+}
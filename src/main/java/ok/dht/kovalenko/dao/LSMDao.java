@@ -55,9 +55,9 @@ public class LSMDao implements Dao<ByteBuffer, TypedEntry> {
             } else {
                 Files.createDirectory(config.workingDir());
             }
+            this.diskStorage.load();
 
-            this.flushRunnable
-                    = new FlushRunnable(this.config, this.serializer, this.memoryStorage, this.filesCounter);
+            this.flushRunnable = new FlushRunnable(this.memoryStorage, this.diskStorage);
             this.compactRunnable
                     = new CompactRunnable(this.config, this.serializer, this.diskStorage, this.wasCompacted,
                     this.filesCounter);
@@ -68,15 +68,11 @@ public class LSMDao implements Dao<ByteBuffer, TypedEntry> {
 
     @Override
     public TypedEntry get(ByteBuffer key) throws IOException {
-        try {
-            TypedEntry res = this.memoryStorage.get(key);
-            if (res == null) {
-                res = this.diskStorage.get(key);
-            }
-            return res == null || res.isTombstone() ? null : res;
-        } catch (ReflectiveOperationException ex) {
-            throw new RuntimeException(ex);
+        TypedEntry res = this.memoryStorage.get(key);
+        if (res == null) {
+            res = this.diskStorage.get(key);
         }
+        return res == null || res.isTombstone() ? null : res;
     }
 
     @Override
@@ -130,7 +126,6 @@ public class LSMDao implements Dao<ByteBuffer, TypedEntry> {
 
             this.memoryStorage.clear();
             this.diskStorage.close();
-            this.diskStorage.clear();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
@@ -1,25 +1,28 @@
 package ok.dht.kovalenko.dao;
 
-import ok.dht.kovalenko.dao.aliases.MemorySSTable;
 import ok.dht.kovalenko.dao.aliases.TypedBaseEntry;
 import ok.dht.kovalenko.dao.aliases.TypedEntry;
+import ok.dht.kovalenko.dao.dto.ChunkedMappedFile;
 import ok.dht.kovalenko.dao.dto.FileMeta;
 import ok.dht.kovalenko.dao.dto.MappedPairedFiles;
 import ok.dht.kovalenko.dao.dto.PairedFiles;
-import ok.dht.kovalenko.dao.utils.FileUtils;
 import ok.dht.kovalenko.dao.utils.MergeIteratorUtils;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class Serializer {
 
+    private static final int DATA_BUFFER_SIZE = 1 << 20; // 1MB
+    private static final int INDEXES_BUFFER_SIZE = 1 << 18; // 256KB
+
     private final AtomicBoolean wasCompacted;
 
     public Serializer(AtomicBoolean wasCompacted)
@@ -27,8 +30,8 @@ public final class Serializer {
         this.wasCompacted = wasCompacted;
     }
 
-    public TypedEntry readEntry(MappedPairedFiles mappedFilePair, int indexesPos) {
-        int dataPos = readDataFileOffset(mappedFilePair.indexesFile(), indexesPos);
+    public TypedEntry readEntry(MappedPairedFiles mappedFilePair, long indexesPos) {
+        long dataPos = readDataFileOffset(mappedFilePair, indexesPos);
         byte tombstone = readByte(mappedFilePair.dataFile(), dataPos++);
         ByteBuffer key = readByteBuffer(mappedFilePair.dataFile(), dataPos);
         dataPos += (Integer.BYTES + key.remaining());
@@ -39,8 +42,8 @@ public final class Serializer {
         return new TypedBaseEntry(key, value);
     }
 
-    public ByteBuffer readKey(MappedPairedFiles mappedFilePair, int indexesPos) {
-        int dataPos = readDataFileOffset(mappedFilePair.indexesFile(), indexesPos);
+    public ByteBuffer readKey(MappedPairedFiles mappedFilePair, long indexesPos) {
+        long dataPos = readDataFileOffset(mappedFilePair, indexesPos);
         return readByteBuffer(mappedFilePair.dataFile(), dataPos + 1); // skip tombstone flag
     }
 
@@ -53,24 +56,27 @@ public final class Serializer {
         Path dataFilePath = pairedFiles.dataFile();
         Path indexesFilePath = pairedFiles.indexesFile();
 
-        try (RandomAccessFile dataFile = new RandomAccessFile(dataFilePath.toString(), "rw");
-             RandomAccessFile indexesFile = new RandomAccessFile(indexesFilePath.toString(), "rw")) {
+        try (FileChannel dataChannel = FileChannel.open(dataFilePath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+             FileChannel indexesChannel = FileChannel.open(indexesFilePath, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE)) {
+            BufferedChannelWriter dataWriter = new BufferedChannelWriter(dataChannel, DATA_BUFFER_SIZE);
+            BufferedChannelWriter indexesWriter = new BufferedChannelWriter(indexesChannel, INDEXES_BUFFER_SIZE);
             byte hasTombstones = FileMeta.HAS_NOT_TOMBSTONES;
-            writeMeta(new FileMeta(FileMeta.INCOMPLETELY_WRITTEN, FileMeta.HAS_NOT_TOMBSTONES), dataFile);
+            writeMeta(new FileMeta(FileMeta.INCOMPLETELY_WRITTEN, FileMeta.HAS_NOT_TOMBSTONES), dataWriter);
 
-            int curOffset = (int) dataFile.getFilePointer();
-            int bbSize = 0;
-            ByteBuffer offset = ByteBuffer.allocate(FileUtils.INDEX_SIZE);
             TypedEntry curEntry;
             while (data.hasNext()) {
-                curOffset += bbSize;
-                writeOffset(curOffset, offset, indexesFile);
+                writeOffset(dataWriter.position(), indexesWriter);
                 curEntry = data.next();
                 hasTombstones = curEntry.isTombstone() ? FileMeta.HAS_TOMBSTONES : FileMeta.HAS_NOT_TOMBSTONES;
-                bbSize = writeEntry(curEntry, dataFile);
+                writeEntry(curEntry, dataWriter);
             }
+            dataWriter.flush();
+            indexesWriter.flush();
 
-            writeMeta(new FileMeta(FileMeta.COMPLETELY_WRITTEN, hasTombstones), dataFile);
+            // Meta is rewritten in place when all the entries are in the file
+            dataChannel.write(metaBuffer(new FileMeta(FileMeta.COMPLETELY_WRITTEN, hasTombstones)), 0);
             if (hasTombstones == FileMeta.HAS_TOMBSTONES) {
                 this.wasCompacted.set(true);
             }
@@ -85,40 +91,59 @@ public final class Serializer {
         try (RandomAccessFile file = new RandomAccessFile(pathToFile.toString(), "r")) {
             byte completelyWritten = file.readByte();
             byte hasTombstones = file.readByte();
-            return new FileMeta(completelyWritten, hasTombstones);
+            byte version = file.length() > 2 ? file.readByte() : FileMeta.VERSION_INT_OFFSETS;
+            return meta(completelyWritten, hasTombstones, version);
         }
     }
 
-    private void writeMeta(FileMeta meta, RandomAccessFile file) throws IOException {
-        file.seek(0);
-        file.write(meta.completelyWritten());
-        file.write(meta.hasTombstones());
+    public FileMeta meta(ChunkedMappedFile dataFile) {
+        byte version = dataFile.size() > 2 ? dataFile.get(2) : FileMeta.VERSION_INT_OFFSETS;
+        return meta(dataFile.get(0), dataFile.get(1), version);
+    }
+
+    private FileMeta meta(byte completelyWritten, byte hasTombstones, byte version) {
+        return new FileMeta(
+                completelyWritten,
+                hasTombstones,
+                FileMeta.isVersion(version) ? version : FileMeta.VERSION_INT_OFFSETS
+        );
+    }
+
+    private void writeMeta(FileMeta meta, BufferedChannelWriter dataWriter) throws IOException {
+        dataWriter.put(metaBuffer(meta));
     }
 
-    private int readDataFileOffset(MappedByteBuffer indexesFile, int indexesPos) {
-        return indexesFile.getInt(indexesPos);
+    private ByteBuffer metaBuffer(FileMeta meta) {
+        return ByteBuffer.allocate(FileMeta.size())
+                .put(meta.completelyWritten())
+                .put(meta.hasTombstones())
+                .put(meta.version())
+                .flip();
     }
 
-    private byte readByte(MappedByteBuffer dataFile, int dataPos) {
+    private long readDataFileOffset(MappedPairedFiles mappedFilePair, long indexesPos) {
+        return mappedFilePair.indexSize() == Integer.BYTES
+                ? mappedFilePair.indexesFile().getInt(indexesPos)
+                : mappedFilePair.indexesFile().getLong(indexesPos);
+    }
+
+    private byte readByte(ChunkedMappedFile dataFile, long dataPos) {
         return dataFile.get(dataPos);
     }
 
-    private ByteBuffer readByteBuffer(MappedByteBuffer dataFile, int dataPos) {
+    private ByteBuffer readByteBuffer(ChunkedMappedFile dataFile, long dataPos) {
         int bbSize = dataFile.getInt(dataPos);
         return dataFile.slice(dataPos + Integer.BYTES, bbSize);
     }
 
     /*
      * Write offsets in format:
-     * ┌─────┐
-     * │ int │
-     * └─────┘
+     * ┌──────┐
+     * │ long │
+     * └──────┘
      */
-    private void writeOffset(int offset, ByteBuffer bbOffset, RandomAccessFile indexesFile) throws IOException {
-        bbOffset.putInt(offset);
-        bbOffset.rewind();
-        indexesFile.getChannel().write(bbOffset);
-        bbOffset.rewind();
+    private void writeOffset(long offset, BufferedChannelWriter indexesWriter) throws IOException {
+        indexesWriter.putLong(offset);
     }
 
     /*
@@ -130,23 +155,19 @@ public final class Serializer {
      * │ value: byte[entry.value().remaining()] │
      * ┴────────────────────────────────────────┘
      */
-    private int writeEntry(TypedEntry entry, RandomAccessFile dataFile) throws IOException {
-        int bbSize = MemorySSTable.sizeOf(entry);
-        ByteBuffer pair = ByteBuffer.allocate(bbSize);
+    private void writeEntry(TypedEntry entry, BufferedChannelWriter dataWriter) throws IOException {
         byte tombstone = MergeIteratorUtils.getTombstoneValue(entry);
 
-        pair.put(tombstone);
-        pair.putInt(entry.key().remaining());
-        pair.put(entry.key());
+        // Entries may be read concurrently from memory while they are written, so their positions are kept
+        ByteBuffer key = entry.key().duplicate().rewind();
+        dataWriter.put(tombstone);
+        dataWriter.putInt(key.remaining());
+        dataWriter.put(key);
 
         if (!entry.isTombstone()) {
-            pair.putInt(entry.value().remaining());
-            pair.put(entry.value());
+            ByteBuffer value = entry.value().duplicate().rewind();
+            dataWriter.putInt(value.remaining());
+            dataWriter.put(value);
         }
-
-        pair.rewind();
-        dataFile.getChannel().write(pair);
-
-        return bbSize;
     }
 }
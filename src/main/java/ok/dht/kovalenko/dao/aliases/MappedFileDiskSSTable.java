@@ -4,7 +4,6 @@ import ok.dht.kovalenko.dao.Serializer;
 import ok.dht.kovalenko.dao.dto.ByteBufferRange;
 import ok.dht.kovalenko.dao.dto.MappedPairedFiles;
 import ok.dht.kovalenko.dao.utils.DaoUtils;
-import ok.dht.kovalenko.dao.utils.FileUtils;
 
 import java.nio.ByteBuffer;
 
@@ -25,7 +24,7 @@ public class MappedFileDiskSSTable
             return null;
         }
         TypedEntry res = null;
-        int greaterOrEqualEntryIndex = entryIndex(this.value, key);
+        long greaterOrEqualEntryIndex = entryIndex(this.value, key);
         if (greaterOrEqualEntryIndex >= 0) {
             res = entryAt(this.value, greaterOrEqualEntryIndex);
         }
@@ -38,11 +37,11 @@ public class MappedFileDiskSSTable
                 || DaoUtils.byteBufferComparator.greaterThan(range.from(), to)) {
             return null;
         }
-        int fromPos = greaterOrEqualEntryIndex(this.value, from);
-        int toPos = greaterOrEqualEntryIndex(this.value, to);
+        long fromPos = greaterOrEqualEntryIndex(this.value, from);
+        long toPos = greaterOrEqualEntryIndex(this.value, to);
         MappedPairedFiles mappedPairedFiles = this.value;
         return new TypedIterator() {
-            int curPos = fromPos;
+            long curPos = fromPos;
 
             @Override
             public boolean hasNext() {
@@ -56,16 +55,16 @@ public class MappedFileDiskSSTable
         };
     }
 
-    private int entryIndex(MappedPairedFiles mappedPairedFiles, ByteBuffer key) {
-        int a = 0;
-        int b = mappedPairedFiles.indexesLimit() / FileUtils.INDEX_SIZE;
+    private long entryIndex(MappedPairedFiles mappedPairedFiles, ByteBuffer key) {
+        long a = 0;
+        long b = mappedPairedFiles.indexesLimit() / mappedPairedFiles.indexSize();
         if (key == null) {
             return b;
         }
 
         while (a < b) {
-            int c = (b + a) / 2;
-            ByteBuffer keyForCompare = serializer.readKey(mappedPairedFiles, c * FileUtils.INDEX_SIZE);
+            long c = (b + a) / 2;
+            ByteBuffer keyForCompare = serializer.readKey(mappedPairedFiles, c * mappedPairedFiles.indexSize());
             int compare = key.rewind().compareTo(keyForCompare.rewind());
             if (compare > 0) {
                 a = c + 1;
@@ -79,15 +78,15 @@ public class MappedFileDiskSSTable
         return ~a;
     }
 
-    private int greaterOrEqualEntryIndex(MappedPairedFiles mappedPairedFiles, ByteBuffer key) {
-        int index = entryIndex(mappedPairedFiles, key);
+    private long greaterOrEqualEntryIndex(MappedPairedFiles mappedPairedFiles, ByteBuffer key) {
+        long index = entryIndex(mappedPairedFiles, key);
         if (index < 0) {
             return ~index;
         }
         return index;
     }
 
-    private TypedEntry entryAt(MappedPairedFiles mappedPairedFiles, int pos) {
-        return serializer.readEntry(mappedPairedFiles, FileUtils.INDEX_SIZE * pos);
+    private TypedEntry entryAt(MappedPairedFiles mappedPairedFiles, long pos) {
+        return serializer.readEntry(mappedPairedFiles, mappedPairedFiles.indexSize() * pos);
     }
 }
@@ -2,8 +2,9 @@ package ok.dht.kovalenko.dao.aliases;
 
 import ok.dht.ServiceConfig;
 import ok.dht.kovalenko.dao.Serializer;
-import ok.dht.kovalenko.dao.dto.FileMeta;
+import ok.dht.kovalenko.dao.dto.ChunkedMappedFile;
 import ok.dht.kovalenko.dao.dto.MappedPairedFiles;
+import ok.dht.kovalenko.dao.dto.PairedFiles;
 import ok.dht.kovalenko.dao.utils.DaoUtils;
 import ok.dht.kovalenko.dao.utils.FileUtils;
 
@@ -14,14 +15,27 @@ import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicLong;
 
+/*
+ * Tables are kept in an immutable map which is replaced as a whole, so readers never see a table being mapped.
+ * Only a new table is mapped on flush, the others are kept as is.
+ * Tables replaced by compaction are not unmapped explicitly: entries and iterators given out may still read them.
+ * Every slice refers to its chunk, so the chunk is unmapped by its own cleaner when the last reader is gone.
+ * Priorities of the tables on disk are 1..n. Flushes create their files under the storage lock,
+ * so compaction can renumber the tables flushed while it was merging without a table being written in between.
+ */
 public class MappedFileDiskSSTableStorage
-        extends DiskSSTableStorage<MappedFileDiskSSTable>
         implements Closeable {
 
     private static final Method unmap;
@@ -44,56 +58,101 @@ public class MappedFileDiskSSTableStorage
     private final ServiceConfig config;
     private final AtomicLong filesCounter;
 
+    // Priority -> table, newer tables have greater priority
+    private volatile NavigableMap<Long, MappedFileDiskSSTable> tables = Collections.emptyNavigableMap();
+
     public MappedFileDiskSSTableStorage(ServiceConfig config, Serializer serializer, AtomicLong filesCounter) {
-        super();
         this.config = config;
         this.serializer = serializer;
         this.filesCounter = filesCounter;
     }
 
+    // Maps the tables left by the previous run, is called once on start
+    public synchronized void load() throws IOException {
+        NavigableMap<Long, MappedFileDiskSSTable> newTables = new TreeMap<>();
+        long numTablesToMap = filesCounter.get() / 2;
+        for (long priority = 1; priority <= numTablesToMap; ++priority) {
+            newTables.put(priority, map(priority));
+        }
+        this.tables = Collections.unmodifiableNavigableMap(newTables);
+    }
+
+    // The tables published at the moment, compaction merges and replaces exactly them
+    public NavigableMap<Long, MappedFileDiskSSTable> tables() {
+        return this.tables;
+    }
+
+    // Writes and publishes a flushed table
+    public synchronized void flush(Iterator<TypedEntry> entries) throws IOException {
+        PairedFiles pairedFiles = FileUtils.createPairedFiles(this.config, this.filesCounter);
+        this.serializer.write(entries, pairedFiles);
+        long priority = FileUtils.getFileNumber(pairedFiles.dataFile());
+        NavigableMap<Long, MappedFileDiskSSTable> newTables = new TreeMap<>(this.tables);
+        newTables.put(priority, map(priority));
+        this.tables = Collections.unmodifiableNavigableMap(newTables);
+    }
+
+    // Publishes the compacted table instead of the merged ones with the lowest priority.
+    // Tables flushed during the compaction are newer, they are kept and renumbered to follow it
+    public synchronized void replaceWithCompacted(Set<Long> merged, PairedFiles compacted) throws IOException {
+        for (long priority : merged) {
+            FileUtils.deleteFile(dataFile(priority), this.filesCounter);
+            FileUtils.deleteFile(indexesFile(priority), this.filesCounter);
+        }
+        Files.move(compacted.dataFile(), dataFile(1), StandardCopyOption.ATOMIC_MOVE);
+        Files.move(compacted.indexesFile(), indexesFile(1), StandardCopyOption.ATOMIC_MOVE);
+
+        NavigableMap<Long, MappedFileDiskSSTable> newTables = new TreeMap<>();
+        newTables.put(1L, map(1));
+        long next = 2;
+        for (long priority : this.tables.keySet()) {
+            if (merged.contains(priority)) {
+                continue;
+            }
+            // Ascending order: the lower numbers are free already
+            if (priority != next) {
+                Files.move(dataFile(priority), dataFile(next), StandardCopyOption.ATOMIC_MOVE);
+                Files.move(indexesFile(priority), indexesFile(next), StandardCopyOption.ATOMIC_MOVE);
+            }
+            newTables.put(next, map(next));
+            ++next;
+        }
+        this.tables = Collections.unmodifiableNavigableMap(newTables);
+    }
+
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         try {
-            unmapFiles();
+            for (MappedFileDiskSSTable mappedFileDiskSSTable : this.tables.values()) {
+                unmap(mappedFileDiskSSTable.getValue());
+            }
+            this.tables = Collections.emptyNavigableMap();
         } catch (ReflectiveOperationException e) {
             throw new IllegalStateException(e);
         }
     }
 
-    private void unmapFiles() throws ReflectiveOperationException {
-        for (MappedFileDiskSSTable mappedFileDiskSSTable : this.values()) {
-            unmap(mappedFileDiskSSTable.getValue());
-        }
+    private Path dataFile(long priority) {
+        return FileUtils.getFilePath(FileUtils.getDataFilename(priority), this.config);
     }
 
-    private void mapForRead(long numTablesToMap, Serializer serializer)
-            throws IOException, ReflectiveOperationException {
-        unmapFiles();
+    private Path indexesFile(long priority) {
+        return FileUtils.getFilePath(FileUtils.getIndexesFilename(priority), this.config);
+    }
 
-        for (long priority = 1; priority <= numTablesToMap; ++priority) {
-            Path dataFile = FileUtils.getFilePath(FileUtils.getDataFilename(priority), this.config);
-            Path indexesFile = FileUtils.getFilePath(FileUtils.getIndexesFilename(priority), this.config);
-
-            try (FileChannel dataChannel = FileChannel.open(dataFile);
-                 FileChannel indexesChannel = FileChannel.open(indexesFile)) {
-                MappedByteBuffer mappedDataFile =
-                        dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, dataChannel.size());
-                MappedByteBuffer mappedIndexesFile =
-                        indexesChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexesChannel.size());
-                mappedDataFile.position(FileMeta.size());
-                this.put(
-                        priority,
-                        new MappedFileDiskSSTable(priority,
-                                new MappedPairedFiles(mappedDataFile, mappedIndexesFile, serializer), serializer)
-                );
-            }
+    private MappedFileDiskSSTable map(long priority) throws IOException {
+        try (FileChannel dataChannel = FileChannel.open(dataFile(priority));
+             FileChannel indexesChannel = FileChannel.open(indexesFile(priority))) {
+            ChunkedMappedFile mappedDataFile = ChunkedMappedFile.map(dataChannel);
+            ChunkedMappedFile mappedIndexesFile = ChunkedMappedFile.map(indexesChannel);
+            return new MappedFileDiskSSTable(priority,
+                    new MappedPairedFiles(mappedDataFile, mappedIndexesFile, this.serializer), this.serializer);
         }
     }
 
-    public TypedEntry get(ByteBuffer key) throws IOException, ReflectiveOperationException {
-        updateTables();
+    public TypedEntry get(ByteBuffer key) {
         TypedEntry res = null;
-        for (MappedFileDiskSSTable diskSSTable : this.descendingMap().values()) {
+        for (MappedFileDiskSSTable diskSSTable : this.tables.descendingMap().values()) {
             if ((res = diskSSTable.get(key)) != null) {
                 return res;
             }
@@ -101,12 +160,15 @@ public class MappedFileDiskSSTableStorage
         return res;
     }
 
-    public List<Iterator<TypedEntry>> get(ByteBuffer from, ByteBuffer to)
-            throws ReflectiveOperationException, IOException {
-        updateTables();
+    public List<Iterator<TypedEntry>> get(ByteBuffer from, ByteBuffer to) {
+        return get(this.tables, from, to);
+    }
+
+    public static List<Iterator<TypedEntry>> get(NavigableMap<Long, MappedFileDiskSSTable> tables,
+                                                 ByteBuffer from, ByteBuffer to) {
         List<Iterator<TypedEntry>> res = new ArrayList<>();
         ByteBuffer from1 = from == null ? DaoUtils.EMPTY_BYTEBUFFER : from;
-        for (MappedFileDiskSSTable diskSSTable : this.descendingMap().values()) {
+        for (MappedFileDiskSSTable diskSSTable : tables.descendingMap().values()) {
             Iterator<TypedEntry> rangeIt = diskSSTable.get(from1, to);
             if (rangeIt == null) {
                 continue;
@@ -121,14 +183,13 @@ public class MappedFileDiskSSTableStorage
         unmap(mappedPairedFiles.indexesFile());
     }
 
-    private void unmap(MappedByteBuffer buffer) throws ReflectiveOperationException {
-        unmap.invoke(unsafe, buffer);
+    private void unmap(ChunkedMappedFile file) throws ReflectiveOperationException {
+        for (MappedByteBuffer chunk : file.chunks()) {
+            unmap(chunk);
+        }
     }
 
-    private void updateTables() throws ReflectiveOperationException, IOException {
-        long numFiles = filesCounter.get() / 2;
-        if (this.get(numFiles) == null) {
-            mapForRead(numFiles, serializer);
-        }
+    private void unmap(MappedByteBuffer buffer) throws ReflectiveOperationException {
+        unmap.invoke(unsafe, buffer);
     }
 }
@@ -0,0 +1,97 @@
+package ok.dht.kovalenko.dao.dto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * File mapped by chunks, so it may be larger than 2GB (the limit of a single MappedByteBuffer).
+ * Chunk i starts at i * chunkSize and overlaps the next one by Long.BYTES,
+ * so primitives never cross the border; only slices crossing it are copied.
+ */
+public final class ChunkedMappedFile {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 30; // 1GB
+    private static final int OVERLAP = Long.BYTES;
+
+    private final MappedByteBuffer[] chunks;
+    private final int chunkSize;
+    private final long size;
+
+    private ChunkedMappedFile(MappedByteBuffer[] chunks, int chunkSize, long size) {
+        this.chunks = chunks;
+        this.chunkSize = chunkSize;
+        this.size = size;
+    }
+
+    public static ChunkedMappedFile map(FileChannel channel) throws IOException {
+        return map(channel, DEFAULT_CHUNK_SIZE);
+    }
+
+    public static ChunkedMappedFile map(FileChannel channel, int chunkSize) throws IOException {
+        if (chunkSize <= 0 || chunkSize > Integer.MAX_VALUE - OVERLAP) {
+            throw new IllegalArgumentException("Illegal chunk size: " + chunkSize);
+        }
+        long size = channel.size();
+        int nChunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[nChunks];
+        for (int i = 0; i < nChunks; ++i) {
+            long chunkStart = (long) i * chunkSize;
+            long chunkLength = Math.min(size - chunkStart, (long) chunkSize + OVERLAP);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, chunkLength);
+        }
+        return new ChunkedMappedFile(chunks, chunkSize, size);
+    }
+
+    public long size() {
+        return this.size;
+    }
+
+    public MappedByteBuffer[] chunks() {
+        return this.chunks;
+    }
+
+    public byte get(long pos) {
+        return chunk(pos).get(offset(pos));
+    }
+
+    public int getInt(long pos) {
+        return chunk(pos).getInt(offset(pos));
+    }
+
+    public long getLong(long pos) {
+        return chunk(pos).getLong(offset(pos));
+    }
+
+    // Zero-copy view if the slice lies in a single chunk
+    public ByteBuffer slice(long pos, int length) {
+        MappedByteBuffer chunk = chunk(pos);
+        int offset = offset(pos);
+        if (offset + length <= chunk.limit()) {
+            return chunk.slice(offset, length);
+        }
+
+        if (pos + length > this.size) {
+            throw new IndexOutOfBoundsException("Slice " + pos + "+" + length + " is out of file of size " + size);
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        long cur = pos;
+        while (copy.hasRemaining()) {
+            MappedByteBuffer curChunk = chunk(cur);
+            int curOffset = offset(cur);
+            int toCopy = Math.min(copy.remaining(), chunkSize - curOffset);
+            copy.put(curChunk.slice(curOffset, toCopy));
+            cur += toCopy;
+        }
+        return copy.flip();
+    }
+
+    private MappedByteBuffer chunk(long pos) {
+        return this.chunks[(int) (pos / chunkSize)];
+    }
+
+    private int offset(long pos) {
+        return (int) (pos % chunkSize);
+    }
+}
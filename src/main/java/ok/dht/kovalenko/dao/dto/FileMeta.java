@@ -1,14 +1,36 @@
 package ok.dht.kovalenko.dao.dto;
 
-public record FileMeta(byte completelyWritten, byte hasTombstones) {
+/*
+ * Meta in format (version byte is absent in files of the first version):
+ * ┌──────────────────────────┬─────────────────────┬───────────────┐
+ * │ completelyWritten: byte  │ hasTombstones: byte │ version: byte │
+ * └──────────────────────────┴─────────────────────┴───────────────┘
+ */
+public record FileMeta(byte completelyWritten, byte hasTombstones, byte version) {
 
     public static final byte COMPLETELY_WRITTEN = 1;
     public static final byte INCOMPLETELY_WRITTEN = 0;
     public static final byte HAS_TOMBSTONES = 1;
     public static final byte HAS_NOT_TOMBSTONES = 0;
 
+    // int offsets in indexes-file, files are limited by 2GB
+    // the byte after (completelyWritten, hasTombstones) is the tombstone flag of the first entry (1 or -1)
+    public static final byte VERSION_INT_OFFSETS = 1;
+    // long offsets in indexes-file
+    public static final byte VERSION_LONG_OFFSETS = 2;
+    public static final byte CURRENT_VERSION = VERSION_LONG_OFFSETS;
+
+    public FileMeta(byte completelyWritten, byte hasTombstones) {
+        this(completelyWritten, hasTombstones, CURRENT_VERSION);
+    }
+
+    // Meta size of the current version
     public static int size() {
-        return Byte.BYTES + Byte.BYTES;
+        return Byte.BYTES + Byte.BYTES + Byte.BYTES;
+    }
+
+    public static boolean isVersion(byte b) {
+        return b == VERSION_LONG_OFFSETS;
     }
 
     public boolean written() {
@@ -26,4 +48,8 @@ public record FileMeta(byte completelyWritten, byte hasTombstones) {
     public boolean notTombstoned() {
         return !tombstoned();
     }
+
+    public int indexSize() {
+        return version == VERSION_INT_OFFSETS ? Integer.BYTES : Long.BYTES;
+    }
 }
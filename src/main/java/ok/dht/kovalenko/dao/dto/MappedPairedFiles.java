@@ -1,30 +1,30 @@
 package ok.dht.kovalenko.dao.dto;
 
 import ok.dht.kovalenko.dao.Serializer;
-import ok.dht.kovalenko.dao.utils.FileUtils;
 
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 
 public class MappedPairedFiles {
 
-    private final MappedByteBuffer dataFile;
-    private final MappedByteBuffer indexesFile;
+    private final ChunkedMappedFile dataFile;
+    private final ChunkedMappedFile indexesFile;
+    private final int indexSize;
     private final ByteBufferRange range;
 
-    public MappedPairedFiles(MappedByteBuffer dataFile, MappedByteBuffer indexesFile, Serializer serializer) {
+    public MappedPairedFiles(ChunkedMappedFile dataFile, ChunkedMappedFile indexesFile, Serializer serializer) {
         this.dataFile = dataFile;
         this.indexesFile = indexesFile;
+        this.indexSize = serializer.meta(dataFile).indexSize();
         ByteBuffer fromRange = serializer.readKey(this, 0);
-        ByteBuffer toRange = serializer.readKey(this, indexesFile.limit() - FileUtils.INDEX_SIZE);
+        ByteBuffer toRange = serializer.readKey(this, indexesFile.size() - indexSize);
         this.range = new ByteBufferRange(fromRange, toRange);
     }
 
-    public MappedByteBuffer dataFile() {
+    public ChunkedMappedFile dataFile() {
         return dataFile;
     }
 
-    public MappedByteBuffer indexesFile() {
+    public ChunkedMappedFile indexesFile() {
         return indexesFile;
     }
 
@@ -32,12 +32,17 @@ public class MappedPairedFiles {
         return this.range;
     }
 
-    public int dataLimit() {
-        return dataFile.limit();
+    // Size of an offset in indexes-file, depends on the file version
+    public int indexSize() {
+        return indexSize;
     }
 
-    public int indexesLimit() {
-        return indexesFile.limit();
+    public long dataLimit() {
+        return dataFile.size();
+    }
+
+    public long indexesLimit() {
+        return indexesFile.size();
     }
 
 }
@@ -2,17 +2,17 @@ package ok.dht.kovalenko.dao.runnables;
 
 import ok.dht.ServiceConfig;
 import ok.dht.kovalenko.dao.Serializer;
+import ok.dht.kovalenko.dao.aliases.MappedFileDiskSSTable;
 import ok.dht.kovalenko.dao.aliases.MappedFileDiskSSTableStorage;
 import ok.dht.kovalenko.dao.aliases.TypedIterator;
 import ok.dht.kovalenko.dao.dto.PairedFiles;
 import ok.dht.kovalenko.dao.iterators.MergeIterator;
 import ok.dht.kovalenko.dao.utils.DaoUtils;
 import ok.dht.kovalenko.dao.utils.FileUtils;
-import ok.dht.kovalenko.dao.visitors.CompactVisitor;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.Collections;
+import java.util.NavigableMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -40,16 +40,17 @@ public class CompactRunnable implements Runnable {
                 return;
             }
 
-            TypedIterator mergeIterator
-                    = new MergeIterator(Collections.emptyList(), this.diskStorage.get(DaoUtils.EMPTY_BYTEBUFFER, null));
+            // Tables flushed during the compaction are not merged and stay as they are
+            NavigableMap<Long, MappedFileDiskSSTable> merged = this.diskStorage.tables();
+            TypedIterator mergeIterator = new MergeIterator(Collections.emptyList(),
+                    MappedFileDiskSSTableStorage.get(merged, DaoUtils.EMPTY_BYTEBUFFER, null));
             if (!mergeIterator.hasNext()) {
                 return;
             }
 
             PairedFiles pairedFiles = FileUtils.createPairedFiles(this.config, this.filesCounter);
             this.serializer.write(mergeIterator, pairedFiles);
-            Files.walkFileTree(this.config.workingDir(),
-                    new CompactVisitor(this.config, pairedFiles, this.serializer, this.filesCounter));
+            this.diskStorage.replaceWithCompacted(merged.keySet(), pairedFiles);
             this.wasCompacted.set(true);
         } catch (IOException | ReflectiveOperationException e) {
             throw new RuntimeException(e);
@@ -1,29 +1,20 @@
 package ok.dht.kovalenko.dao.runnables;
 
-import ok.dht.ServiceConfig;
 import ok.dht.kovalenko.dao.LSMDao;
-import ok.dht.kovalenko.dao.Serializer;
+import ok.dht.kovalenko.dao.aliases.MappedFileDiskSSTableStorage;
 import ok.dht.kovalenko.dao.aliases.MemorySSTable;
-import ok.dht.kovalenko.dao.dto.PairedFiles;
-import ok.dht.kovalenko.dao.utils.FileUtils;
 
 import java.io.IOException;
 import java.util.ConcurrentModificationException;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class FlushRunnable implements Runnable {
 
-    private final ServiceConfig config;
-    private final Serializer serializer;
     private final LSMDao.MemoryStorage memoryStorage;
-    private final AtomicLong filesCounter;
+    private final MappedFileDiskSSTableStorage diskStorage;
 
-    public FlushRunnable(ServiceConfig config, Serializer serializer,
-                         LSMDao.MemoryStorage memoryStorage, AtomicLong filesCounter) {
-        this.config = config;
-        this.serializer = serializer;
+    public FlushRunnable(LSMDao.MemoryStorage memoryStorage, MappedFileDiskSSTableStorage diskStorage) {
         this.memoryStorage = memoryStorage;
-        this.filesCounter = filesCounter;
+        this.diskStorage = diskStorage;
     }
 
     @Override
@@ -39,8 +30,8 @@ public class FlushRunnable implements Runnable {
             }
 
             this.memoryStorage.flushSSTables().add(memorySSTable);
-            PairedFiles pairedFiles = FileUtils.createPairedFiles(this.config, this.filesCounter);
-            this.serializer.write(memorySSTable.values().iterator(), pairedFiles);
+            // The table is published before it leaves memory, so its entries are always visible
+            this.diskStorage.flush(memorySSTable.values().iterator());
             // It is impossible that any other thread will capture memorySSTable
             if (!this.memoryStorage.flushSSTables().remove(memorySSTable)) {
                 throw new ConcurrentModificationException("Unexpected concurrent removing SSTable");
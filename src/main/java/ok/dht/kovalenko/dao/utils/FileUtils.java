@@ -15,7 +15,7 @@ import java.util.regex.Pattern;
 
 public final class FileUtils {
 
-    public static final int INDEX_SIZE = Integer.BYTES;
+    public static final int INDEX_SIZE = Long.BYTES;
     public static final String DATA_PREFIX = "data";
     public static final String INDEXES_PREFIX = "indexes";
     public static final String EXTENSION = ".txt";
@@ -18,7 +18,9 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>> {
@@ -29,6 +31,9 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
 
     private final ReadWriteLock upsertLock = new ReentrantReadWriteLock();
 
+    // flush and compaction both change the set of sstable files
+    private final Lock storageLock = new ReentrantLock();
+
     private final ExecutorService executor =
             Executors.newSingleThreadExecutor(r -> new Thread(r, "MemorySegmentDaoBG"));
 
@@ -36,9 +41,13 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
 
     private final Config config;
 
+    private final CompactionScheduler compactionScheduler;
+
     public MemorySegmentDao(Config config) throws IOException {
         this.config = config;
         this.state = State.newState(config, Storage.load(config));
+        this.compactionScheduler = new CompactionScheduler(config, () -> accessState().storage, this::compactStorage);
+        this.compactionScheduler.start();
     }
 
     @Override
@@ -65,7 +74,8 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
 
         Entry<MemorySegment> result = accessState.memory.get(key);
         if (result == null) {
-            result = accessState.storage.get(key);
+            compactionScheduler.recordGet();
+            result = accessState.storage.get(key, compactionScheduler.probes());
         }
 
         return (result == null || result.isTombstone()) ? null : result;
@@ -108,6 +118,7 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         }
 
         return executor.submit(() -> {
+            storageLock.lock();
             try {
                 State accessState = accessState();
 
@@ -121,6 +132,7 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
                 } finally {
                     upsertLock.writeLock().unlock();
                 }
+                compactionScheduler.maybeCompact();
                 return null;
             } catch (Exception e) {
                 LOG.error("Can't flush", e);
@@ -132,6 +144,8 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
                     throw ex;
                 }
                 throw e;
+            } finally {
+                storageLock.unlock();
             }
         });
     }
@@ -161,11 +175,17 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             return;
         }
 
-        Future<Object> future = executor.submit(() -> {
+        Future<?> future = compactionScheduler.compactNow();
+        awaitAndUnwrap(future);
+    }
+
+    private void compactStorage() throws IOException {
+        storageLock.lock();
+        try {
             State accessState = accessState();
 
-            if (accessState.memory.isEmpty() && accessState.storage.isCompacted()) {
-                return null;
+            if (accessState.storage.isCompacted()) {
+                return;
             }
 
             Storage.compact(
@@ -182,15 +202,14 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
 
             upsertLock.writeLock().lock();
             try {
-                this.state = accessState.afterCompact(storage);
+                // memory could be switched for flush meanwhile, so the actual state is updated
+                this.state = this.state.afterCompact(storage);
             } finally {
                 upsertLock.writeLock().unlock();
             }
-
-            return null;
-        });
-
-        awaitAndUnwrap(future);
+        } finally {
+            storageLock.unlock();
+        }
     }
 
     private void awaitAndUnwrap(Future<?> future) {
@@ -229,13 +248,14 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             Thread.currentThread().interrupt();
             throw new IllegalStateException(e);
         }
+        compactionScheduler.close();
         accessState = this.state;
         accessState.storage.close();
         this.state = accessState.afterClosed();
         if (accessState.memory.isEmpty()) {
             return;
         }
-        Storage.save(config, state.storage, state.memory.values());
+        Storage.save(config, accessState.storage, accessState.memory.values());
     }
 
     private static class TombstoneFilteringIterator implements Iterator<Entry<MemorySegment>> {
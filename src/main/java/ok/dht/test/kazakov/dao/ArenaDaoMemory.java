@@ -0,0 +1,381 @@
+package ok.dht.test.kazakov.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryLayout;
+import jdk.incubator.foreign.MemoryLayouts;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.lang.invoke.VarHandle;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// memtable which keeps keys and values off-heap in large chunks instead of the separate heap arrays,
+// so the garbage collector sees a few objects per memtable whatever number of entries it has
+// entries are indexed by insert-only lock-free skip list living in the same chunks
+// node structure:
+// (valueRef)(keySize)(height)(next)*height(key)
+// value structure:
+// (valueSize)(value)
+// refs are (chunk index << 32 | offset in chunk), all the records are aligned by 8 bytes
+// the whole memory is released once memtable is flushed and the last reader releases it,
+// readers get heap copies of entries, so nothing points into the memory after that
+// cleaner frees the memory of memtables whose readers gave up the iterators before exhausting them
+class ArenaDaoMemory extends DaoMemory {
+
+    private static final long MIN_CHUNK_SIZE = 64L * 1024;
+    private static final long MAX_CHUNK_SIZE = 4L * 1024 * 1024;
+    private static final long NULL_REF = -1;
+    private static final long TOMBSTONE_REF = -2;
+    private static final int MAX_HEIGHT = 16;
+
+    private static final long VALUE_REF_OFFSET = 0;
+    private static final long KEY_SIZE_OFFSET = Long.BYTES;
+    private static final long HEIGHT_OFFSET = KEY_SIZE_OFFSET + Integer.BYTES;
+    private static final long NEXT_OFFSET = HEIGHT_OFFSET + Integer.BYTES;
+
+    // coordinates are (segment, index of long in segment)
+    private static final VarHandle LONGS = MemoryLayout.sequenceLayout(MemoryLayouts.JAVA_LONG)
+            .varHandle(long.class, MemoryLayout.PathElement.sequenceElement());
+
+    private final ResourceScope scope = ResourceScope.newSharedScope(Storage.CLEANER);
+    private final AtomicInteger count = new AtomicInteger();
+    // one reference is held by memtable itself until it is freed
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean freed = new AtomicBoolean();
+    private final Collection<Entry<MemorySegment>> values = new Values();
+    private final long chunkSize;
+    private final long head;
+
+    // copy on write, new chunks are published before refs pointing to them
+    private volatile MemorySegment[] chunks = new MemorySegment[0];
+    private volatile Chunk current;
+    // bytes of the chunks which are not filled anymore, is written under lock
+    private volatile long retiredBytes;
+
+    ArenaDaoMemory(final long sizeThreshold) {
+        super(sizeThreshold);
+        // small memtables should not reserve much more memory than they are going to hold
+        chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, sizeThreshold));
+        current = newChunk(chunkSize);
+        head = allocateNode(MemorySegment.ofArray(new byte[0]), TOMBSTONE_REF, MAX_HEIGHT);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return next(head, 0) == NULL_REF;
+    }
+
+    @Override
+    public Collection<Entry<MemorySegment>> values() {
+        return values;
+    }
+
+    @Override
+    protected Entry<MemorySegment> putEntry(final MemorySegment key, final Entry<MemorySegment> entry) {
+        final long valueRef = entry.isTombstone() ? TOMBSTONE_REF : allocateValue(entry.value());
+        final long[] preds = new long[MAX_HEIGHT];
+        final long[] succs = new long[MAX_HEIGHT];
+        long node = NULL_REF;
+        int height = 0;
+
+        while (true) {
+            if (findPosition(key, preds, succs)) {
+                // the key is present already: value is replaced in place, a node allocated by failed attempt is lost
+                final long previousRef = (long) LONGS.getAndSet(chunk(succs[0]), index(succs[0], VALUE_REF_OFFSET),
+                        valueRef);
+                return new BaseEntry<>(key(succs[0]), value(previousRef));
+            }
+
+            if (node == NULL_REF) {
+                height = randomHeight();
+                node = allocateNode(key, valueRef, height);
+            }
+            setNext(node, 0, succs[0]);
+            // linking at the bottom level makes entry visible
+            if (casNext(preds[0], 0, succs[0], node)) {
+                break;
+            }
+        }
+        count.incrementAndGet();
+
+        for (int level = 1; level < height; level++) {
+            while (true) {
+                setNext(node, level, succs[level]);
+                if (casNext(preds[level], level, succs[level], node)) {
+                    break;
+                }
+                findPosition(key, preds, succs);
+            }
+        }
+        return null;
+    }
+
+    // replaced values and nodes lost by failed inserts stay in the chunks,
+    // so the threshold is compared with all the bytes taken rather than with the size of live entries
+    @Override
+    protected long sizeAfterPut(final Entry<MemorySegment> entry, final Entry<MemorySegment> previous) {
+        final Chunk chunk = current;
+        return retiredBytes + Math.min(chunk.position.get(), chunk.segment.byteSize());
+    }
+
+    @Override
+    public boolean tryAcquire() {
+        while (true) {
+            final int held = references.get();
+            if (held == 0) {
+                return false;
+            }
+            if (references.compareAndSet(held, held + 1)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            scope.close();
+        }
+    }
+
+    @Override
+    public void free() {
+        if (!freed.getAndSet(true)) {
+            release();
+        }
+    }
+
+    @Override
+    public Iterator<Entry<MemorySegment>> get(final MemorySegment from, final MemorySegment to) {
+        final long[] preds = new long[MAX_HEIGHT];
+        final long[] succs = new long[MAX_HEIGHT];
+        findPosition(from, preds, succs);
+        return new EntryIterator(succs[0], to, true);
+    }
+
+    @Override
+    public Entry<MemorySegment> get(final MemorySegment key) {
+        long pred = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long node = next(pred, level);
+            while (node != NULL_REF) {
+                final int compare = MemorySegmentComparator.INSTANCE.compare(key(node), key);
+                if (compare == 0) {
+                    return copy(entry(node));
+                }
+                if (compare > 0) {
+                    break;
+                }
+                pred = node;
+                node = next(node, level);
+            }
+        }
+        return null;
+    }
+
+    // fills predecessors and successors of the key on every level, returns true if successor at level 0 has the key
+    private boolean findPosition(final MemorySegment key, final long[] preds, final long[] succs) {
+        long pred = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long node = next(pred, level);
+            while (node != NULL_REF) {
+                if (MemorySegmentComparator.INSTANCE.compare(key(node), key) >= 0) {
+                    break;
+                }
+                pred = node;
+                node = next(node, level);
+            }
+            preds[level] = pred;
+            succs[level] = node;
+        }
+        return succs[0] != NULL_REF && MemorySegmentComparator.INSTANCE.compare(key(succs[0]), key) == 0;
+    }
+
+    private static int randomHeight() {
+        // every next level has a quarter of nodes of the previous one
+        final int bits = ThreadLocalRandom.current().nextInt();
+        final int height = 1 + Integer.numberOfTrailingZeros(bits | (1 << (2 * (MAX_HEIGHT - 1)))) / 2;
+        return Math.min(height, MAX_HEIGHT);
+    }
+
+    private long allocateNode(final MemorySegment key, final long valueRef, final int height) {
+        final long keyOffset = NEXT_OFFSET + (long) height * Long.BYTES;
+        final long ref = allocate(keyOffset + key.byteSize());
+        final MemorySegment chunk = chunk(ref);
+        final long offset = offset(ref);
+        MemoryAccess.setLongAtOffset(chunk, offset + VALUE_REF_OFFSET, valueRef);
+        MemoryAccess.setIntAtOffset(chunk, offset + KEY_SIZE_OFFSET, (int) key.byteSize());
+        MemoryAccess.setIntAtOffset(chunk, offset + HEIGHT_OFFSET, height);
+        for (int level = 0; level < height; level++) {
+            MemoryAccess.setLongAtOffset(chunk, offset + NEXT_OFFSET + (long) level * Long.BYTES, NULL_REF);
+        }
+        chunk.asSlice(offset + keyOffset, key.byteSize()).copyFrom(key);
+        return ref;
+    }
+
+    private long allocateValue(final MemorySegment value) {
+        final long ref = allocate(Long.BYTES + value.byteSize());
+        final MemorySegment chunk = chunk(ref);
+        final long offset = offset(ref);
+        MemoryAccess.setLongAtOffset(chunk, offset, value.byteSize());
+        chunk.asSlice(offset + Long.BYTES, value.byteSize()).copyFrom(value);
+        return ref;
+    }
+
+    private long allocate(final long size) {
+        final long alignedSize = (size + Long.BYTES - 1) & -Long.BYTES;
+        if (alignedSize > chunkSize / 2) {
+            // large records get their own chunk, current one can still be filled by small ones
+            synchronized (this) {
+                retiredBytes += alignedSize;
+                return (long) newChunk(alignedSize).index << 32;
+            }
+        }
+        while (true) {
+            final Chunk chunk = current;
+            final long offset = chunk.position.getAndAdd(alignedSize);
+            if (offset + alignedSize <= chunk.segment.byteSize()) {
+                return ((long) chunk.index << 32) | offset;
+            }
+            synchronized (this) {
+                if (current == chunk) {
+                    retiredBytes += chunk.segment.byteSize();
+                    current = newChunk(chunkSize);
+                }
+            }
+        }
+    }
+
+    // is called under lock
+    private Chunk newChunk(final long size) {
+        final MemorySegment segment = MemorySegment.allocateNative(size, Long.BYTES, scope);
+        final MemorySegment[] grown = new MemorySegment[chunks.length + 1];
+        System.arraycopy(chunks, 0, grown, 0, chunks.length);
+        grown[chunks.length] = segment;
+        chunks = grown;
+        return new Chunk(segment, chunks.length - 1);
+    }
+
+    private MemorySegment chunk(final long ref) {
+        return chunks[(int) (ref >>> 32)];
+    }
+
+    private static long offset(final long ref) {
+        return ref & 0xFFFFFFFFL;
+    }
+
+    private static long index(final long ref, final long fieldOffset) {
+        return (offset(ref) + fieldOffset) / Long.BYTES;
+    }
+
+    private long next(final long node, final int level) {
+        return (long) LONGS.getVolatile(chunk(node), index(node, NEXT_OFFSET + (long) level * Long.BYTES));
+    }
+
+    private void setNext(final long node, final int level, final long next) {
+        LONGS.setVolatile(chunk(node), index(node, NEXT_OFFSET + (long) level * Long.BYTES), next);
+    }
+
+    private boolean casNext(final long node, final int level, final long expected, final long next) {
+        return LONGS.compareAndSet(chunk(node), index(node, NEXT_OFFSET + (long) level * Long.BYTES), expected, next);
+    }
+
+    private MemorySegment key(final long node) {
+        final MemorySegment chunk = chunk(node);
+        final long offset = offset(node);
+        final int height = MemoryAccess.getIntAtOffset(chunk, offset + HEIGHT_OFFSET);
+        final int keySize = MemoryAccess.getIntAtOffset(chunk, offset + KEY_SIZE_OFFSET);
+        return chunk.asSlice(offset + NEXT_OFFSET + (long) height * Long.BYTES, keySize);
+    }
+
+    private MemorySegment value(final long valueRef) {
+        if (valueRef == TOMBSTONE_REF) {
+            return null;
+        }
+        final MemorySegment chunk = chunk(valueRef);
+        final long offset = offset(valueRef);
+        return chunk.asSlice(offset + Long.BYTES, MemoryAccess.getLongAtOffset(chunk, offset));
+    }
+
+    private Entry<MemorySegment> entry(final long node) {
+        final long valueRef = (long) LONGS.getVolatile(chunk(node), index(node, VALUE_REF_OFFSET));
+        return new BaseEntry<>(key(node), value(valueRef));
+    }
+
+    private static Entry<MemorySegment> copy(final Entry<MemorySegment> entry) {
+        final MemorySegment value = entry.value();
+        return new BaseEntry<>(
+                MemorySegment.ofArray(entry.key().toByteArray()),
+                value == null ? null : MemorySegment.ofArray(value.toByteArray())
+        );
+    }
+
+    private static final class Chunk {
+        final MemorySegment segment;
+        final int index;
+        final AtomicLong position = new AtomicLong();
+
+        Chunk(final MemorySegment segment, final int index) {
+            this.segment = segment;
+            this.index = index;
+        }
+    }
+
+    // iterator of reader gives out copies and releases memtable when exhausted,
+    // flush reads entries in place as memtable is not freed until it is done
+    private final class EntryIterator implements Iterator<Entry<MemorySegment>> {
+        private final MemorySegment to;
+        private final boolean reader;
+        private long node;
+        private boolean released;
+
+        EntryIterator(final long node, final MemorySegment to, final boolean reader) {
+            this.node = node;
+            this.to = to;
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (released) {
+                return false;
+            }
+            final boolean hasNext = node != NULL_REF
+                    && (to == null || MemorySegmentComparator.INSTANCE.compare(key(node), to) < 0);
+            if (!hasNext && reader) {
+                released = true;
+                release();
+            }
+            return hasNext;
+        }
+
+        @Override
+        public Entry<MemorySegment> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Entry<MemorySegment> result = entry(node);
+            node = ArenaDaoMemory.this.next(node, 0);
+            return reader ? copy(result) : result;
+        }
+    }
+
+    private final class Values extends AbstractCollection<Entry<MemorySegment>> {
+        @Override
+        public Iterator<Entry<MemorySegment>> iterator() {
+            return new EntryIterator(ArenaDaoMemory.this.next(head, 0), null, false);
+        }
+
+        @Override
+        public int size() {
+            return count.get();
+        }
+    }
+}
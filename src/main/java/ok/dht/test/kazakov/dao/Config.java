@@ -4,5 +4,11 @@ import java.nio.file.Path;
 
 public record Config(
         Path basePath,
-        long flushThresholdBytes) {
+        long flushThresholdBytes,
+        // keys and values of memtable are copied to off-heap arenas
+        boolean offHeapMemtable) {
+
+    public Config(final Path basePath, final long flushThresholdBytes) {
+        this(basePath, flushThresholdBytes, false);
+    }
 }
@@ -4,60 +4,77 @@ import jdk.incubator.foreign.MemorySegment;
 
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
-class DaoMemory {
+abstract class DaoMemory {
 
-    static final DaoMemory EMPTY = new DaoMemory(-1);
+    static final DaoMemory EMPTY = new SkipListDaoMemory(-1);
     private final AtomicLong size = new AtomicLong();
     private final AtomicBoolean oversized = new AtomicBoolean();
 
-    private final ConcurrentSkipListMap<MemorySegment, Entry<MemorySegment>> delegate =
-            new ConcurrentSkipListMap<>(MemorySegmentComparator.INSTANCE);
-
     private final long sizeThreshold;
 
-    DaoMemory(final long sizeThreshold) {
+    protected DaoMemory(final long sizeThreshold) {
         this.sizeThreshold = sizeThreshold;
     }
 
-    public boolean isEmpty() {
-        return delegate.isEmpty();
+    static DaoMemory create(final Config config) {
+        return config.offHeapMemtable()
+                ? new ArenaDaoMemory(config.flushThresholdBytes())
+                : new SkipListDaoMemory(config.flushThresholdBytes());
     }
 
-    public Collection<Entry<MemorySegment>> values() {
-        return delegate.values();
-    }
+    public abstract boolean isEmpty();
+
+    // sorted by key
+    public abstract Collection<Entry<MemorySegment>> values();
 
     public boolean put(final MemorySegment key, final Entry<MemorySegment> entry) {
         if (sizeThreshold == -1) {
             throw new UnsupportedOperationException("Read-only map");
         }
-        final Entry<MemorySegment> segmentEntry = delegate.put(key, entry);
-        long sizeDelta = StorageHelper.getSizeOnDisk(entry);
-        if (segmentEntry != null) {
-            sizeDelta -= StorageHelper.getSizeOnDisk(segmentEntry);
-        }
-        final long newSize = size.addAndGet(sizeDelta);
-        if (newSize > sizeThreshold) {
+        final Entry<MemorySegment> segmentEntry = putEntry(key, entry);
+        if (sizeAfterPut(entry, segmentEntry) > sizeThreshold) {
             return !oversized.getAndSet(true);
         }
         return false;
     }
 
-    public boolean overflow() {
-        return !oversized.getAndSet(true);
+    // returns the previous entry for the key
+    protected abstract Entry<MemorySegment> putEntry(MemorySegment key, Entry<MemorySegment> entry);
+
+    // size compared with the flush threshold, logical size of the live entries by default
+    protected long sizeAfterPut(final Entry<MemorySegment> entry, final Entry<MemorySegment> previous) {
+        long sizeDelta = StorageHelper.getSizeOnDisk(entry);
+        if (previous != null) {
+            sizeDelta -= StorageHelper.getSizeOnDisk(previous);
+        }
+        return size.addAndGet(sizeDelta);
+    }
+
+    // readers acquire memtable before touching it and release it after,
+    // returns false if memtable is freed already: its entries are in the storage of the fresh state then
+    public boolean tryAcquire() {
+        return true;
     }
 
-    public Iterator<Entry<MemorySegment>> get(final MemorySegment from, final MemorySegment to) {
-        return to == null
-                ? delegate.tailMap(from).values().iterator()
-                : delegate.subMap(from, to).values().iterator();
+    public void release() {
+        // nothing is held by default
     }
 
-    public Entry<MemorySegment> get(final MemorySegment key) {
-        return delegate.get(key);
+    // is called once when memtable is flushed and removed from the state,
+    // memory is released when the last reader is done
+    public void free() {
+        // nothing to free by default
     }
+
+    public boolean overflow() {
+        return !oversized.getAndSet(true);
+    }
+
+    // takes over the reference acquired by caller, it is released when iterator is exhausted
+    public abstract Iterator<Entry<MemorySegment>> get(MemorySegment from, MemorySegment to);
+
+    public abstract Entry<MemorySegment> get(MemorySegment key);
 }
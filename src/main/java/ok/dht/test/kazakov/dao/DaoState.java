@@ -26,7 +26,7 @@ class DaoState {
     static DaoState newState(final Config config, final Storage storage) {
         return new DaoState(
                 config,
-                new DaoMemory(config.flushThresholdBytes()),
+                DaoMemory.create(config),
                 DaoMemory.EMPTY,
                 storage
         );
@@ -39,7 +39,7 @@ class DaoState {
         }
         return new DaoState(
                 config,
-                new DaoMemory(config.flushThresholdBytes()),
+                DaoMemory.create(config),
                 memory,
                 storage
         );
@@ -76,6 +76,23 @@ class DaoState {
         return new DaoState(config, storage, true);
     }
 
+    // acquires both memtables for reading, false if any of them is freed by flush completed meanwhile
+    public boolean acquireMemory() {
+        if (!memory.tryAcquire()) {
+            return false;
+        }
+        if (!flushing.tryAcquire()) {
+            memory.release();
+            return false;
+        }
+        return true;
+    }
+
+    public void releaseMemory() {
+        memory.release();
+        flushing.release();
+    }
+
     public void checkNotClosed() {
         if (closed) {
             throw new IllegalStateException("Already closed");
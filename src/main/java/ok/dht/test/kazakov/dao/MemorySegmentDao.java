@@ -45,9 +45,21 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
     }
 
     private TombstoneFilteringIterator getTombstoneFilteringIterator(final MemorySegment from, final MemorySegment to) {
-        final DaoState freezedState = accessState();
+        DaoState freezedState = accessState();
+        // memtables freed by flush completed meanwhile are in the storage of the fresh state
+        while (!freezedState.acquireMemory()) {
+            freezedState = accessState();
+        }
 
-        final List<Iterator<Entry<MemorySegment>>> iterators = freezedState.storage.iterate(from, to);
+        final List<Iterator<Entry<MemorySegment>>> iterators;
+        try {
+            iterators = freezedState.storage.iterate(from, to);
+        } catch (final RuntimeException | Error e) {
+            // memtable iterators are not created yet to release them
+            freezedState.releaseMemory();
+            throw e;
+        }
+        // memtable iterators release their memtables when exhausted
         iterators.add(freezedState.flushing.get(from, to));
         iterators.add(freezedState.memory.get(from, to));
 
@@ -57,11 +69,20 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
 
     @Override
     public Entry<MemorySegment> get(final MemorySegment key) {
-        final DaoState freezedState = accessState();
+        DaoState freezedState = accessState();
+        // memtables freed by flush completed meanwhile are in the storage of the fresh state
+        while (!freezedState.acquireMemory()) {
+            freezedState = accessState();
+        }
 
-        Entry<MemorySegment> result = freezedState.memory.get(key);
-        if (result == null) {
-            result = freezedState.flushing.get(key);
+        Entry<MemorySegment> result;
+        try {
+            result = freezedState.memory.get(key);
+            if (result == null) {
+                result = freezedState.flushing.get(key);
+            }
+        } finally {
+            freezedState.releaseMemory();
         }
         if (result == null) {
             result = freezedState.storage.get(key);
@@ -75,13 +96,12 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
     @SuppressWarnings("FutureReturnValueIgnored")
     @Override
     public void upsert(final Entry<MemorySegment> entry) {
-        final DaoState freezedState = accessState();
-
         boolean runFlush;
         // it is intentionally the read lock!!!
         upsertLock.readLock().lock();
         try {
-            runFlush = freezedState.memory.put(entry.key(), entry);
+            // state is read under the lock, so memtable can not be flushed and freed while it is written
+            runFlush = accessState().memory.put(entry.key(), entry);
         } finally {
             upsertLock.readLock().unlock();
         }
@@ -126,6 +146,7 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
                 } finally {
                     upsertLock.writeLock().unlock();
                 }
+                freezedState.flushing.free();
                 storage.maybeClose();
                 return null;
             } catch (final Exception e) {
@@ -242,9 +263,9 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         freezedState = this.state;
         freezedState.storage.close();
         this.state = freezedState.afterClosed();
-        if (freezedState.memory.isEmpty()) {
-            return;
+        if (!freezedState.memory.isEmpty()) {
+            Storage.save(config, freezedState.storage, freezedState.memory.values());
         }
-        Storage.save(config, freezedState.storage, freezedState.memory.values());
+        freezedState.memory.free();
     }
 }
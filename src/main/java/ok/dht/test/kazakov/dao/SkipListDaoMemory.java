@@ -0,0 +1,44 @@
+package ok.dht.test.kazakov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+class SkipListDaoMemory extends DaoMemory {
+
+    private final ConcurrentSkipListMap<MemorySegment, Entry<MemorySegment>> delegate =
+            new ConcurrentSkipListMap<>(MemorySegmentComparator.INSTANCE);
+
+    SkipListDaoMemory(final long sizeThreshold) {
+        super(sizeThreshold);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return delegate.isEmpty();
+    }
+
+    @Override
+    public Collection<Entry<MemorySegment>> values() {
+        return delegate.values();
+    }
+
+    @Override
+    protected Entry<MemorySegment> putEntry(final MemorySegment key, final Entry<MemorySegment> entry) {
+        return delegate.put(key, entry);
+    }
+
+    @Override
+    public Iterator<Entry<MemorySegment>> get(final MemorySegment from, final MemorySegment to) {
+        return to == null
+                ? delegate.tailMap(from).values().iterator()
+                : delegate.subMap(from, to).values().iterator();
+    }
+
+    @Override
+    public Entry<MemorySegment> get(final MemorySegment key) {
+        return delegate.get(key);
+    }
+}
@@ -21,7 +21,8 @@ import java.util.concurrent.ThreadFactory;
 
 class Storage implements Closeable {
 
-    private static final Cleaner CLEANER = Cleaner.create(new Storage.CleanerThreadFactory());
+    // shared with off-heap memtables
+    static final Cleaner CLEANER = Cleaner.create(new Storage.CleanerThreadFactory());
 
     private static final Logger LOG = LoggerFactory.getLogger(Storage.class);
 
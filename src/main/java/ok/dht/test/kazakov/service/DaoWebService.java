@@ -66,7 +66,7 @@ public class DaoWebService implements Service {
             final long measureTimeFrom = clock.millis();
             try {
                 final MemorySegmentDao dao = new MemorySegmentDao(
-                        new Config(config.workingDir(), FLUSH_THRESHOLD_BYTES)
+                        new Config(config.workingDir(), FLUSH_THRESHOLD_BYTES, true)
                 );
                 daoService = new DaoService(dao);
                 daoRequestsValidatorBuilder = new DaoRequestsValidatorBuilder();
@@ -4,26 +4,22 @@ import ok.dht.test.kiselyov.dao.BaseEntry;
 import ok.dht.test.kiselyov.dao.Config;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class FileOperations {
     private long filesCount;
     private final Path basePath;
     private final List<Path> ssTables;
     private final List<Path> ssIndexes;
-    private final Map<Path, Long> tablesSizes;
-    private final List<FileIterator> fileIterators = new ArrayList<>();
+    private final List<SSTable> mappedTables;
     private final CompactOperations compactOperations;
     private static final String FILE_NAME = "myData";
     private static final String FILE_EXTENSION = ".dat";
@@ -34,7 +30,7 @@ public class FileOperations {
         basePath = config.basePath();
         ssTables = new ArrayList<>();
         ssIndexes = new ArrayList<>();
-        tablesSizes = new ConcurrentHashMap<>();
+        mappedTables = new ArrayList<>();
         compactOperations = new CompactOperations(FILE_NAME, FILE_EXTENSION, FILE_INDEX_NAME, FILE_INDEX_EXTENSION);
         Map<Path, Path> allData = compactOperations.checkFiles(basePath);
         getDataInfo(allData);
@@ -45,47 +41,27 @@ public class FileOperations {
         for (Map.Entry<Path, Path> entry : allData.entrySet()) {
             ssTables.add(entry.getKey());
             ssIndexes.add(entry.getValue());
-        }
-        for (int i = 0; i < filesCount; i++) {
-            tablesSizes.put(ssIndexes.get(i), indexSize(ssIndexes.get(i)));
+            mappedTables.add(SSTable.map(entry.getKey(), entry.getValue()));
         }
     }
 
-    Iterator<BaseEntry<byte[]>> diskIterator(byte[] from, byte[] to) throws IOException {
+    Iterator<BaseEntry<byte[]>> diskIterator(byte[] from, byte[] to) {
         List<IndexedPeekIterator> peekIterators = new ArrayList<>();
-        for (int i = 0; i < ssTables.size(); i++) {
-            Iterator<BaseEntry<byte[]>> iterator = diskIterator(ssTables.get(i), ssIndexes.get(i), from, to);
-            peekIterators.add(new IndexedPeekIterator(i, iterator));
+        for (int i = 0; i < mappedTables.size(); i++) {
+            peekIterators.add(new IndexedPeekIterator(i, new FileIterator(mappedTables.get(i), from, to)));
         }
         return MergeIterator.of(peekIterators, EntryKeyComparator.INSTANCE);
     }
 
-    private Iterator<BaseEntry<byte[]>> diskIterator(Path ssTable, Path ssIndex, byte[] from, byte[] to)
-            throws IOException {
-        long indexSize = tablesSizes.get(ssIndex);
-        FileIterator fileIterator = new FileIterator(ssTable, ssIndex, from, to, indexSize);
-        fileIterators.add(fileIterator);
-        return fileIterator;
-    }
-
-    static long getEntryIndex(FileChannel channelTable, FileChannel channelIndex,
-                              byte[] key, long indexSize) throws IOException {
-        long low = 0;
-        long high = indexSize - 1;
-        long mid = (low + high) / 2;
-        while (low <= high) {
-            BaseEntry<byte[]> current = getCurrent(mid, channelTable, channelIndex);
-            int compare = Arrays.compare(key, current.key());
-            if (compare > 0) {
-                low = mid + 1;
-            } else if (compare < 0) {
-                high = mid - 1;
-            } else {
-                return mid;
+    // tables are ordered from the newest one, so the first entry found is the actual one
+    BaseEntry<byte[]> get(byte[] key) {
+        for (SSTable ssTable : mappedTables) {
+            BaseEntry<byte[]> entry = ssTable.get(key);
+            if (entry != null) {
+                return entry;
             }
-            mid = (low + high) / 2;
         }
-        return low;
+        return null;
     }
 
     void compact(Iterator<BaseEntry<byte[]>> iterator, boolean hasPairs) throws IOException {
@@ -93,12 +69,11 @@ public class FileOperations {
             return;
         }
         compactOperations.saveDataAndIndexesCompact(iterator, basePath);
-        compactOperations.clearFileIterators(fileIterators);
         compactOperations.deleteAllFiles(ssTables, ssIndexes);
         compactOperations.renameCompactedFile(basePath);
         ssTables.clear();
         ssIndexes.clear();
-        tablesSizes.clear();
+        mappedTables.clear();
         filesCount = 1;
     }
 
@@ -177,43 +152,4 @@ public class FileOperations {
         longBuffer.clear();
         return result;
     }
-
-    private long indexSize(Path indexPath) throws IOException {
-        long size;
-        try (RandomAccessFile raf = new RandomAccessFile(indexPath.toString(), "r")) {
-            size = raf.readLong();
-        }
-        return size;
-    }
-
-    static BaseEntry<byte[]> getCurrent(long pos, FileChannel channelTable,
-                                        FileChannel channelIndex) throws IOException {
-        long position;
-        channelIndex.position((pos + 1) * Long.BYTES);
-        ByteBuffer buffLong = ByteBuffer.allocate(Long.BYTES);
-        channelIndex.read(buffLong);
-        buffLong.flip();
-        position = buffLong.getLong();
-        channelTable.position(position);
-        ByteBuffer buffInt = ByteBuffer.allocate(Integer.BYTES);
-        channelTable.read(buffInt);
-        buffInt.flip();
-        int keyLength = buffInt.getInt();
-        buffInt.clear();
-        ByteBuffer currentKey = ByteBuffer.allocate(keyLength);
-        channelTable.read(currentKey);
-        channelTable.read(buffInt);
-        buffInt.flip();
-        int valueLength = buffInt.getInt();
-        if (valueLength == -1) {
-            return new BaseEntry<>(currentKey.array(), null);
-        }
-        ByteBuffer currentValue = ByteBuffer.allocate(valueLength);
-        channelTable.read(currentValue);
-        return new BaseEntry<>(currentKey.array(), currentValue.array());
-    }
-
-    public void clearFileIterators() throws IOException {
-        compactOperations.clearFileIterators(fileIterators);
-    }
 }
@@ -45,15 +45,11 @@ public class PersistentDao implements Dao<byte[], BaseEntry<byte[]>> {
 
     @Override
     public BaseEntry<byte[]> get(byte[] key) throws IOException {
-        Iterator<BaseEntry<byte[]>> iterator = get(key, null);
-        if (!iterator.hasNext()) {
-            return null;
-        }
-        BaseEntry<byte[]> next = iterator.next();
-        if (Arrays.equals(key, next.key())) {
-            return next;
+        BaseEntry<byte[]> entry = pairs.get(key);
+        if (entry == null) {
+            entry = fileOperations.get(key);
         }
-        return null;
+        return entry == null || entry.isTombstone() ? null : entry;
     }
 
     @Override
@@ -81,7 +77,6 @@ public class PersistentDao implements Dao<byte[], BaseEntry<byte[]>> {
     @Override
     public void close() throws IOException {
         flush();
-        fileOperations.clearFileIterators();
         pairs.clear();
     }
 }
@@ -0,0 +1,131 @@
+package ok.dht.test.kiselyov.dao.impl;
+
+import ok.dht.test.kiselyov.dao.BaseEntry;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class SSTable {
+    // every FENCE_STEP-th key is kept in memory, the search reads at most log2(FENCE_STEP) keys from the file
+    private static final int FENCE_STEP = 64;
+    private static final int INDEX_HEADER_SIZE = Long.BYTES;
+
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer index;
+    private final long size;
+    private final byte[][] fenceKeys;
+
+    private SSTable(MappedByteBuffer data, MappedByteBuffer index) {
+        this.data = data;
+        this.index = index;
+        this.size = index.getLong(0);
+        this.fenceKeys = new byte[(int) ((size + FENCE_STEP - 1) / FENCE_STEP)][];
+        for (int i = 0; i < fenceKeys.length; i++) {
+            fenceKeys[i] = key((long) i * FENCE_STEP);
+        }
+    }
+
+    static SSTable map(Path ssTable, Path ssIndex) throws IOException {
+        try (FileChannel channelTable = FileChannel.open(ssTable);
+             FileChannel channelIndex = FileChannel.open(ssIndex)) {
+            return new SSTable(
+                    channelTable.map(FileChannel.MapMode.READ_ONLY, 0, channelTable.size()),
+                    channelIndex.map(FileChannel.MapMode.READ_ONLY, 0, channelIndex.size())
+            );
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    // index of the key or of the first greater one
+    long entryIndex(byte[] key) {
+        int low = 0;
+        int high = fenceKeys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int compare = Arrays.compare(key, fenceKeys[mid]);
+            if (compare > 0) {
+                low = mid + 1;
+            } else if (compare < 0) {
+                high = mid - 1;
+            } else {
+                return (long) mid * FENCE_STEP;
+            }
+        }
+        if (high < 0) {
+            return 0;
+        }
+        return entryIndex(key, (long) high * FENCE_STEP + 1, Math.min((long) (high + 1) * FENCE_STEP, size) - 1);
+    }
+
+    private long entryIndex(byte[] key, long from, long to) {
+        long low = from;
+        long high = to;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            int compare = compareKey(key, mid);
+            if (compare > 0) {
+                low = mid + 1;
+            } else if (compare < 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return low;
+    }
+
+    // entry with exactly the key, null if the table doesn't contain it
+    BaseEntry<byte[]> get(byte[] key) {
+        long pos = entryIndex(key);
+        if (pos < size && compareKey(key, pos) == 0) {
+            return entry(pos);
+        }
+        return null;
+    }
+
+    BaseEntry<byte[]> entry(long pos) {
+        int position = entryPosition(pos);
+        byte[] key = new byte[data.getInt(position)];
+        data.get(position + Integer.BYTES, key);
+        position += Integer.BYTES + key.length;
+        int valueLength = data.getInt(position);
+        if (valueLength == -1) {
+            return new BaseEntry<>(key, null);
+        }
+        byte[] value = new byte[valueLength];
+        data.get(position + Integer.BYTES, value);
+        return new BaseEntry<>(key, value);
+    }
+
+    private byte[] key(long pos) {
+        int position = entryPosition(pos);
+        byte[] key = new byte[data.getInt(position)];
+        data.get(position + Integer.BYTES, key);
+        return key;
+    }
+
+    // the same order as Arrays.compare, but the key in the file is not copied
+    private int compareKey(byte[] key, long pos) {
+        int position = entryPosition(pos);
+        int keyLength = data.getInt(position);
+        position += Integer.BYTES;
+        int length = Math.min(key.length, keyLength);
+        for (int i = 0; i < length; i++) {
+            int compare = Byte.compare(key[i], data.get(position + i));
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return Integer.compare(key.length, keyLength);
+    }
+
+    private int entryPosition(long pos) {
+        return (int) index.getLong(INDEX_HEADER_SIZE + (int) pos * Long.BYTES);
+    }
+}
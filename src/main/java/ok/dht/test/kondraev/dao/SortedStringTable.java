@@ -5,18 +5,19 @@ import jdk.incubator.foreign.MemorySegment;
 import jdk.incubator.foreign.ResourceScope;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.Iterator;
 
-import static ok.dht.test.kondraev.dao.Files.createFileIfNotExists;
-
 final class SortedStringTable {
     public static final String INDEX_FILENAME = "index";
     public static final String DATA_FILENAME = "data";
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
 
     private final MemorySegment dataSegment;
     private final Index index;
@@ -63,39 +64,91 @@ final class SortedStringTable {
             Collection<MemorySegmentEntry> entries,
             ResourceScope scope
     ) throws IOException {
-        Path indexFile = folderPath.resolve(INDEX_FILENAME);
-        Path dataFile = folderPath.resolve(DATA_FILENAME);
-        Index index = Index.written(entries, indexFile, scope);
-        MemorySegment dataSegment = MemorySegment.mapFile(
-                createFileIfNotExists(dataFile),
-                0L,
-                index.dataSize(),
-                FileChannel.MapMode.READ_WRITE,
-                scope
-        );
-        int i = 0;
-        for (MemorySegmentEntry entry : entries) {
-            entry.copyTo(index.mappedEntrySegment(dataSegment, i));
-            i++;
-        }
-        dataSegment.force();
-        return new SortedStringTable(
-                dataSegment.asReadOnly(),
-                index
-        );
+        save(folderPath, entries.iterator());
+        return of(folderPath, scope);
     }
 
+    /**
+     * Writes entries in a single pass: data file is appended sequentially,
+     * offsets go to index file as they are known and its header is written in the end.
+     */
     public static void save(
             Path folderPath,
-            Iterator<MemorySegmentEntry> iterator,
-            ResourceScope scope
+            Iterator<MemorySegmentEntry> iterator
     ) throws IOException {
-        // TODO проблема с загрузкой в память!!
-        ArrayList<MemorySegmentEntry> entries = new ArrayList<>();
-        while (iterator.hasNext()) {
-            entries.add(iterator.next());
+        try (FileChannel dataChannel = openForWrite(folderPath.resolve(DATA_FILENAME));
+             FileChannel indexChannel = openForWrite(folderPath.resolve(INDEX_FILENAME))) {
+            ByteBuffer dataBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+            ByteBuffer indexBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+            indexBuffer.position(Index.HEADER_SIZE);
+            indexBuffer.putLong(0L);
+            int size = 0;
+            long currentOffset = 0L;
+            boolean hasTombstones = false;
+            while (iterator.hasNext()) {
+                MemorySegmentEntry entry = iterator.next();
+                writeEntry(dataChannel, dataBuffer, entry);
+                currentOffset += entry.byteSize;
+                hasTombstones |= entry.isTombStone();
+                size++;
+                if (indexBuffer.remaining() < Long.BYTES) {
+                    writeFully(indexChannel, indexBuffer);
+                }
+                indexBuffer.putLong(currentOffset);
+            }
+            writeFully(dataChannel, dataBuffer);
+            writeFully(indexChannel, indexBuffer);
+
+            ByteBuffer header = ByteBuffer.allocate(Index.HEADER_SIZE).order(ByteOrder.nativeOrder());
+            header.putInt(size).putInt(hasTombstones ? 1 : 0).flip();
+            while (header.hasRemaining()) {
+                indexChannel.write(header, header.position());
+            }
+            dataChannel.force(false);
+            indexChannel.force(false);
         }
-        save(folderPath, entries, scope);
+    }
+
+    private static FileChannel openForWrite(Path file) throws IOException {
+        return FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        );
+    }
+
+    private static void writeEntry(
+            FileChannel channel,
+            ByteBuffer buffer,
+            MemorySegmentEntry entry
+    ) throws IOException {
+        if (entry.byteSize > buffer.capacity()) {
+            // entries bigger than buffer are copied through a temporary segment
+            writeFully(channel, buffer);
+            try (ResourceScope confinedScope = ResourceScope.newConfinedScope()) {
+                MemorySegment entrySegment = MemorySegment.allocateNative(entry.byteSize, confinedScope);
+                entry.copyTo(entrySegment);
+                ByteBuffer entryBuffer = entrySegment.asByteBuffer();
+                while (entryBuffer.hasRemaining()) {
+                    channel.write(entryBuffer);
+                }
+            }
+            return;
+        }
+        if (buffer.remaining() < entry.byteSize) {
+            writeFully(channel, buffer);
+        }
+        entry.copyTo(MemorySegment.ofByteBuffer(buffer).asSlice(0, entry.byteSize));
+        buffer.position(buffer.position() + (int) entry.byteSize);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
     }
 
     /**
@@ -173,14 +226,8 @@ final class SortedStringTable {
     }
 
     private static class Index {
-        final MemorySegment indexSegment;
-
-        private Index(MemorySegment indexSegment) {
-            this.indexSegment = indexSegment;
-        }
-
         /**
-         * write offsets in format:
+         * offsets are stored in format:
          * ┌─────────┬───────────────────┬─────────────────┐
          * │size: int│ hasTombstones: int│array: long[size]│
          * └─────────┴───────────────────┴─────────────────┘
@@ -189,36 +236,16 @@ final class SortedStringTable {
          * array represents offsets of entries in data file specified by methods
          * keyOffset, valueOffset, keySize and valueSize.
          */
-        static Index written(
-                Collection<MemorySegmentEntry> entries,
-                Path indexFile,
-                ResourceScope scope
-        ) throws IOException {
-            MemorySegment indexSegment = MemorySegment.mapFile(
-                    createFileIfNotExists(indexFile),
-                    0L,
-                    Integer.BYTES + Integer.BYTES + (1L + entries.size()) * Long.BYTES,
-                    FileChannel.MapMode.READ_WRITE,
-                    scope
-            );
-            MemoryAccess.setInt(indexSegment, entries.size());
-            MemorySegment offsetsSegment = indexSegment.asSlice(Integer.BYTES + Integer.BYTES);
-            long currentOffset = 0L;
-            long index = 0L;
-            MemoryAccess.setLongAtIndex(offsetsSegment, index++, currentOffset);
-            boolean hasTombstones = false;
-            for (MemorySegmentEntry entry : entries) {
-                currentOffset += entry.byteSize;
-                hasTombstones |= entry.isTombStone();
-                MemoryAccess.setLongAtIndex(offsetsSegment, index++, currentOffset);
-            }
-            MemoryAccess.setIntAtIndex(indexSegment, 1, hasTombstones ? 1 : 0);
-            indexSegment.force();
-            return new Index(indexSegment.asReadOnly());
+        static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+
+        final MemorySegment indexSegment;
+
+        private Index(MemorySegment indexSegment) {
+            this.indexSegment = indexSegment;
         }
 
         long entryOffset(long i) {
-            return MemoryAccess.getLongAtOffset(indexSegment, Integer.BYTES + Integer.BYTES + i * Long.BYTES);
+            return MemoryAccess.getLongAtOffset(indexSegment, HEADER_SIZE + i * Long.BYTES);
         }
 
         long entrySize(long i) {
@@ -230,7 +257,7 @@ final class SortedStringTable {
         }
 
         boolean hasTombstones() {
-            return MemoryAccess.getIntAtOffset(indexSegment, 1L) != 0;
+            return MemoryAccess.getIntAtOffset(indexSegment, Integer.BYTES) != 0;
         }
 
         long dataSize() {
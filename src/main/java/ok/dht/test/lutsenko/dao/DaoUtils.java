@@ -12,20 +12,17 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.Iterator;
 
-import static ok.dht.test.lutsenko.dao.StringUtils.postprocess;
-import static ok.dht.test.lutsenko.dao.StringUtils.preprocess;
-
 public final class DaoUtils {
 
     public static final int WRITE_BUFFER_SIZE = 16384;
     public static final int NULL_BYTES = 8;
     public static final int BYTES_IN_INT = Integer.SIZE / Byte.SIZE;
-    public static final int DELETED_MARK = 0;
-    public static final int EXISTING_MARK = 1;
-    public static final byte NEXT_LINE_BYTE = (byte) '\n';
+    public static final int NULL_VALUE_LENGTH = -1;
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
 
     private DaoUtils() {
     }
@@ -34,36 +31,22 @@ public final class DaoUtils {
         return entry.key().length() + (entry.value() == null ? NULL_BYTES : entry.value().length());
     }
 
-    public static String readKey(ByteBuffer byteBuffer, ThreadLocal<Integer> position) {
-        Integer positionBefore = position.get();
-        int keyLength = byteBuffer.getInt(positionBefore);
+    public static String readKey(ByteBuffer byteBuffer, int entryPosition) {
+        int keyLength = byteBuffer.getInt(entryPosition);
         byte[] keyBytes = new byte[keyLength];
-        byteBuffer.get(positionBefore + BYTES_IN_INT, keyBytes);
-        position.set(positionBefore + keyLength + BYTES_IN_INT);
-        return postprocess(keyBytes);
+        byteBuffer.get(entryPosition + BYTES_IN_INT, keyBytes);
+        return Utf8.toString(keyBytes);
     }
 
-    public static String readValue(MappedByteBuffer byteBuffer, ThreadLocal<Integer> position) {
-        Integer positionBefore = position.get();
-        if (byteBuffer.getInt(positionBefore) == EXISTING_MARK) {
-            int valueLength = byteBuffer.getInt(positionBefore + BYTES_IN_INT);
-            byte[] valueBytes = new byte[valueLength];
-            byteBuffer.get(positionBefore + BYTES_IN_INT + BYTES_IN_INT, valueBytes);
-            byteBuffer.get(positionBefore + BYTES_IN_INT + BYTES_IN_INT + valueBytes.length); // читаем '\n'
-            position.set(positionBefore + BYTES_IN_INT + BYTES_IN_INT + valueBytes.length + 1);
-            return postprocess(valueBytes);
-        }
-        byteBuffer.get(position.get() + BYTES_IN_INT); // читаем '\n'
-        position.set(positionBefore + BYTES_IN_INT + 1);
-        return null;
-    }
-
-    public static BaseEntry<String> readEntry(MappedByteBuffer byteBuffer, ThreadLocal<Integer> position) {
-        position.set(position.get() + BYTES_IN_INT); // Пропускаем длину предыдущей записи
-        if (isEnd(byteBuffer, position)) {
+    public static String readValue(ByteBuffer byteBuffer, int entryPosition) {
+        int valuePosition = entryPosition + BYTES_IN_INT + byteBuffer.getInt(entryPosition);
+        int valueLength = byteBuffer.getInt(valuePosition);
+        if (valueLength == NULL_VALUE_LENGTH) {
             return null;
         }
-        return new BaseEntry<>(readKey(byteBuffer, position), readValue(byteBuffer, position));
+        byte[] valueBytes = new byte[valueLength];
+        byteBuffer.get(valuePosition + BYTES_IN_INT, valueBytes);
+        return Utf8.toString(valueBytes);
     }
 
     public static void writeKey(byte[] keyBytes, ByteBuffer byteBuffer) {
@@ -73,136 +56,128 @@ public final class DaoUtils {
 
     public static void writeValue(byte[] valueBytes, ByteBuffer byteBuffer) {
         if (valueBytes == null) {
-            byteBuffer.putInt(DELETED_MARK);
-            byteBuffer.put(NEXT_LINE_BYTE);
+            byteBuffer.putInt(NULL_VALUE_LENGTH);
         } else {
-            byteBuffer.putInt(EXISTING_MARK);
             byteBuffer.putInt(valueBytes.length);
             byteBuffer.put(valueBytes);
-            byteBuffer.put(NEXT_LINE_BYTE);
         }
     }
 
+    /**
+     * См. Описание формата файла в PersistenceRangeDao.
+     * Смещения entry копятся в памяти и пишутся после всех entry, так как их количество заранее неизвестно.
+     */
     public static void writeToFile(Path dataFilePath, Iterator<BaseEntry<String>> iterator) throws IOException {
         try (
                 FileChannel channel = (FileChannel) Files.newByteChannel(dataFilePath,
                         EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW))
         ) {
             ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
-            writeBuffer.putInt(0);
+            int[] entryPositions = new int[INITIAL_INDEX_CAPACITY];
+            int entriesCount = 0;
+            long entryPosition = 0;
             while (iterator.hasNext()) {
                 BaseEntry<String> baseEntry = iterator.next();
-                byte[] keyBytes = Utf8.toBytes(preprocess(baseEntry.key()));
-                byte[] valueBytes = (baseEntry.value() == null ? null : Utf8.toBytes(preprocess(baseEntry.value())));
+                byte[] keyBytes = Utf8.toBytes(baseEntry.key());
+                byte[] valueBytes = (baseEntry.value() == null ? null : Utf8.toBytes(baseEntry.value()));
                 int entrySize = BYTES_IN_INT // размер численного значения для длины ключа
                         + keyBytes.length
                         + BYTES_IN_INT // размер численного значения для длины значения
-                        + (valueBytes == null ? 0 : valueBytes.length)
-                        + BYTES_IN_INT // размер всей записи
-                        + BYTES_IN_INT // DELETED_MARK or EXISTING_MARK
-                        + 1; // размер '\n'
-                if (writeBuffer.position() + entrySize > writeBuffer.capacity()) {
-                    writeBuffer.flip();
-                    channel.write(writeBuffer);
-                    writeBuffer.clear();
+                        + (valueBytes == null ? 0 : valueBytes.length);
+                if (entryPosition + entrySize > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Data file is too large to be mapped: " + dataFilePath);
                 }
-                if (entrySize > writeBuffer.capacity()) {
-                    writeBuffer = ByteBuffer.allocate(entrySize);
+                writeBuffer = prepareWriteBuffer(channel, writeBuffer, entrySize);
+                if (entriesCount == entryPositions.length) {
+                    entryPositions = Arrays.copyOf(entryPositions, entriesCount * 2);
                 }
+                entryPositions[entriesCount++] = (int) entryPosition;
                 writeKey(keyBytes, writeBuffer);
                 writeValue(valueBytes, writeBuffer);
-                writeBuffer.putInt(entrySize);
+                entryPosition += entrySize;
+            }
+            for (int i = 0; i < entriesCount; i++) {
+                writeBuffer = prepareWriteBuffer(channel, writeBuffer, BYTES_IN_INT);
+                writeBuffer.putInt(entryPositions[i]);
             }
+            writeBuffer = prepareWriteBuffer(channel, writeBuffer, BYTES_IN_INT);
+            writeBuffer.putInt(entriesCount);
             writeBuffer.flip();
             channel.write(writeBuffer);
             writeBuffer.clear();
         }
     }
 
+    private static ByteBuffer prepareWriteBuffer(FileChannel channel, ByteBuffer writeBuffer, int size)
+            throws IOException {
+        if (writeBuffer.position() + size <= writeBuffer.capacity()) {
+            return writeBuffer;
+        }
+        writeBuffer.flip();
+        channel.write(writeBuffer);
+        writeBuffer.clear();
+        return size > writeBuffer.capacity() ? ByteBuffer.allocate(size) : writeBuffer;
+    }
+
     /**
-     * Для лучшего понимаю См. Описание формата файла в PersistenceRangeDao.
-     * Все размер / длины ы в количественном измерении относительно char, то есть int это 4 айта
-     * Везде, где упоминается размер / длина, имеется в виду относительно char, а не байтов.
-     * left - левая граница,
-     * right - правая граница равная размеру файла минус размер числа,
-     * которое означает длину относящегося предыдущей записи
-     * Минусуем, чтобы гарантированно читать это число целиком.
-     * position - середина по размеру между left и right, (left + right) / 2;
-     * position после операции выше указывает на ту позицию относительно начала строки, на какую повезет,
-     * необязательно на начало. При этом ситуации когда идет "многократное попадание в одну и ту же entry не существует"
-     * Поэтому реализован гарантированный переход на начало следующей строки, для этого делается readline,
-     * Каждое entry начинается с новой строки ('\n' в исходном ключе и значении экранируется)
-     * Начало строки начинается всегда с размера прошлой строки, то есть прошлой entry
-     * плюс размера одного int(этого же число, но на прошлой строке)
-     * При этом left всегда указывает на начало строки, а right на конец (речь про разные строки / entry)
-     * Перед тем как переходить на position в середину, всегда ставиться метка в позиции left, то есть в начале строки
-     * Всегда идет проверка на случай если мы пополи на середину последней строки :
-     * position + readBytes(прочитанные байты с помощью readline) == right,
-     * Если равенство выполняется, то возвращаемся в конец последней строки -
-     * position ставим в left + BYTES_IN_INT (длина числа, размера предыдущей строки), readBytes обнуляем,
-     * дальше идет обычная обработка :
-     * Читаем ключ, значение (все равно придется его читать чтобы дойти до след ключа),
-     * сравниваем ключ, если он равен, то return
-     * Если текущий ключ меньше заданного, то читаем следующий
-     * Если следующего нет, то return null, так ищем границу сверху, а последний ключ меньше заданного
-     * Если этот следующий ключ меньше или равен заданному, то читаем его value и return
-     * В зависимости от результата сравнения left и right устанавливаем в начало или конец рассматриваемого ключа
-     * mark делается всегда в начале entry то есть в позиции left. В первом случае чтобы вернуться, как бы skip наоборот
-     * Во втором чтобы сделать peek для nextKey и была возможность просмотреть его и вернуться в его начало.
-     * В итоге идея следующая найти пару ключей, между которыми лежит исходный и вернуть второй или равный исходному,
-     * при этом не храня индексы для сдвигов ключей вовсе.
+     * Сравнивает key с ключом entry, начинающейся с entryPosition, так же как key.compareTo(ключ entry),
+     * но не создавая byte[] и String: UTF-8 ключа в файле декодируется посимвольно и сравнивается с char-ами key.
      */
-    public static BaseEntry<String> ceilKey(MappedByteBuffer byteBuffer, String key, ThreadLocal<Integer> position) {
-        long left = BYTES_IN_INT;
-        long right = (long) byteBuffer.capacity() - BYTES_IN_INT;
-        while (left < right) {
-            position.set((int) ((left + right) / 2));
-            int startPosition = position.get();
-            int leastPartOfLineLength = getLeastPartOfLineLength(byteBuffer, position);
-            int readBytes = leastPartOfLineLength + BYTES_IN_INT; // BYTES_IN_INT -> prevEntryLength
-            int prevEntryLength = byteBuffer.getInt(position.get());
-            position.set(position.get() + BYTES_IN_INT);
-            if (position.get() >= right) {
-                right = (long) startPosition + readBytes - prevEntryLength + 1;
-                readBytes = 0;
-                position.set((int) left);
-            }
-            String currentKey = readKey(byteBuffer, position);
-            String currentValue = readValue(byteBuffer, position);
-            int compareResult = key.compareTo(currentKey);
-            if (compareResult == 0) {
-                return new BaseEntry<>(currentKey, currentValue);
+    public static int compareKey(String key, ByteBuffer byteBuffer, int entryPosition) {
+        int position = entryPosition + BYTES_IN_INT;
+        int end = position + byteBuffer.getInt(entryPosition);
+        int charIndex = 0;
+        while (position < end) {
+            int b = byteBuffer.get(position);
+            int codePoint;
+            if (b >= 0) {
+                codePoint = b;
+                position += 1;
+            } else if ((b & 0xe0) == 0xc0) {
+                codePoint = (b & 0x1f) << 6 | byteBuffer.get(position + 1) & 0x3f;
+                position += 2;
+            } else if ((b & 0xf0) == 0xe0) {
+                codePoint = (b & 0x0f) << 12 | (byteBuffer.get(position + 1) & 0x3f) << 6
+                        | byteBuffer.get(position + 2) & 0x3f;
+                position += 3;
+            } else {
+                codePoint = (b & 0x07) << 18 | (byteBuffer.get(position + 1) & 0x3f) << 12
+                        | (byteBuffer.get(position + 2) & 0x3f) << 6 | byteBuffer.get(position + 3) & 0x3f;
+                position += 4;
             }
-            if (compareResult > 0) {
-                prevEntryLength = byteBuffer.getInt(position.get());
-                position.set(position.get() + BYTES_IN_INT);
-                if (isEnd(byteBuffer, position)) {
-                    return null;
-                }
-                String nextKey = readKey(byteBuffer, position);
-                if (key.compareTo(nextKey) <= 0) {
-                    return new BaseEntry<>(nextKey, readValue(byteBuffer, position));
+            if (Character.isBmpCodePoint(codePoint)) {
+                int compareResult = compareChar(key, charIndex++, (char) codePoint);
+                if (compareResult != 0) {
+                    return compareResult;
                 }
-                left = (long) startPosition + readBytes + prevEntryLength;
             } else {
-                right = (long) startPosition + readBytes;
+                int compareResult = compareChar(key, charIndex++, Character.highSurrogate(codePoint));
+                if (compareResult == 0) {
+                    compareResult = compareChar(key, charIndex++, Character.lowSurrogate(codePoint));
+                }
+                if (compareResult != 0) {
+                    return compareResult;
+                }
             }
         }
-        return left == 0 ? readEntry(byteBuffer, position) : null;
+        return key.length() - charIndex;
     }
 
-    private static int getLeastPartOfLineLength(MappedByteBuffer byteBuffer, ThreadLocal<Integer> position) {
-        int leastPartOfLineLength = 0;
-        int startPosition = position.get();
-        while (byteBuffer.get(startPosition + leastPartOfLineLength) != NEXT_LINE_BYTE) {
-            leastPartOfLineLength++;
-        }
-        position.set(startPosition + leastPartOfLineLength + 1);
-        return leastPartOfLineLength + 1;
+    private static int compareChar(String key, int charIndex, char c) {
+        // key короче и является префиксом ключа entry
+        return charIndex < key.length() ? Character.compare(key.charAt(charIndex), c) : -1;
+    }
+
+    public static int entriesCount(ByteBuffer byteBuffer) {
+        return byteBuffer.getInt(byteBuffer.limit() - BYTES_IN_INT);
+    }
+
+    public static int indexPosition(ByteBuffer byteBuffer, int entriesCount) {
+        return byteBuffer.limit() - BYTES_IN_INT - entriesCount * BYTES_IN_INT;
     }
 
-    public static boolean isEnd(ByteBuffer byteBuffer, ThreadLocal<Integer> position) {
-        return position.get() == byteBuffer.limit();
+    public static int entryPosition(ByteBuffer byteBuffer, int indexPosition, int entryIndex) {
+        return byteBuffer.getInt(indexPosition + entryIndex * BYTES_IN_INT);
     }
 
     public static MappedByteBuffer mapFile(Path path) throws IOException {
@@ -0,0 +1,59 @@
+package ok.dht.test.lutsenko.dao;
+
+import ok.dht.test.lutsenko.dao.common.BaseEntry;
+
+import java.nio.MappedByteBuffer;
+
+import static ok.dht.test.lutsenko.dao.DaoUtils.entryPosition;
+
+/**
+ * Курсор по одному файлу для одного запроса: позиция - индекс текущей entry в примитивном int.
+ * Создается на каждый запрос, поэтому не нужен ThreadLocal, и разные итераторы одного потока не мешают друг другу.
+ * Поиск сравнивает ключи прямо с байтами файла, объекты создаются только для возвращаемых entry.
+ */
+public class FileCursor {
+    public final int fileNumber;
+    private final MappedByteBuffer mappedByteBuffer;
+    private final int entriesCount;
+    private final int indexPosition;
+    private int entryIndex;
+
+    public FileCursor(FileInfo fileInfo) {
+        this.fileNumber = fileInfo.fileNumber;
+        this.mappedByteBuffer = fileInfo.mappedByteBuffer;
+        this.entriesCount = DaoUtils.entriesCount(mappedByteBuffer);
+        this.indexPosition = DaoUtils.indexPosition(mappedByteBuffer, entriesCount);
+    }
+
+    /**
+     * Переставляет курсор на первую entry с ключом больше или равным key (бинарный поиск по индексу смещений).
+     */
+    public void seek(String key) {
+        int left = 0;
+        int right = entriesCount;
+        while (left < right) {
+            int middle = (left + right) >>> 1;
+            int middleEntryPosition = entryPosition(mappedByteBuffer, indexPosition, middle);
+            if (DaoUtils.compareKey(key, mappedByteBuffer, middleEntryPosition) > 0) {
+                left = middle + 1;
+            } else {
+                right = middle;
+            }
+        }
+        entryIndex = left;
+    }
+
+    /**
+     * Возвращает entry под курсором и сдвигает его на следующую, null если entry закончились.
+     */
+    public BaseEntry<String> next() {
+        if (entryIndex == entriesCount) {
+            return null;
+        }
+        int entryPosition = entryPosition(mappedByteBuffer, indexPosition, entryIndex++);
+        return new BaseEntry<>(
+                DaoUtils.readKey(mappedByteBuffer, entryPosition),
+                DaoUtils.readValue(mappedByteBuffer, entryPosition)
+        );
+    }
+}
@@ -0,0 +1,104 @@
+package ok.dht.test.lutsenko.dao;
+
+import ok.dht.test.lutsenko.dao.common.BaseEntry;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+import static ok.dht.test.lutsenko.dao.DaoUtils.BYTES_IN_INT;
+import static ok.dht.test.lutsenko.dao.StringUtils.postprocess;
+
+/**
+ * Файлы прошлого формата (daoData*.txt):
+ * - 0 - Длина предыдущей entry для первой entry
+ * - В цикле для всех entry:
+ * - Длина ключа
+ * - Ключ ('\n' и '\\' экранированы)
+ * - EXISTING_MARK или DELETED_MARK
+ * - Длина значения и значение, если не равно null
+ * -'\n'
+ * - Длина всего записанного
+ * При открытии dao каждый такой файл один раз переписывается в новый формат под тем же номером.
+ * Новый файл пишется во временный и переименовывается, только после этого старый удаляется,
+ * поэтому если оба файла существуют, то новый уже записан полностью.
+ */
+public final class LegacyFormat {
+
+    public static final String LEGACY_DATA_FILE_EXTENSION = ".txt";
+    private static final int DELETED_MARK = 0;
+    private static final int EXISTING_MARK = 1;
+
+    private LegacyFormat() {
+    }
+
+    public static void migrate(Path basePath) throws IOException {
+        List<Path> legacyPaths;
+        try (Stream<Path> stream = Files.find(basePath, 1,
+                (p, a) -> a.isRegularFile() && p.getFileName().toString().endsWith(LEGACY_DATA_FILE_EXTENSION))) {
+            legacyPaths = stream.toList();
+        }
+        for (Path legacyPath : legacyPaths) {
+            String legacyFileName = legacyPath.getFileName().toString();
+            Path dataFilePath = legacyPath.resolveSibling(
+                    legacyFileName.substring(0, legacyFileName.length() - LEGACY_DATA_FILE_EXTENSION.length())
+                            + PersistenceRangeDao.DATA_FILE_EXTENSION
+            );
+            if (!Files.exists(dataFilePath)) {
+                Path tempPath = dataFilePath.resolveSibling(
+                        dataFilePath.getFileName() + PersistenceRangeDao.TEMP_FILE_EXTENSION
+                );
+                Files.deleteIfExists(tempPath);
+                MappedByteBuffer legacyBuffer = DaoUtils.mapFile(legacyPath);
+                try {
+                    DaoUtils.writeToFile(tempPath, entries(legacyBuffer));
+                } finally {
+                    DaoUtils.unmap(legacyBuffer);
+                }
+                Files.move(tempPath, dataFilePath, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.delete(legacyPath);
+        }
+    }
+
+    private static Iterator<BaseEntry<String>> entries(MappedByteBuffer byteBuffer) {
+        return new Iterator<>() {
+
+            private int position = BYTES_IN_INT; // Пропускаем 0 - длину предыдущей entry для первой entry
+
+            @Override
+            public boolean hasNext() {
+                return position < byteBuffer.limit();
+            }
+
+            @Override
+            public BaseEntry<String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int keyLength = byteBuffer.getInt(position);
+                byte[] keyBytes = new byte[keyLength];
+                byteBuffer.get(position + BYTES_IN_INT, keyBytes);
+                position += BYTES_IN_INT + keyLength;
+                byte[] valueBytes = null;
+                if (byteBuffer.getInt(position) == EXISTING_MARK) {
+                    valueBytes = new byte[byteBuffer.getInt(position + BYTES_IN_INT)];
+                    byteBuffer.get(position + BYTES_IN_INT + BYTES_IN_INT, valueBytes);
+                    position += BYTES_IN_INT + valueBytes.length;
+                } else if (byteBuffer.getInt(position) != DELETED_MARK) {
+                    throw new IllegalStateException("Unexpected mark at " + position);
+                }
+                position += BYTES_IN_INT // EXISTING_MARK или DELETED_MARK
+                        + 1 // '\n'
+                        + BYTES_IN_INT; // Длина всего записанного
+                return new BaseEntry<>(postprocess(keyBytes), postprocess(valueBytes));
+            }
+        };
+    }
+}
@@ -3,8 +3,8 @@ package ok.dht.test.lutsenko.dao;
 import ok.dht.test.lutsenko.dao.common.BaseEntry;
 
 import java.io.IOException;
-import java.nio.MappedByteBuffer;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -18,7 +18,7 @@ public class MergeIterator implements Iterator<BaseEntry<String>> {
 
     private final NavigableMap<String, BaseEntry<String>> tempData = new TreeMap<>();
     private final Map<String, Integer> tempDataPriorities = new HashMap<>();
-    private final Map<String, CopyOnWriteArrayList<FileInfo>> lastElementWithFilesMap = new HashMap<>();
+    private final Map<String, List<FileCursor>> lastElementWithFilesMap = new HashMap<>();
     private final List<Map.Entry<Path, FileInfo>> fileInfos = new CopyOnWriteArrayList<>();
     private final Iterator<BaseEntry<String>> inMemoryIterator;
     private final String to;
@@ -34,20 +34,21 @@ public class MergeIterator implements Iterator<BaseEntry<String>> {
         this.isFromNull = from == null;
         this.isToNull = to == null;
         this.fileInfos.addAll(dao.getFileInfosMap().entrySet());
-        int priority = 1;
         for (Map.Entry<Path, FileInfo> fileInfosMapEntry : fileInfos) {
-            fileInfosMapEntry.getValue().position.set(0);
-            MappedByteBuffer mappedByteBuffer = fileInfosMapEntry.getValue().mappedByteBuffer;
-            BaseEntry<String> firstEntry = isFromNull
-                    ? DaoUtils.readEntry(mappedByteBuffer, fileInfosMapEntry.getValue().position)
-                    : DaoUtils.ceilKey(mappedByteBuffer, from, fileInfosMapEntry.getValue().position);
+            FileCursor fileCursor = new FileCursor(fileInfosMapEntry.getValue());
+            if (!isFromNull) {
+                fileCursor.seek(from);
+            }
+            BaseEntry<String> firstEntry = fileCursor.next();
             if (firstEntry != null && (isToNull || firstEntry.key().compareTo(to) < 0)) {
-                tempData.put(firstEntry.key(), firstEntry);
-                tempDataPriorities.put(firstEntry.key(), priority);
+                Integer currentFileNumber = tempDataPriorities.get(firstEntry.key());
+                if (currentFileNumber == null || fileCursor.fileNumber > currentFileNumber) {
+                    tempData.put(firstEntry.key(), firstEntry);
+                    tempDataPriorities.put(firstEntry.key(), fileCursor.fileNumber);
+                }
                 lastElementWithFilesMap
-                        .computeIfAbsent(firstEntry.key(), files -> new CopyOnWriteArrayList<>())
-                        .add(fileInfosMapEntry.getValue());
-                priority++;
+                        .computeIfAbsent(firstEntry.key(), files -> new ArrayList<>())
+                        .add(fileCursor);
             }
         }
         if (includingMemory) {
@@ -107,23 +108,23 @@ public class MergeIterator implements Iterator<BaseEntry<String>> {
         }
     }
 
-    private void readNextFromFiles(List<FileInfo> filesToRead) throws IOException {
+    private void readNextFromFiles(List<FileCursor> filesToRead) throws IOException {
         if (filesToRead == null) {
             return;
         }
-        for (FileInfo fileInfo : filesToRead) {
-            BaseEntry<String> newEntry = DaoUtils.readEntry(fileInfo.mappedByteBuffer, fileInfo.position);
+        for (FileCursor fileCursor : filesToRead) {
+            BaseEntry<String> newEntry = fileCursor.next();
             if (newEntry == null) {
                 continue;
             }
             Integer currentFileNumber = tempDataPriorities.get(newEntry.key());
-            if (currentFileNumber == null || fileInfo.fileNumber > currentFileNumber) {
+            if (currentFileNumber == null || fileCursor.fileNumber > currentFileNumber) {
                 tempData.put(newEntry.key(), newEntry);
-                tempDataPriorities.put(newEntry.key(), fileInfo.fileNumber);
+                tempDataPriorities.put(newEntry.key(), fileCursor.fileNumber);
             }
             lastElementWithFilesMap
-                    .computeIfAbsent(newEntry.key(), files -> new CopyOnWriteArrayList<>())
-                    .add(fileInfo);
+                    .computeIfAbsent(newEntry.key(), files -> new ArrayList<>())
+                    .add(fileCursor);
         }
         lastElementWithFilesMap.remove(polledEntry.key());
     }
@@ -29,23 +29,24 @@ import static ok.dht.test.lutsenko.dao.DaoUtils.unmap;
 /**
  * ----------------------------------------------------------------------------------------------*
  * Описание формата файла.
- * - Минимальный ключ во всем файле
- * - Максимальный ключ во всем файле
- * - 0 - Длина предыдущей entry для первой entry
  * - В цикле для всех entry:
  * - Длина ключа
- * - Ключ
- * - EXISTING_MARK или DELETED_MARK
+ * - Ключ (байты UTF-8 как есть, без экранирования)
+ * - Длина значения или NULL_VALUE_LENGTH (-1), если значение равно null
  * - Значение, если не равно null
- * -'\n'
- * - Длина всего записанного + размер самого числа относительно типа char
+ * - Индекс: для всех entry смещение ее начала от начала файла (int)
+ * - Количество entry
+ * Количество пишется в конце, так как при записи из итератора оно заранее неизвестно.
+ * По нему находится начало индекса, а по индексу - любая entry, в том числе первая (минимальный ключ)
+ * и последняя (максимальный ключ), без чтения остальных.
  * Пример (пробелы и переносы строк для наглядности):
- * k2 k55
- * 0 2 k2 1 v2 '\n'
- * 10 3 k40 1 v40 '\n'
- * 12 3 k55 1 v5555 '\n'
- * 14 5 ka123 0 '\n'
- * 11
+ * 2 k2 2 v2
+ * 3 k40 3 v40
+ * 3 k55 5 v5555
+ * 5 ka123 -1
+ * 0 12 26 42
+ * 4
+ * Файлы прошлого формата переписываются в этот при открытии dao, см. LegacyFormat.
  * ----------------------------------------------------------------------------------------------*
  **/
 public class PersistenceRangeDao implements Dao<String, BaseEntry<String>> {
@@ -53,7 +54,7 @@ public class PersistenceRangeDao implements Dao<String, BaseEntry<String>> {
     public static final String DATA_FILE_NAME = "daoData";
     public static final String MEMORY_FILE_NAME = "memory";
     public static final String COMPACTION_FILE_NAME = "compaction";
-    public static final String DATA_FILE_EXTENSION = ".txt";
+    public static final String DATA_FILE_EXTENSION = ".dat";
     public static final String TEMP_FILE_EXTENSION = ".tmp";
     private final AtomicInteger tmpCounter = new AtomicInteger(0);
     private final AtomicInteger currentFileNumber = new AtomicInteger(0);
@@ -70,13 +71,14 @@ public class PersistenceRangeDao implements Dao<String, BaseEntry<String>> {
     public PersistenceRangeDao(DaoConfig daoConfig) throws IOException {
         this.daoConfig = daoConfig;
         memStorage = new MemStorage(daoConfig.flushThresholdBytes());
+        if (Files.exists(daoConfig.basePath())) {
+            LegacyFormat.migrate(daoConfig.basePath());
+        }
         try (Stream<Path> stream = Files.find(daoConfig.basePath(), 1,
                 (p, a) -> a.isRegularFile() && p.getFileName().toString().endsWith(DATA_FILE_EXTENSION))) {
             List<Path> paths = stream.toList();
             for (Path path : paths) {
-                ThreadLocal<Integer> position = new ThreadLocal<>();
-                position.set(0);
-                filesMap.put(path, new FileInfo(getFileNumber(path), mapFile(path), position));
+                filesMap.put(path, new FileInfo(getFileNumber(path), mapFile(path)));
             }
             currentFileNumber.set(filesMap.isEmpty() ? 0 : getFileNumber(filesMap.lastKey()) + 1);
         } catch (NoSuchFileException e) {
@@ -140,9 +142,7 @@ public class PersistenceRangeDao implements Dao<String, BaseEntry<String>> {
                 MappedByteBuffer mappedByteBuffer = mapFile(dataFilePath);
                 lock.writeLock().lock();
                 try {
-                    ThreadLocal<Integer> position = new ThreadLocal<>();
-                    position.set(0);
-                    filesMap.put(dataFilePath, new FileInfo(getFileNumber(dataFilePath), mappedByteBuffer, position));
+                    filesMap.put(dataFilePath, new FileInfo(getFileNumber(dataFilePath), mappedByteBuffer));
                     memStorage.clearFirstTable();
                 } finally {
                     lock.writeLock().unlock();
@@ -204,9 +204,7 @@ public class PersistenceRangeDao implements Dao<String, BaseEntry<String>> {
             }
             lock.writeLock().lock();
             try {
-                ThreadLocal<Integer> position = new ThreadLocal<>();
-                position.set(0);
-                filesMap.put(lastFilePath, new FileInfo(getFileNumber(lastFilePath), lastFileInputStream, position));
+                filesMap.put(lastFilePath, new FileInfo(getFileNumber(lastFilePath), lastFileInputStream));
                 for (Map.Entry<Path, FileInfo> filesMapEntry : compactionFileInfosMapEntries) {
                     filesMap.remove(filesMapEntry.getKey());
                     unmap(filesMapEntry.getValue().mappedByteBuffer);
@@ -7,6 +7,7 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
@@ -21,6 +22,7 @@ import ok.dht.ServiceConfig;
 import ok.dht.test.pashchenko.dao.Config;
 import ok.dht.test.pashchenko.dao.Entry;
 import ok.dht.test.pashchenko.dao.MemorySegmentDao;
+import ok.dht.test.pashchenko.dao.TooManyFlushesInBgException;
 import one.nio.http.HttpServer;
 import one.nio.http.HttpServerConfig;
 import one.nio.http.HttpSession;
@@ -33,6 +35,16 @@ import one.nio.util.Utf8;
 
 public class MyServer extends HttpServer {
     private static final Logger LOG = LoggerFactory.getLogger(MyServer.class);
+    // write stall lasted too long, client should slow down
+    private static final String RETRY_AFTER_HEADER = "Retry-After: 1";
+    private static final long ROW_CACHE_BYTES = 16L * 1024 * 1024;
+    // values are about 1KB, so the sstables keep only keys and references and compactions don't rewrite values
+    private static final long BLOB_THRESHOLD_BYTES = 512;
+    private static final double BLOB_GARBAGE_RATIO = 0.5;
+    private static final String ENTITY_PATH = "/v0/entity";
+    private static final String ENTITIES_PATH = "/v0/entities";
+    // range delete forwarded by another node, it is not sent further
+    private static final String LOCAL_ONLY_HEADER = "X-Local-Only";
 
     private final MemorySegmentDao dao;
     private final Executor executor;
@@ -43,7 +55,9 @@ public class MyServer extends HttpServer {
     public MyServer(ServiceConfig config) throws IOException {
         super(createConfigFromPort(config.selfPort()));
         this.config = config;
-        dao = new MemorySegmentDao(new Config(config.workingDir(), 1048576L));
+        dao = new MemorySegmentDao(new Config(config.workingDir(), 1048576L)
+                .withRowCache(ROW_CACHE_BYTES)
+                .withBlobs(BLOB_THRESHOLD_BYTES, BLOB_GARBAGE_RATIO));
         executor = Executors.newFixedThreadPool(16);
         client = HttpClient.newHttpClient();
 
@@ -64,7 +78,11 @@ public class MyServer extends HttpServer {
 
     @Override
     public void handleRequest(Request request, HttpSession session) throws IOException {
-        if (!"/v0/entity".equals(request.getPath())) {
+        if (ENTITIES_PATH.equals(request.getPath())) {
+            handleRangeRequest(request, session);
+            return;
+        }
+        if (!ENTITY_PATH.equals(request.getPath())) {
             session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
             return;
         }
@@ -116,6 +134,66 @@ public class MyServer extends HttpServer {
 
     }
 
+    // keys of the range are spread over the cluster, so range delete is sent to every node
+    private void handleRangeRequest(Request request, HttpSession session) throws IOException {
+        if (request.getMethod() != Request.METHOD_DELETE) {
+            session.sendResponse(new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            return;
+        }
+
+        String start = request.getParameter("start=");
+        String end = request.getParameter("end=");
+        if (start == null || start.isEmpty() || end == null || end.isEmpty()) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        byte[] from = Utf8.toBytes(start);
+        byte[] to = Utf8.toBytes(end);
+        if (Arrays.compareUnsigned(from, to) >= 0) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        boolean localOnly = request.getHeader(LOCAL_ONLY_HEADER + ":") != null;
+
+        executor.execute(() -> {
+            try {
+                session.sendResponse(deleteRange(request, from, to, localOnly));
+            } catch (Exception e) {
+                LOG.error("error handle range delete", e);
+                sendError(session);
+            }
+        });
+    }
+
+    private Response deleteRange(Request request, byte[] from, byte[] to, boolean localOnly)
+            throws IOException, InterruptedException {
+        try {
+            dao.delete(MemorySegment.ofArray(from), MemorySegment.ofArray(to));
+        } catch (TooManyFlushesInBgException e) {
+            LOG.warn("Write stall for range delete");
+            return writeStall();
+        }
+        if (localOnly) {
+            return new Response(Response.ACCEPTED, Response.EMPTY);
+        }
+
+        for (Node node : nodes) {
+            if (node.url.equals(config.selfUrl())) {
+                continue;
+            }
+            HttpRequest forwardRequest = HttpRequest.newBuilder(URI.create(node.url + request.getURI()))
+                    .header(LOCAL_ONLY_HEADER, "true")
+                    .DELETE()
+                    .build();
+            HttpResponse<byte[]> response = client.send(forwardRequest, HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() != HttpURLConnection.HTTP_ACCEPTED) {
+                LOG.warn("Range delete failed on {} with status {}", node.url, response.statusCode());
+                return new Response(Response.BAD_GATEWAY, Response.EMPTY);
+            }
+        }
+        return new Response(Response.ACCEPTED, Response.EMPTY);
+    }
+
     private Node getNodeForKey(String id) {
         int hash = Integer.MAX_VALUE;
         Node result = null;
@@ -177,6 +255,7 @@ public class MyServer extends HttpServer {
             case HttpURLConnection.HTTP_INTERNAL_ERROR -> Response.INTERNAL_ERROR;
             case HttpURLConnection.HTTP_NOT_IMPLEMENTED -> Response.NOT_IMPLEMENTED;
             case HttpURLConnection.HTTP_BAD_GATEWAY -> Response.BAD_GATEWAY;
+            case HttpURLConnection.HTTP_UNAVAILABLE -> Response.SERVICE_UNAVAILABLE;
             case HttpURLConnection.HTTP_GATEWAY_TIMEOUT -> Response.GATEWAY_TIMEOUT;
             default -> throw new IllegalArgumentException("Unknown status code: " + response.statusCode());
         };
@@ -184,6 +263,21 @@ public class MyServer extends HttpServer {
     }
 
     private Response handleRequest(Request request, String id) {
+        try {
+            return handleDaoRequest(request, id);
+        } catch (TooManyFlushesInBgException e) {
+            LOG.warn("Write stall for id {}", id);
+            return writeStall();
+        }
+    }
+
+    private static Response writeStall() {
+        Response response = new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY);
+        response.addHeader(RETRY_AFTER_HEADER);
+        return response;
+    }
+
+    private Response handleDaoRequest(Request request, String id) {
         switch (request.getMethod()) {
             case Request.METHOD_GET -> {
                 Entry entry = dao.get(MemorySegment.ofArray(Utf8.toBytes(id)));
@@ -214,6 +308,8 @@ public class MyServer extends HttpServer {
                 session.close();
             }
         }
+        LOG.info("Bloom filters: {}", dao.bloomFilterStats());
+        LOG.info("Row cache: {}", dao.rowCacheStats());
         try {
             dao.close();
         } catch (IOException e) {
@@ -0,0 +1,24 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+// entry read from an sstable which value is kept in a blob file, value is the slice of the mapped blob file
+// compaction writes the reference instead of the value unless the blob file is being collected (see BlobWriter)
+final class BlobEntry extends Entry {
+    private final long blobId;
+    private final long blobOffset;
+
+    BlobEntry(MemorySegment key, MemorySegment value, long blobId, long blobOffset) {
+        super(key, value);
+        this.blobId = blobId;
+        this.blobOffset = blobOffset;
+    }
+
+    long blobId() {
+        return blobId;
+    }
+
+    long blobOffset() {
+        return blobOffset;
+    }
+}
@@ -0,0 +1,120 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+// appends big values of the sstables being written to a blob file, sstables keep (blobId)(blobOffset)(valueSize)
+// file structure:
+// (fileVersion)|(value...)
+// values are neither framed nor indexed: a blob file is only read by the references and is not scanned
+// the file is created with the first value, so flushes and compactions without big values don't leave empty ones
+final class BlobWriter implements Closeable {
+
+    static final long VERSION = 0;
+    static final long HEADER_SIZE = Long.BYTES;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path path;
+    private final long id;
+    private final long thresholdBytes;
+    // blob files being collected: their values are written again here and the old files lose references
+    private final Set<Long> collectedBlobs;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+    private final MemorySegment bufferSegment = MemorySegment.ofByteBuffer(buffer);
+
+    private FileChannel channel;
+    private long offset;
+
+    BlobWriter(Path path, long id, long thresholdBytes, Set<Long> collectedBlobs) {
+        this.path = path;
+        this.id = id;
+        this.thresholdBytes = thresholdBytes;
+        this.collectedBlobs = collectedBlobs;
+    }
+
+    long id() {
+        return id;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    // true if the value of the entry is to be appended here
+    // values which are already in blob files keep their references, unless the file is collected
+    boolean accepts(Entry entry) {
+        if (entry.isTombstone()) {
+            return false;
+        }
+        if (entry instanceof BlobEntry blobEntry) {
+            return collectedBlobs.contains(blobEntry.blobId());
+        }
+        return thresholdBytes > 0 && entry.value().byteSize() >= thresholdBytes;
+    }
+
+    // offset of the value in the blob file
+    long append(MemorySegment value) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(
+                    path,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE
+            );
+            buffer.putLong(VERSION);
+            offset = HEADER_SIZE;
+        }
+
+        long valueOffset = offset;
+        long size = value.byteSize();
+        if (size > buffer.remaining()) {
+            flushBuffer();
+        }
+        if (size > BUFFER_SIZE) {
+            ByteBuffer valueBuffer = value.asByteBuffer();
+            while (valueBuffer.hasRemaining()) {
+                channel.write(valueBuffer);
+            }
+        } else {
+            bufferSegment.asSlice(buffer.position(), size).copyFrom(value);
+            buffer.position(buffer.position() + (int) size);
+        }
+        offset += size;
+        return valueOffset;
+    }
+
+    // syncs the file, it is supposed to be called before the sstables which refer to it are committed
+    // false if nothing is written, so there is no file
+    boolean finish() throws IOException {
+        if (channel == null) {
+            return false;
+        }
+        flushBuffer();
+        channel.force(false);
+        return true;
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
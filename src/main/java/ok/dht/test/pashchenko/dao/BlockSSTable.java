@@ -0,0 +1,406 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.LongFunction;
+
+// file structure:
+// (fileVersion)|(block...)|((blockOffset)...)|(filter)|(rangeTombstone...)|(blobReference...)|
+// (entryCount)(hasTombstones)(blockCount)(blockIndexOffset)(rangeTombstonesOffset)(blobReferencesOffset)
+// metadata is in the footer, so the file is written in one pass (see SSTableWriter)
+// files of VERSION_WITHOUT_BLOB_REFERENCES have neither blob references nor their offset in the footer
+// files of VERSION_WITHOUT_RANGE_TOMBSTONES have no range tombstones and their offset in the footer as well
+// files of VERSION_WITH_HEADER have the same metadata right after fileVersion and no footer:
+// (fileVersion)(entryCount)(hasTombstones)(blockCount)(blockIndexOffset)|(block...)|((blockOffset)...)|(filter)
+// block structure:
+// ((sharedKeySize/unsharedKeySize/valueSize/unsharedKey/value)...)|((restartOffset)...)(restartCount)
+// sizes and restart offsets are ints, valueSize is -1 for tombstones,
+// valueSize is -2 if the value is in a blob file, value is (blobId)(blobOffset)(valueSize) then
+// every restart entry (and so the first entry of every block) has sharedKeySize == 0
+// range tombstone structure:
+// (startSize)(endSize)(start)(end)
+// sizes are ints, range tombstones are sorted and don't overlap
+// blob reference structure:
+// (blobId)(referencedBytes)
+// total size of the values of the file kept in every blob file, it is the live part of the blob file
+class BlockSSTable extends SSTable {
+
+    static final long VERSION = 5;
+    static final long VERSION_WITHOUT_BLOB_REFERENCES = 4;
+    static final long VERSION_WITHOUT_RANGE_TOMBSTONES = 3;
+    static final long VERSION_WITH_HEADER = 2;
+    static final int ENTRY_HEADER_SIZE = Integer.BYTES * 3;
+    static final int TOMBSTONE = -1;
+    static final int BLOB_REFERENCE = -2;
+    static final int BLOB_REFERENCE_SIZE = Long.BYTES * 2 + Integer.BYTES;
+
+    private static final int METADATA_SIZE = Long.BYTES * 6;
+    private static final int METADATA_SIZE_WITHOUT_BLOB_REFERENCES = Long.BYTES * 5;
+    private static final int METADATA_SIZE_WITHOUT_RANGE_TOMBSTONES = Long.BYTES * 4;
+    private static final long ENTRY_COUNT_OFFSET = 0;
+    private static final long HAS_TOMBSTONES_OFFSET = Long.BYTES;
+    private static final long BLOCK_COUNT_OFFSET = Long.BYTES * 2;
+    private static final long BLOCK_INDEX_OFFSET = Long.BYTES * 3;
+    private static final long RANGE_TOMBSTONES_OFFSET = Long.BYTES * 4;
+    private static final long BLOB_REFERENCES_OFFSET = Long.BYTES * 5;
+
+    private final long metadataOffset;
+    private final long blockCount;
+    private final long blockIndexOffset;
+    // sparse index: the first key of every block
+    private final MemorySegment[] firstKeys;
+    // mapped blob files by id
+    private final LongFunction<MemorySegment> blobs;
+
+    BlockSSTable(
+            MemorySegment file,
+            BloomFilter filter,
+            Path path,
+            long id,
+            int level,
+            LongFunction<MemorySegment> blobs) {
+        super(file, filter, path, id, level);
+        this.blobs = blobs;
+        this.metadataOffset = metadataOffset(file);
+        this.blockCount = MemoryAccess.getLongAtOffset(file, metadataOffset + BLOCK_COUNT_OFFSET);
+        this.blockIndexOffset = MemoryAccess.getLongAtOffset(file, metadataOffset + BLOCK_INDEX_OFFSET);
+        this.firstKeys = new MemorySegment[(int) blockCount];
+        for (int i = 0; i < firstKeys.length; i++) {
+            firstKeys[i] = fullKeyAt(blockStart(i));
+        }
+    }
+
+    private static long metadataOffset(MemorySegment file) {
+        long fileVersion = MemoryAccess.getLongAtOffset(file, 0);
+        if (fileVersion == VERSION_WITH_HEADER) {
+            return Long.BYTES;
+        }
+        if (fileVersion == VERSION_WITHOUT_RANGE_TOMBSTONES) {
+            return file.byteSize() - METADATA_SIZE_WITHOUT_RANGE_TOMBSTONES;
+        }
+        if (fileVersion == VERSION_WITHOUT_BLOB_REFERENCES) {
+            return file.byteSize() - METADATA_SIZE_WITHOUT_BLOB_REFERENCES;
+        }
+        return file.byteSize() - METADATA_SIZE;
+    }
+
+    // filter section of the footer versions ends right before range tombstones (or the footer itself)
+    static MemorySegment withoutFooter(MemorySegment file) {
+        long metadataOffset = metadataOffset(file);
+        if (MemoryAccess.getLongAtOffset(file, 0) == VERSION_WITHOUT_RANGE_TOMBSTONES) {
+            return file.asSlice(0, metadataOffset);
+        }
+        return file.asSlice(0, MemoryAccess.getLongAtOffset(file, metadataOffset + RANGE_TOMBSTONES_OFFSET));
+    }
+
+    // range tombstones end where blob references start (or right before the footer)
+    private long rangeTombstonesEnd() {
+        if (MemoryAccess.getLongAtOffset(file, 0) == VERSION_WITHOUT_BLOB_REFERENCES) {
+            return metadataOffset;
+        }
+        return MemoryAccess.getLongAtOffset(file, metadataOffset + BLOB_REFERENCES_OFFSET);
+    }
+
+    @Override
+    protected RangeTombstones readRangeTombstones() {
+        long fileVersion = MemoryAccess.getLongAtOffset(file, 0);
+        if (fileVersion != VERSION && fileVersion != VERSION_WITHOUT_BLOB_REFERENCES) {
+            return RangeTombstones.EMPTY;
+        }
+        RangeTombstones result = RangeTombstones.EMPTY;
+        long offset = MemoryAccess.getLongAtOffset(file, metadataOffset + RANGE_TOMBSTONES_OFFSET);
+        long rangeTombstonesEnd = rangeTombstonesEnd();
+        while (offset < rangeTombstonesEnd) {
+            int startSize = MemoryAccess.getIntAtOffset(file, offset);
+            int endSize = MemoryAccess.getIntAtOffset(file, offset + Integer.BYTES);
+            offset += Integer.BYTES * 2;
+            MemorySegment start = file.asSlice(offset, startSize);
+            MemorySegment end = file.asSlice(offset + startSize, endSize);
+            offset += startSize + endSize;
+            result = result.union(RangeTombstones.of(start, end));
+        }
+        return result;
+    }
+
+    @Override
+    Map<Long, Long> blobReferences() {
+        if (MemoryAccess.getLongAtOffset(file, 0) != VERSION) {
+            return Map.of();
+        }
+        Map<Long, Long> result = new HashMap<>();
+        long offset = MemoryAccess.getLongAtOffset(file, metadataOffset + BLOB_REFERENCES_OFFSET);
+        for (; offset < metadataOffset; offset += Long.BYTES * 2) {
+            long blobId = MemoryAccess.getLongAtOffset(file, offset);
+            result.put(blobId, MemoryAccess.getLongAtOffset(file, offset + Long.BYTES));
+        }
+        return result;
+    }
+
+    @Override
+    long entryCount() {
+        return MemoryAccess.getLongAtOffset(file, metadataOffset + ENTRY_COUNT_OFFSET);
+    }
+
+    @Override
+    boolean hasTombstones() {
+        return MemoryAccess.getLongAtOffset(file, metadataOffset + HAS_TOMBSTONES_OFFSET) == 1;
+    }
+
+    private long blockStart(long block) {
+        return MemoryAccess.getLongAtOffset(file, blockIndexOffset + block * Long.BYTES);
+    }
+
+    private long blockEnd(long block) {
+        return block + 1 < blockCount ? blockStart(block + 1) : blockIndexOffset;
+    }
+
+    private int restartCount(long blockEnd) {
+        return MemoryAccess.getIntAtOffset(file, blockEnd - Integer.BYTES);
+    }
+
+    // restarts section goes right after the last entry of the block
+    private long restartsOffset(long blockEnd) {
+        return blockEnd - Integer.BYTES - (long) restartCount(blockEnd) * Integer.BYTES;
+    }
+
+    private long restartAt(long blockStart, long restartsOffset, int restart) {
+        return blockStart + MemoryAccess.getIntAtOffset(file, restartsOffset + (long) restart * Integer.BYTES);
+    }
+
+    private int sharedKeySize(long entryOffset) {
+        return MemoryAccess.getIntAtOffset(file, entryOffset);
+    }
+
+    private int unsharedKeySize(long entryOffset) {
+        return MemoryAccess.getIntAtOffset(file, entryOffset + Integer.BYTES);
+    }
+
+    private int valueSize(long entryOffset) {
+        return MemoryAccess.getIntAtOffset(file, entryOffset + Integer.BYTES * 2);
+    }
+
+    private MemorySegment unsharedKey(long entryOffset) {
+        return file.asSlice(entryOffset + ENTRY_HEADER_SIZE, unsharedKeySize(entryOffset));
+    }
+
+    // only valid for restart entries
+    private MemorySegment fullKeyAt(long entryOffset) {
+        return unsharedKey(entryOffset);
+    }
+
+    private Entry entryAt(MemorySegment key, long entryOffset) {
+        int valueSize = valueSize(entryOffset);
+        long valueOffset = entryOffset + ENTRY_HEADER_SIZE + unsharedKeySize(entryOffset);
+        if (valueSize == TOMBSTONE) {
+            return new Entry(key, null);
+        }
+        if (valueSize == BLOB_REFERENCE) {
+            long blobId = MemoryAccess.getLongAtOffset(file, valueOffset);
+            long blobOffset = MemoryAccess.getLongAtOffset(file, valueOffset + Long.BYTES);
+            int blobValueSize = MemoryAccess.getIntAtOffset(file, valueOffset + Long.BYTES * 2);
+            return new BlobEntry(key, blobs.apply(blobId).asSlice(blobOffset, blobValueSize), blobId, blobOffset);
+        }
+        return new Entry(key, file.asSlice(valueOffset, valueSize));
+    }
+
+    private long nextEntryOffset(long entryOffset) {
+        int valueSize = valueSize(entryOffset);
+        long valueOffset = entryOffset + ENTRY_HEADER_SIZE + unsharedKeySize(entryOffset);
+        return valueOffset + (valueSize == BLOB_REFERENCE ? BLOB_REFERENCE_SIZE : Math.max(valueSize, 0));
+    }
+
+    // the last block which first key is <= key, or -1
+    private int floorBlock(MemorySegment key) {
+        int left = 0;
+        int right = firstKeys.length - 1;
+        while (left <= right) {
+            int mid = (left + right) >>> 1;
+            if (MemorySegmentComparator.INSTANCE.compare(firstKeys[mid], key) <= 0) {
+                left = mid + 1;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return right;
+    }
+
+    // offset of the last restart entry which key is <= key
+    private long floorRestart(long blockStart, long restartsOffset, int restartCount, MemorySegment key) {
+        int left = 0;
+        int right = restartCount - 1;
+        while (left <= right) {
+            int mid = (left + right) >>> 1;
+            MemorySegment restartKey = fullKeyAt(restartAt(blockStart, restartsOffset, mid));
+            if (MemorySegmentComparator.INSTANCE.compare(restartKey, key) <= 0) {
+                left = mid + 1;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return restartAt(blockStart, restartsOffset, Math.max(right, 0));
+    }
+
+    @Override
+    protected MemorySegment firstKey() {
+        return firstKeys[0];
+    }
+
+    @Override
+    protected MemorySegment lastKey() {
+        Iterator<Entry> iterator = iterate(firstKeys[firstKeys.length - 1], null);
+        MemorySegment lastKey = null;
+        while (iterator.hasNext()) {
+            lastKey = iterator.next().key();
+        }
+        return lastKey;
+    }
+
+    @Override
+    Entry get(MemorySegment key) {
+        try {
+            int block = floorBlock(key);
+            if (block < 0) {
+                return null;
+            }
+            long blockStart = blockStart(block);
+            long blockEnd = blockEnd(block);
+            int restartCount = restartCount(blockEnd);
+            long restartsOffset = restartsOffset(blockEnd);
+
+            long offset = floorRestart(blockStart, restartsOffset, restartCount, key);
+            // keys are never materialized here: matched is the common prefix size of key and the previous entry key,
+            // which is always less than key
+            long matched = 0;
+            while (offset < restartsOffset) {
+                int shared = sharedKeySize(offset);
+                if (shared < matched) {
+                    // entry differs from the previous one earlier than the previous one differs from key
+                    return null;
+                }
+                if (shared == matched) {
+                    MemorySegment unsharedKey = unsharedKey(offset);
+                    MemorySegment keyRest = key.asSlice(matched);
+                    long mismatch = unsharedKey.mismatch(keyRest);
+                    if (mismatch == -1) {
+                        return entryAt(key, offset);
+                    }
+                    if (mismatch == keyRest.byteSize()) {
+                        return null;
+                    }
+                    if (mismatch < unsharedKey.byteSize() && Byte.compareUnsigned(
+                            MemoryAccess.getByteAtOffset(unsharedKey, mismatch),
+                            MemoryAccess.getByteAtOffset(keyRest, mismatch)) > 0) {
+                        return null;
+                    }
+                    matched += mismatch;
+                }
+                // shared > matched means entry is still less than key
+                offset = nextEntryOffset(offset);
+            }
+            return null;
+        } catch (IllegalStateException e) {
+            throw checkForClose(e);
+        }
+    }
+
+    @Override
+    Iterator<Entry> iterate(MemorySegment keyFrom, MemorySegment keyTo) {
+        try {
+            return new BlockIterator(keyFrom, keyTo);
+        } catch (IllegalStateException e) {
+            throw checkForClose(e);
+        }
+    }
+
+    private class BlockIterator implements Iterator<Entry> {
+        private final MemorySegment keyTo;
+
+        private int block;
+        private long offset;
+        private long restartsOffset;
+        private byte[] previousKey;
+        private Entry next;
+
+        BlockIterator(MemorySegment keyFrom, MemorySegment keyTo) {
+            this.keyTo = keyTo;
+            if (blockCount == 0) {
+                return;
+            }
+
+            block = keyFrom == null ? -1 : floorBlock(keyFrom);
+            if (block < 0) {
+                block = 0;
+                startBlock();
+            } else {
+                startBlock();
+                offset = floorRestart(blockStart(block), restartsOffset, restartCount(blockEnd(block)), keyFrom);
+            }
+
+            next = readNext();
+            while (next != null && keyFrom != null
+                    && MemorySegmentComparator.INSTANCE.compare(next.key(), keyFrom) < 0) {
+                next = readNext();
+            }
+        }
+
+        private void startBlock() {
+            offset = blockStart(block);
+            restartsOffset = restartsOffset(blockEnd(block));
+        }
+
+        private Entry readNext() {
+            if (offset >= restartsOffset) {
+                if (block + 1 >= blockCount) {
+                    return null;
+                }
+                block++;
+                startBlock();
+            }
+
+            int shared = sharedKeySize(offset);
+            MemorySegment unsharedKey = unsharedKey(offset);
+            byte[] key = new byte[shared + (int) unsharedKey.byteSize()];
+            if (shared > 0) {
+                System.arraycopy(previousKey, 0, key, 0, shared);
+            }
+            MemorySegment keySegment = MemorySegment.ofArray(key);
+            keySegment.asSlice(shared).copyFrom(unsharedKey);
+            previousKey = key;
+
+            if (keyTo != null && MemorySegmentComparator.INSTANCE.compare(keySegment, keyTo) >= 0) {
+                offset = restartsOffset;
+                block = (int) blockCount;
+                return null;
+            }
+
+            Entry entry = entryAt(keySegment, offset);
+            offset = nextEntryOffset(offset);
+            return entry;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry result = next;
+            try {
+                next = readNext();
+            } catch (IllegalStateException e) {
+                throw checkForClose(e);
+            }
+            return result;
+        }
+    }
+}
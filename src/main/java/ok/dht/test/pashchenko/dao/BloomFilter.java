@@ -0,0 +1,89 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+// filter section structure (at the very end of sstable):
+// ((word)...)(wordsCount)(hashFunctions)
+final class BloomFilter {
+
+    static final int BITS_PER_KEY = 10;
+    // ~ BITS_PER_KEY * ln(2), gives ~1% false positives
+    static final int HASH_FUNCTIONS = 7;
+    static final int TRAILER_SIZE = Long.BYTES * 2;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final MemorySegment words;
+    private final int hashFunctions;
+
+    private BloomFilter(MemorySegment words, int hashFunctions) {
+        this.words = words;
+        this.hashFunctions = hashFunctions;
+    }
+
+    static BloomFilter read(MemorySegment sstable) {
+        long trailerOffset = sstable.byteSize() - TRAILER_SIZE;
+        long wordsCount = MemoryAccess.getLongAtOffset(sstable, trailerOffset);
+        int hashFunctions = (int) MemoryAccess.getLongAtOffset(sstable, trailerOffset + Long.BYTES);
+        long wordsOffset = trailerOffset - wordsCount * Long.BYTES;
+        return new BloomFilter(sstable.asSlice(wordsOffset, wordsCount * Long.BYTES), hashFunctions);
+    }
+
+    static long byteSize(long entriesCount) {
+        return wordsCount(entriesCount) * Long.BYTES + TRAILER_SIZE;
+    }
+
+    // filter section is expected to be zeroed, the writer builds it in a fresh native segment
+    static void add(MemorySegment filter, long hash) {
+        MemorySegment words = filter.asSlice(0, filter.byteSize() - TRAILER_SIZE);
+        long bitsCount = words.byteSize() * Byte.SIZE;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = Long.remainderUnsigned(hash + i * h2, bitsCount);
+            long wordOffset = (bit >>> 6) * Long.BYTES;
+            long word = MemoryAccess.getLongAtOffset(words, wordOffset);
+            MemoryAccess.setLongAtOffset(words, wordOffset, word | (1L << bit));
+        }
+    }
+
+    static void writeTrailer(MemorySegment filter) {
+        long trailerOffset = filter.byteSize() - TRAILER_SIZE;
+        MemoryAccess.setLongAtOffset(filter, trailerOffset, trailerOffset / Long.BYTES);
+        MemoryAccess.setLongAtOffset(filter, trailerOffset + Long.BYTES, HASH_FUNCTIONS);
+    }
+
+    boolean mightContain(long hash) {
+        long bitsCount = words.byteSize() * Byte.SIZE;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < hashFunctions; i++) {
+            long bit = Long.remainderUnsigned(hash + i * h2, bitsCount);
+            long word = MemoryAccess.getLongAtOffset(words, (bit >>> 6) * Long.BYTES);
+            if ((word & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // FNV-1a with murmur3 finalizer, so both halves are usable for double hashing
+    static long hash(MemorySegment key) {
+        long hash = FNV_OFFSET_BASIS;
+        long size = key.byteSize();
+        for (long i = 0; i < size; i++) {
+            hash ^= MemoryAccess.getByteAtOffset(key, i) & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long wordsCount(long entriesCount) {
+        return Math.max(1, (entriesCount * BITS_PER_KEY + Long.SIZE - 1) / Long.SIZE);
+    }
+}
@@ -0,0 +1,32 @@
+package ok.dht.test.pashchenko.dao;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class BloomFilterStats {
+
+    // sstable probes skipped because filter ruled the key out
+    private final LongAdder hits = new LongAdder();
+    // filter said "maybe", but the key wasn't in the sstable
+    private final LongAdder falsePositives = new LongAdder();
+
+    void hit() {
+        hits.increment();
+    }
+
+    void falsePositive() {
+        falsePositives.increment();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long falsePositives() {
+        return falsePositives.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "BloomFilterStats{hits=" + hits() + ", falsePositives=" + falsePositives() + '}';
+    }
+}
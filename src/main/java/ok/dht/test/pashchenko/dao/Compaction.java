@@ -0,0 +1,267 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// single compaction step: inputs are replaced with their merge placed to outputLevel
+final class Compaction {
+
+    private static final Comparator<SSTable> BY_ID = Comparator.comparingLong(SSTable::id);
+
+    // older first
+    private final List<SSTable> inputs;
+    private final int outputLevel;
+    private final boolean dropTombstones;
+    // the only input can be just renamed to the output level
+    private final boolean trivialMove;
+    private final long targetFileSizeBytes;
+    // values of these blob files are moved to the blob file of the compaction
+    private final Set<Long> collectedBlobs;
+
+    private Compaction(
+            List<SSTable> inputs,
+            int outputLevel,
+            boolean dropTombstones,
+            boolean trivialMove,
+            long targetFileSizeBytes,
+            Set<Long> collectedBlobs) {
+        this.inputs = inputs;
+        this.outputLevel = outputLevel;
+        this.dropTombstones = dropTombstones;
+        this.trivialMove = trivialMove;
+        this.targetFileSizeBytes = targetFileSizeBytes;
+        this.collectedBlobs = collectedBlobs;
+    }
+
+    // null if storage doesn't need compaction
+    // every compaction collects the blob files which are mostly garbage by the way,
+    // and if nothing else is to be done, the sstable which refers to them most is compacted for that
+    static Compaction pick(Storage storage, Config config) {
+        Set<Long> collectedBlobs = storage.blobsToCollect(config.blobGarbageRatio());
+        Compaction compaction = config.compactionStrategy() == CompactionStrategy.TIERED
+                ? pickTiered(storage, config, collectedBlobs)
+                : pickLeveled(storage, config, collectedBlobs);
+        if (compaction == null && !collectedBlobs.isEmpty()) {
+            return pickBlobCollection(storage, config, collectedBlobs);
+        }
+        return compaction;
+    }
+
+    // everything into a single sorted run without tombstones
+    static Compaction major(Storage storage, Config config) {
+        Set<Long> collectedBlobs = storage.blobsToCollect(config.blobGarbageRatio());
+        int outputLevel = Math.max(1, storage.maxLevel());
+        if (config.compactionStrategy() == CompactionStrategy.TIERED) {
+            return new Compaction(storage.tables(), outputLevel, true, false, Long.MAX_VALUE, collectedBlobs);
+        }
+
+        // do not make the next automatic compactions push everything down level by level
+        long totalSize = 0;
+        for (SSTable sstable : storage.tables()) {
+            totalSize += sstable.byteSize();
+        }
+        int level = 1;
+        for (long levelSize = config.baseLevelSizeBytes(); levelSize < totalSize; level++) {
+            levelSize *= config.levelSizeMultiplier();
+        }
+        return new Compaction(
+                storage.tables(),
+                Math.max(outputLevel, level),
+                true,
+                false,
+                config.targetFileSizeBytes(),
+                collectedBlobs
+        );
+    }
+
+    private static Compaction pickLeveled(Storage storage, Config config, Set<Long> collectedBlobs) {
+        List<SSTable> level0 = storage.level(0);
+        if (level0.size() >= config.level0CompactionTrigger()) {
+            return leveled(storage, config, level0, 0, collectedBlobs);
+        }
+
+        long maxLevelSize = config.baseLevelSizeBytes();
+        for (int level = 1; level <= storage.maxLevel(); level++) {
+            List<SSTable> sstables = storage.level(level);
+            if (size(sstables) > maxLevelSize) {
+                // push the oldest data down first
+                SSTable oldest = sstables.stream().min(BY_ID).orElseThrow();
+                return leveled(storage, config, List.of(oldest), level, collectedBlobs);
+            }
+            maxLevelSize *= config.levelSizeMultiplier();
+        }
+        return null;
+    }
+
+    private static Compaction leveled(
+            Storage storage,
+            Config config,
+            List<SSTable> sstables,
+            int level,
+            Set<Long> collectedBlobs) {
+        MemorySegment from = null;
+        MemorySegment to = null;
+        // range tombstones are taken into account, so they never cover entries of the same run
+        for (SSTable sstable : sstables) {
+            if (sstable.lowerBound() == null) {
+                continue;
+            }
+            if (from == null || MemorySegmentComparator.INSTANCE.compare(sstable.lowerBound(), from) < 0) {
+                from = sstable.lowerBound();
+            }
+            if (to == null || MemorySegmentComparator.INSTANCE.compare(sstable.upperBound(), to) > 0) {
+                to = sstable.upperBound();
+            }
+        }
+
+        List<SSTable> inputs = new ArrayList<>();
+        if (from != null) {
+            for (SSTable sstable : storage.level(level + 1)) {
+                if (sstable.overlaps(from, to)) {
+                    inputs.add(sstable);
+                }
+            }
+        }
+        boolean trivialMove = inputs.isEmpty() && sstables.size() == 1 && sstables.get(0).lowerBound() != null;
+        List<SSTable> upper = new ArrayList<>(sstables);
+        upper.sort(BY_ID);
+        inputs.addAll(upper);
+
+        return new Compaction(
+                inputs,
+                level + 1,
+                storage.maxLevel() <= level + 1,
+                trivialMove,
+                config.targetFileSizeBytes(),
+                collectedBlobs
+        );
+    }
+
+    // the sstable is rewritten at its own level, so the bottom level doesn't go down every time
+    // level 0 sstables overlap, so they are pushed down all together as usual
+    // a tier is merged as a whole and goes to the next tier as pickTiered does: the output ids are taken
+    // while flushes add level 0 files, so the output must not stay among them
+    private static Compaction pickBlobCollection(Storage storage, Config config, Set<Long> collectedBlobs) {
+        SSTable referring = null;
+        long maxReferredBytes = 0;
+        for (SSTable sstable : storage.tables()) {
+            long referredBytes = 0;
+            for (Map.Entry<Long, Long> blobReference : sstable.blobReferences().entrySet()) {
+                if (collectedBlobs.contains(blobReference.getKey())) {
+                    referredBytes += blobReference.getValue();
+                }
+            }
+            if (referredBytes > maxReferredBytes) {
+                referring = sstable;
+                maxReferredBytes = referredBytes;
+            }
+        }
+        if (referring == null) {
+            // collected blob files are not referred at all, they are dropped after the next compaction
+            return null;
+        }
+
+        int level = referring.level();
+        if (config.compactionStrategy() == CompactionStrategy.TIERED) {
+            List<SSTable> inputs = new ArrayList<>(storage.level(level));
+            inputs.sort(BY_ID);
+            return new Compaction(
+                    inputs,
+                    level + 1,
+                    storage.maxLevel() == level,
+                    false,
+                    Long.MAX_VALUE,
+                    collectedBlobs
+            );
+        }
+        if (level == 0) {
+            return leveled(storage, config, storage.level(0), 0, collectedBlobs);
+        }
+        return new Compaction(
+                List.of(referring),
+                level,
+                storage.maxLevel() == level,
+                false,
+                config.targetFileSizeBytes(),
+                collectedBlobs
+        );
+    }
+
+    private static Compaction pickTiered(Storage storage, Config config, Set<Long> collectedBlobs) {
+        for (int level = 0; level <= storage.maxLevel(); level++) {
+            List<SSTable> tier = storage.level(level);
+            if (tier.size() >= config.level0CompactionTrigger()) {
+                List<SSTable> inputs = new ArrayList<>(tier);
+                inputs.sort(BY_ID);
+                return new Compaction(
+                        inputs,
+                        level + 1,
+                        storage.maxLevel() == level,
+                        false,
+                        Long.MAX_VALUE,
+                        collectedBlobs
+                );
+            }
+        }
+        return null;
+    }
+
+    private static long size(List<SSTable> sstables) {
+        long size = 0;
+        for (SSTable sstable : sstables) {
+            size += sstable.byteSize();
+        }
+        return size;
+    }
+
+    List<SSTable> inputs() {
+        return inputs;
+    }
+
+    int outputLevel() {
+        return outputLevel;
+    }
+
+    boolean isTrivialMove() {
+        return trivialMove;
+    }
+
+    long targetFileSizeBytes() {
+        return targetFileSizeBytes;
+    }
+
+    Set<Long> collectedBlobs() {
+        return collectedBlobs;
+    }
+
+    // entries deleted by range tombstones of the newer inputs are skipped
+    Iterator<Entry> merge(MemorySegment from, MemorySegment to) {
+        List<Iterator<Entry>> iterators = new ArrayList<>(Collections.nCopies(inputs.size(), null));
+        RangeTombstones newer = RangeTombstones.EMPTY;
+        for (int i = inputs.size() - 1; i >= 0; i--) {
+            SSTable input = inputs.get(i);
+            iterators.set(i, RangeTombstoneFilteringIterator.of(input::iterate, from, to, newer));
+            newer = newer.union(input.rangeTombstones());
+        }
+        Iterator<Entry> merged = MergeIterator.of(iterators, EntryKeyComparator.INSTANCE);
+        return dropTombstones ? new TombstoneFilteringIterator(merged) : merged;
+    }
+
+    // range tombstones of the output, they are dropped together with the others when nothing older is left
+    RangeTombstones rangeTombstones() {
+        RangeTombstones result = RangeTombstones.EMPTY;
+        if (!dropTombstones) {
+            for (SSTable input : inputs) {
+                result = result.union(input.rangeTombstones());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,8 @@
+package ok.dht.test.pashchenko.dao;
+
+public enum CompactionStrategy {
+    // levels 1+ are single sorted runs of non-overlapping sstables with exponentially growing size targets
+    LEVELED,
+    // every tier collects whole sstables, which are merged into one sstable of the next tier
+    TIERED
+}
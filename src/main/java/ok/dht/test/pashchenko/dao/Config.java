@@ -3,12 +3,179 @@ package ok.dht.test.pashchenko.dao;
 import java.nio.file.Path;
 
 public class Config {
+    private static final int DEFAULT_LEVEL0_COMPACTION_TRIGGER = 4;
+    private static final int DEFAULT_LEVEL_SIZE_MULTIPLIER = 10;
+    private static final long DEFAULT_WAL_SYNC_PERIOD_MILLIS = 100;
+    private static final int DEFAULT_MAX_FLUSHING_MEMTABLES = 4;
+    private static final long DEFAULT_WRITE_STALL_TIMEOUT_MILLIS = 1000;
+    private static final double DEFAULT_BLOB_GARBAGE_RATIO = 0.5;
+
     private final Path basePath;
     private final long flushThresholdBytes;
+    private final CompactionStrategy compactionStrategy;
+    private final int level0CompactionTrigger;
+    private final long baseLevelSizeBytes;
+    private final int levelSizeMultiplier;
+    private final long targetFileSizeBytes;
+    private final WalSyncMode walSyncMode;
+    private final long walSyncPeriodMillis;
+    private final int maxFlushingMemtables;
+    private final long writeStallTimeoutMillis;
+    private final long rowCacheBytes;
+    private final long blobThresholdBytes;
+    private final double blobGarbageRatio;
 
     public Config(Path basePath, long flushThresholdBytes) {
+        this(basePath, flushThresholdBytes, CompactionStrategy.LEVELED);
+    }
+
+    public Config(Path basePath, long flushThresholdBytes, CompactionStrategy compactionStrategy) {
+        this(
+                basePath,
+                flushThresholdBytes,
+                compactionStrategy,
+                DEFAULT_LEVEL0_COMPACTION_TRIGGER,
+                flushThresholdBytes * DEFAULT_LEVEL_SIZE_MULTIPLIER,
+                DEFAULT_LEVEL_SIZE_MULTIPLIER,
+                flushThresholdBytes * 2
+        );
+    }
+
+    public Config(
+            Path basePath,
+            long flushThresholdBytes,
+            CompactionStrategy compactionStrategy,
+            int level0CompactionTrigger,
+            long baseLevelSizeBytes,
+            int levelSizeMultiplier,
+            long targetFileSizeBytes) {
+        this(
+                basePath,
+                flushThresholdBytes,
+                compactionStrategy,
+                level0CompactionTrigger,
+                baseLevelSizeBytes,
+                levelSizeMultiplier,
+                targetFileSizeBytes,
+                WalSyncMode.BATCH,
+                DEFAULT_WAL_SYNC_PERIOD_MILLIS,
+                DEFAULT_MAX_FLUSHING_MEMTABLES,
+                DEFAULT_WRITE_STALL_TIMEOUT_MILLIS,
+                0,
+                0,
+                DEFAULT_BLOB_GARBAGE_RATIO
+        );
+    }
+
+    private Config(
+            Path basePath,
+            long flushThresholdBytes,
+            CompactionStrategy compactionStrategy,
+            int level0CompactionTrigger,
+            long baseLevelSizeBytes,
+            int levelSizeMultiplier,
+            long targetFileSizeBytes,
+            WalSyncMode walSyncMode,
+            long walSyncPeriodMillis,
+            int maxFlushingMemtables,
+            long writeStallTimeoutMillis,
+            long rowCacheBytes,
+            long blobThresholdBytes,
+            double blobGarbageRatio) {
         this.basePath = basePath;
         this.flushThresholdBytes = flushThresholdBytes;
+        this.compactionStrategy = compactionStrategy;
+        this.level0CompactionTrigger = level0CompactionTrigger;
+        this.baseLevelSizeBytes = baseLevelSizeBytes;
+        this.levelSizeMultiplier = levelSizeMultiplier;
+        this.targetFileSizeBytes = targetFileSizeBytes;
+        this.walSyncMode = walSyncMode;
+        this.walSyncPeriodMillis = walSyncPeriodMillis;
+        this.maxFlushingMemtables = maxFlushingMemtables;
+        this.writeStallTimeoutMillis = writeStallTimeoutMillis;
+        this.rowCacheBytes = rowCacheBytes;
+        this.blobThresholdBytes = blobThresholdBytes;
+        this.blobGarbageRatio = blobGarbageRatio;
+    }
+
+    // syncPeriodMillis is used by WalSyncMode.PERIODIC only
+    public Config withWalSyncMode(WalSyncMode syncMode, long syncPeriodMillis) {
+        return new Config(
+                basePath,
+                flushThresholdBytes,
+                compactionStrategy,
+                level0CompactionTrigger,
+                baseLevelSizeBytes,
+                levelSizeMultiplier,
+                targetFileSizeBytes,
+                syncMode,
+                syncPeriodMillis,
+                maxFlushingMemtables,
+                writeStallTimeoutMillis,
+                rowCacheBytes,
+                blobThresholdBytes,
+                blobGarbageRatio
+        );
+    }
+
+    public Config withWriteStall(int maxFlushingMemtables, long writeStallTimeoutMillis) {
+        return new Config(
+                basePath,
+                flushThresholdBytes,
+                compactionStrategy,
+                level0CompactionTrigger,
+                baseLevelSizeBytes,
+                levelSizeMultiplier,
+                targetFileSizeBytes,
+                walSyncMode,
+                walSyncPeriodMillis,
+                maxFlushingMemtables,
+                writeStallTimeoutMillis,
+                rowCacheBytes,
+                blobThresholdBytes,
+                blobGarbageRatio
+        );
+    }
+
+    // 0 disables the row cache
+    public Config withRowCache(long rowCacheBytes) {
+        return new Config(
+                basePath,
+                flushThresholdBytes,
+                compactionStrategy,
+                level0CompactionTrigger,
+                baseLevelSizeBytes,
+                levelSizeMultiplier,
+                targetFileSizeBytes,
+                walSyncMode,
+                walSyncPeriodMillis,
+                maxFlushingMemtables,
+                writeStallTimeoutMillis,
+                rowCacheBytes,
+                blobThresholdBytes,
+                blobGarbageRatio
+        );
+    }
+
+    // values of at least blobThresholdBytes are kept in blob files, sstables only refer to them, 0 disables that
+    // a blob file is rewritten by compaction when at least blobGarbageRatio of it is not referred anymore
+    public Config withBlobs(long blobThresholdBytes, double blobGarbageRatio) {
+        return new Config(
+                basePath,
+                flushThresholdBytes,
+                compactionStrategy,
+                level0CompactionTrigger,
+                baseLevelSizeBytes,
+                levelSizeMultiplier,
+                targetFileSizeBytes,
+                walSyncMode,
+                walSyncPeriodMillis,
+                maxFlushingMemtables,
+                writeStallTimeoutMillis,
+                rowCacheBytes,
+                blobThresholdBytes,
+                blobGarbageRatio
+        );
     }
 
     public Path basePath() {
@@ -18,4 +185,59 @@ public class Config {
     public long flushThresholdBytes() {
         return flushThresholdBytes;
     }
+
+    public CompactionStrategy compactionStrategy() {
+        return compactionStrategy;
+    }
+
+    // leveled: level 0 sstables count to start compaction into level 1
+    // tiered: sstables count in a tier to merge them into the next tier
+    public int level0CompactionTrigger() {
+        return level0CompactionTrigger;
+    }
+
+    // leveled only: target size of level 1, every next level is levelSizeMultiplier times bigger
+    public long baseLevelSizeBytes() {
+        return baseLevelSizeBytes;
+    }
+
+    public int levelSizeMultiplier() {
+        return levelSizeMultiplier;
+    }
+
+    // leveled only: compaction output is split into sstables of about this size
+    public long targetFileSizeBytes() {
+        return targetFileSizeBytes;
+    }
+
+    public WalSyncMode walSyncMode() {
+        return walSyncMode;
+    }
+
+    public long walSyncPeriodMillis() {
+        return walSyncPeriodMillis;
+    }
+
+    // full memtables which can wait for flush at the same time
+    public int maxFlushingMemtables() {
+        return maxFlushingMemtables;
+    }
+
+    // how long upsert waits for a flush when all the memtables are full
+    public long writeStallTimeoutMillis() {
+        return writeStallTimeoutMillis;
+    }
+
+    // heap budget of the cache of entries read from sstables
+    public long rowCacheBytes() {
+        return rowCacheBytes;
+    }
+
+    public long blobThresholdBytes() {
+        return blobThresholdBytes;
+    }
+
+    public double blobGarbageRatio() {
+        return blobGarbageRatio;
+    }
 }
@@ -0,0 +1,113 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+
+// read-only support of the files written before block format was introduced
+// file structure:
+// (fileVersion)(entryCount)(hasTombstones)((entryPosition)...)|((keySize/key/valueSize/value)...)|(filter)
+// filter section is absent in files of version 0
+class IndexedSSTable extends SSTable {
+
+    static final long VERSION = 1;
+    static final long VERSION_WITHOUT_FILTER = 0;
+
+    private static final int INDEX_HEADER_SIZE = Long.BYTES * 3;
+    private static final int INDEX_RECORD_SIZE = Long.BYTES;
+
+    IndexedSSTable(MemorySegment file, BloomFilter filter, Path path, long id, int level) {
+        super(file, filter, path, id, level);
+    }
+
+    private long greaterOrEqualEntryIndex(MemorySegment key, long noKeyIndex) {
+        if (key == null) {
+            return noKeyIndex;
+        }
+        long index = entryIndex(key);
+        if (index < 0) {
+            return ~index;
+        }
+        return index;
+    }
+
+    private long entryIndex(MemorySegment key) {
+        long recordsCount = entryCount();
+        long left = 0;
+        long right = recordsCount - 1;
+
+        while (left <= right) {
+            long mid = (left + right) >>> 1;
+
+            long keyPos = MemoryAccess.getLongAtOffset(file, INDEX_HEADER_SIZE + mid * INDEX_RECORD_SIZE);
+            long keySize = MemoryAccess.getLongAtOffset(file, keyPos);
+
+            MemorySegment keyForCheck = file.asSlice(keyPos + Long.BYTES, keySize);
+            int comparedResult = MemorySegmentComparator.INSTANCE.compare(key, keyForCheck);
+            if (comparedResult > 0) {
+                left = mid + 1;
+            } else if (comparedResult < 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return ~left;
+    }
+
+    private Entry entryAt(long keyIndex) {
+        try {
+            long offset = MemoryAccess.getLongAtOffset(file, INDEX_HEADER_SIZE + keyIndex * INDEX_RECORD_SIZE);
+            long keySize = MemoryAccess.getLongAtOffset(file, offset);
+            long valueOffset = offset + Long.BYTES + keySize;
+            long valueSize = MemoryAccess.getLongAtOffset(file, valueOffset);
+            return new Entry(
+                    file.asSlice(offset + Long.BYTES, keySize),
+                    valueSize == -1 ? null : file.asSlice(valueOffset + Long.BYTES, valueSize)
+            );
+        } catch (IllegalStateException e) {
+            throw checkForClose(e);
+        }
+    }
+
+    @Override
+    protected MemorySegment firstKey() {
+        return entryAt(0).key();
+    }
+
+    @Override
+    protected MemorySegment lastKey() {
+        return entryAt(entryCount() - 1).key();
+    }
+
+    @Override
+    Entry get(MemorySegment key) {
+        long keyFromPos = entryIndex(key);
+        return keyFromPos >= 0 ? entryAt(keyFromPos) : null;
+    }
+
+    @Override
+    Iterator<Entry> iterate(MemorySegment keyFrom, MemorySegment keyTo) {
+        long keyFromPos = greaterOrEqualEntryIndex(keyFrom, 0);
+        long keyToPos = greaterOrEqualEntryIndex(keyTo, entryCount());
+
+        return new Iterator<>() {
+            long pos = keyFromPos;
+
+            @Override
+            public boolean hasNext() {
+                return pos < keyToPos;
+            }
+
+            @Override
+            public Entry next() {
+                Entry entry = entryAt(pos);
+                pos++;
+                return entry;
+            }
+        };
+    }
+}
@@ -0,0 +1,231 @@
+package ok.dht.test.pashchenko.dao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+// append-only log of changes of the sstable set, the set is restored from it in one read on start
+// record structure:
+// (crc)(size)(edit)
+// edit is UTF-8 text, a line per change: +<file> <level> adds the file (or moves it to the level), -<file> removes it
+// crc covers the rest of the record, every record is appended and synced at once (or cut off if that fails),
+// so all changes of an edit (e.g. outputs and inputs of a compaction) are applied together or not at all
+// sstables which are not in the set are not committed yet (or already replaced) and are deleted on start
+final class Manifest implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Manifest.class);
+
+    private static final String FILE_NAME = "MANIFEST";
+    private static final String FILE_EXT_TMP = ".tmp";
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 2;
+    private static final String ADD_MARK = "+";
+    private static final String REMOVE_MARK = "-";
+    // the log is rewritten as a single snapshot record after that many edits, so it doesn't grow forever
+    private static final int MAX_EDITS = 1024;
+
+    private final Path path;
+    // guarded by this, file name -> level
+    private final Map<String, Integer> tables;
+    private FileChannel channel;
+    private int edits;
+    // end of the last committed record, a failed append is cut back to it
+    private long committedSize;
+    // a failed append could not be cut, so the log is replaced with a snapshot before the next edit
+    private boolean broken;
+
+    private Manifest(Path path, Map<String, Integer> tables) throws IOException {
+        this.path = path;
+        this.tables = new TreeMap<>(tables);
+        writeSnapshot(this.tables);
+    }
+
+    // file name -> level of every sstable in the set, null if there is no manifest yet
+    static Map<String, Integer> read(Path basePath) throws IOException {
+        Path path = basePath.resolve(FILE_NAME);
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        Map<String, Integer> tables = new TreeMap<>();
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(path));
+        CRC32C crc = new CRC32C();
+        while (log.remaining() >= RECORD_HEADER_SIZE) {
+            int start = log.position();
+            int checksum = log.getInt();
+            int size = log.getInt();
+            if (size < 0 || log.remaining() < size) {
+                break;
+            }
+            crc.reset();
+            crc.update(log.duplicate().position(start + Integer.BYTES).limit(log.position() + size));
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            apply(tables, new String(log.array(), log.position(), size, StandardCharsets.UTF_8));
+            log.position(log.position() + size);
+        }
+        if (log.hasRemaining()) {
+            // the last edit is torn by crash, so it is not committed
+            LOG.warn("{}: {} bytes at the end are skipped", path, log.remaining());
+        }
+        return tables;
+    }
+
+    // starts a new manifest with the given set as the only record
+    static Manifest create(Path basePath, Map<String, Integer> tables) throws IOException {
+        return new Manifest(basePath.resolve(FILE_NAME), tables);
+    }
+
+    private static void apply(Map<String, Integer> tables, String edit) {
+        for (String line : edit.split("\n")) {
+            if (line.startsWith(ADD_MARK)) {
+                int separator = line.lastIndexOf(' ');
+                tables.put(line.substring(1, separator), Integer.parseInt(line.substring(separator + 1)));
+            } else if (line.startsWith(REMOVE_MARK)) {
+                tables.remove(line.substring(1));
+            }
+        }
+    }
+
+    synchronized Map<String, Integer> tables() {
+        return Collections.unmodifiableMap(new TreeMap<>(tables));
+    }
+
+    // the edit is durable when the method returns, the set is changed only then
+    // a record which is not fully written and synced is cut off, otherwise replay would stop at it
+    // and drop all the edits committed after it
+    synchronized void commit(Edit edit) throws IOException {
+        String text = edit.toString();
+        if (broken || edits >= MAX_EDITS) {
+            Map<String, Integer> next = new TreeMap<>(tables);
+            apply(next, text);
+            writeSnapshot(next);
+            tables.clear();
+            tables.putAll(next);
+            return;
+        }
+
+        ByteBuffer record = record(text);
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            try {
+                channel.truncate(committedSize);
+                channel.force(false);
+            } catch (IOException truncateException) {
+                e.addSuppressed(truncateException);
+                broken = true;
+            }
+            throw e;
+        }
+        committedSize += record.limit();
+        edits++;
+        apply(tables, text);
+    }
+
+    // the snapshot is written aside and then replaces the log at once
+    private void writeSnapshot(Map<String, Integer> snapshotTables) throws IOException {
+        Edit snapshot = new Edit();
+        for (Map.Entry<String, Integer> table : snapshotTables.entrySet()) {
+            snapshot.add(table.getKey(), table.getValue());
+        }
+
+        ByteBuffer record = record(snapshot.toString());
+        Path tmpPath = path.resolveSibling(FILE_NAME + FILE_EXT_TMP);
+        try (FileChannel tmp = FileChannel.open(
+                tmpPath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (record.hasRemaining()) {
+                tmp.write(record);
+            }
+            tmp.force(true);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE);
+        // the rename itself is durable only when the directory is synced
+        forceDirectory(path.getParent());
+
+        // until the log is reopened the next edit has to write a snapshot again
+        broken = true;
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        committedSize = record.limit();
+        edits = 0;
+        broken = false;
+    }
+
+    private static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static ByteBuffer record(String edit) {
+        byte[] bytes = edit.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bytes.length);
+        record.putInt(0);
+        record.putInt(bytes.length);
+        record.put(bytes);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), Integer.BYTES, record.position() - Integer.BYTES);
+        record.putInt(0, (int) crc.getValue());
+        return record.flip();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    // changes applied by a single commit
+    static final class Edit {
+        private final List<String> lines = new ArrayList<>();
+
+        Edit add(Path file, int level) {
+            return add(file.getFileName().toString(), level);
+        }
+
+        Edit addAll(List<Path> files, int level) {
+            for (Path file : files) {
+                add(file, level);
+            }
+            return this;
+        }
+
+        private Edit add(String fileName, int level) {
+            lines.add(ADD_MARK + fileName + ' ' + level);
+            return this;
+        }
+
+        Edit remove(Path file) {
+            lines.add(REMOVE_MARK + file.getFileName());
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return String.join("\n", lines);
+        }
+    }
+}
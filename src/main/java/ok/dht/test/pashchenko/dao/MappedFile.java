@@ -0,0 +1,80 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// sstable or blob file mapped once and shared by all storage versions which contain it
+// every version holds a reference, the file is unmapped when the last one is released
+// and deleted then if it is not in the set anymore
+final class MappedFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFile.class);
+
+    private final Path path;
+    private final ResourceScope scope;
+    private final MemorySegment segment;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile boolean obsolete;
+
+    private MappedFile(Path path, ResourceScope scope, MemorySegment segment) {
+        this.path = path;
+        this.scope = scope;
+        this.segment = segment;
+    }
+
+    // cleaner unmaps the file if the versions are dropped without release
+    static MappedFile map(Path path, Cleaner cleaner) throws IOException {
+        ResourceScope scope = ResourceScope.newSharedScope(cleaner);
+        try {
+            MemorySegment segment = MemorySegment.mapFile(
+                    path,
+                    0,
+                    Files.size(path),
+                    FileChannel.MapMode.READ_ONLY,
+                    scope
+            );
+            return new MappedFile(path, scope, segment);
+        } catch (IOException | RuntimeException e) {
+            scope.close();
+            throw e;
+        }
+    }
+
+    MemorySegment segment() {
+        return segment;
+    }
+
+    // is supposed to be called by the holder of a reference, so the file can't be released meanwhile
+    void acquire() {
+        references.incrementAndGet();
+    }
+
+    void release() {
+        if (references.decrementAndGet() > 0) {
+            return;
+        }
+        scope.close();
+        if (obsolete) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // it is not in the manifest, so it is deleted on the next start anyway
+                LOG.warn("Can't delete {}", path, e);
+            }
+        }
+    }
+
+    // the file is replaced by compaction, it is deleted as soon as it is not read anymore
+    void markObsolete() {
+        obsolete = true;
+    }
+}
@@ -5,15 +5,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class MemorySegmentDao {
 
@@ -21,20 +30,72 @@ public class MemorySegmentDao {
 
     private static final MemorySegment VERY_FIRST_KEY = MemorySegment.ofArray(new byte[]{});
 
-    private final ReadWriteLock upsertLock = new ReentrantReadWriteLock();
-
-    private final ExecutorService executor = Executors.newSingleThreadExecutor(
-            r -> new Thread(r, "MemorySegmentDaoBG"));
+    // serializes state switches, upserts take it only to start a flush or to wait for a free flushing slot
+    private final Lock stateLock = new ReentrantLock();
+    // is signalled (under the state lock) every time a flushing memtable is saved
+    private final Condition memoryFlushed = stateLock.newCondition();
+    // the last flush submitted, guarded by the state lock
+    private Future<?> lastFlush = CompletableFuture.completedFuture(null);
+
+    // flushes and compactions run on their own threads, so a flush is never queued behind a long compaction
+    // flush thread is preferred, since upserts can stall waiting for it
+    private final ExecutorService flushExecutor = Executors.newSingleThreadExecutor(
+            r -> newThread(r, "MemorySegmentDaoFlush", Thread.MAX_PRIORITY));
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(
+            r -> newThread(r, "MemorySegmentDaoCompaction", Thread.MIN_PRIORITY));
+    // serializes changes of the sstable set: flushed sstables and compaction results are put to it one by one
+    private final Lock storageLock = new ReentrantLock();
+    // the sstable set, is changed under the storage lock
+    private final Manifest manifest;
+    // ids of new sstables, shared by flushes and compactions
+    private final AtomicLong sstableIds;
 
     private volatile State state;
 
     private final Config config;
+    private final BloomFilterStats bloomFilterStats = new BloomFilterStats();
+    private final WriteAheadLog wal;
+    // null if disabled
+    private final RowCache rowCache;
 
     public MemorySegmentDao(Config config) throws IOException {
         this.config = config;
-        this.state = State.newState(config, Storage.load(config));
+
+        this.manifest = Storage.recover(config);
+        Storage storage = Storage.load(config, manifest.tables(), bloomFilterStats);
+        WriteAheadLog.Replayed unflushed = WriteAheadLog.replay(config.basePath());
+        if (!unflushed.isEmpty()) {
+            List<Path> files = Storage.save(config, storage.nextId(), unflushed.entries(), unflushed.rangeTombstones());
+            manifest.commit(new Manifest.Edit().addAll(files, 0));
+            Storage previous = storage;
+            storage = storage.reload(config, manifest.tables());
+            previous.close();
+        }
+        WriteAheadLog.deleteSegments(config.basePath());
+        this.wal = new WriteAheadLog(config);
+        this.rowCache = config.rowCacheBytes() > 0 ? new RowCache(config.rowCacheBytes()) : null;
+        this.sstableIds = new AtomicLong(storage.nextId());
+
+        this.state = State.newState(config, storage);
+        scheduleCompaction();
+    }
+
+    private static Thread newThread(Runnable r, String name, int priority) {
+        Thread thread = new Thread(r, name);
+        thread.setPriority(priority);
+        return thread;
+    }
+
+    public BloomFilterStats bloomFilterStats() {
+        return bloomFilterStats;
     }
 
+    // null if row cache is disabled
+    public RowCacheStats rowCacheStats() {
+        return rowCache == null ? null : rowCache.stats();
+    }
+
+    // entries are valid until the iterator is exhausted
     public Iterator<Entry> get(MemorySegment from, MemorySegment to) {
         if (from == null) {
             from = VERY_FIRST_KEY;
@@ -43,109 +104,279 @@ public class MemorySegmentDao {
         return getTombstoneFilteringIterator(from, to);
     }
 
-    private TombstoneFilteringIterator getTombstoneFilteringIterator(MemorySegment from, MemorySegment to) {
-        State state = accessState();
+    private Iterator<Entry> getTombstoneFilteringIterator(MemorySegment from, MemorySegment to) {
+        State state = acquireState();
 
-        ArrayList<Iterator<Entry>> iterators = state.storage.iterate(from, to);
+        // every memtable and sstable skips entries deleted by range tombstones of the newer ones
+        List<Iterator<Entry>> memoryIterators = new ArrayList<>(Collections.nCopies(state.flushing.size(), null));
+        memoryIterators.add(state.memory.get(from, to));
+        RangeTombstones newer = state.memory.rangeTombstones();
+        for (int i = state.flushing.size() - 1; i >= 0; i--) {
+            Memory flushing = state.flushing.get(i);
+            memoryIterators.set(i, RangeTombstoneFilteringIterator.of(flushing::get, from, to, newer));
+            newer = newer.union(flushing.rangeTombstones());
+        }
 
-        iterators.add(state.flushing.get(from, to));
-        iterators.add(state.memory.get(from, to));
+        ArrayList<Iterator<Entry>> iterators;
+        try {
+            iterators = state.storage.iterate(from, to, newer);
+        } catch (RuntimeException e) {
+            state.storage.release();
+            throw e;
+        }
+        iterators.addAll(memoryIterators);
 
         Iterator<Entry> mergeIterator = MergeIterator.of(iterators, EntryKeyComparator.INSTANCE);
 
-        return new TombstoneFilteringIterator(mergeIterator);
+        return state.storage.releaseAfter(new TombstoneFilteringIterator(mergeIterator));
     }
 
     public Entry get(MemorySegment key) {
-        State state = accessState();
+        State state = acquireState();
+
+        // the version is taken before memtables are read: an upsert which is missed by them bumps it,
+        // then the value read from the storage is not cached even if it is stale
+        RowCache.Key cacheKey = rowCache == null ? null : new RowCache.Key(key);
+        long cacheVersion = rowCache == null ? 0 : rowCache.version(cacheKey);
 
-        Entry result = state.memory.get(key);
-        if (result == null) {
-            result = state.storage.get(key);
+        Entry result;
+        try {
+            result = state.memory.get(key);
+            for (int i = state.flushing.size() - 1; result == null && i >= 0; i--) {
+                result = state.flushing.get(i).get(key);
+            }
+            if (result == null) {
+                result = rowCache == null
+                        ? getStored(state.storage, key)
+                        : getCached(state.storage, key, cacheKey, cacheVersion);
+            }
+        } finally {
+            state.storage.release();
         }
 
         return (result == null || result.isTombstone()) ? null : result;
     }
 
+    // the state which storage is acquired, it is released by the caller
+    // storage is released only after the newer state is published, so the loop ends at the newer one
+    private State acquireState() {
+        while (true) {
+            State state = accessState();
+            if (state.storage.tryAcquire()) {
+                return state;
+            }
+            if (this.state == state) {
+                // failed flush closes storage without replacement
+                throw new StorageClosedException();
+            }
+        }
+    }
+
+    // the value is copied out of the mapped file, so it stays valid after the file is unmapped
+    private static Entry getStored(Storage storage, MemorySegment key) {
+        Entry entry = storage.get(key);
+        if (entry == null || entry.isTombstone()) {
+            return entry;
+        }
+        return new Entry(key, MemorySegment.ofArray(entry.value().toByteArray()));
+    }
+
+    private Entry getCached(Storage storage, MemorySegment key, RowCache.Key cacheKey, long version) {
+        Entry result = rowCache.get(cacheKey);
+        if (result != null) {
+            return result;
+        }
+        result = getStored(storage, key);
+        if (result != null) {
+            rowCache.put(cacheKey, result, version);
+        }
+        return result;
+    }
+
     public void upsert(Entry entry) {
-        State state = accessState();
+        write(memory -> {
+            WriteAheadLog.Position position = wal.append(entry);
+            boolean runFlush = memory.forSegment(position.segment()).put(entry, position.sequence());
+            if (rowCache != null) {
+                rowCache.invalidate(entry.key());
+            }
+            return runFlush;
+        });
+    }
+
+    // deletes all the keys in [from, to) with a single range tombstone
+    public void delete(MemorySegment from, MemorySegment to) {
+        if (MemorySegmentComparator.INSTANCE.compare(from, to) >= 0) {
+            throw new IllegalArgumentException("Empty range");
+        }
+        write(memory -> {
+            WriteAheadLog.Position position = wal.appendRangeTombstone(from, to);
+            boolean runFlush = memory.forSegment(position.segment()).delete(from, to, position.sequence());
+            if (rowCache != null) {
+                rowCache.invalidate(from, to);
+            }
+            return runFlush;
+        });
+    }
+
+    // writes are ordered by their log records: the memtable of the log segment is written,
+    // and range deletes remove only the entries logged before them (see Memory)
+    private void write(MemoryWrite write) {
+        awaitMemory();
 
         boolean runFlush;
-        // it is intentionally the read lock!!!
-        upsertLock.readLock().lock();
-        try {
-            runFlush = state.memory.put(entry.key(), entry);
-        } finally {
-            upsertLock.readLock().unlock();
+        while (true) {
+            Memory memory = accessState().memory;
+            int writer = memory.enterWrite();
+            if (writer == Memory.SEALED) {
+                // memtable is switched for flush right now, the new one is already published
+                Thread.onSpinWait();
+                continue;
+            }
+            try {
+                runFlush = write.apply(memory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                memory.exitWrite(writer);
+            }
+            break;
         }
 
         if (runFlush) {
-            flushInBg(false);
+            stateLock.lock();
+            try {
+                State state = accessState();
+                // otherwise the next upsert waits for room in awaitMemory()
+                if (state.memory.isOversized() && state.flushing.size() < config.maxFlushingMemtables()) {
+                    flushInBg(state);
+                }
+            } finally {
+                stateLock.unlock();
+            }
         }
     }
 
-    private Future<?> flushInBg(boolean tolerateFlushInProgress) {
-        upsertLock.writeLock().lock();
+    // write stall: if the memtable is full and all the flushing slots are taken, upserts wait for a flush
+    // and are rejected with TooManyFlushesInBgException when it takes longer than writeStallTimeoutMillis
+    private void awaitMemory() {
+        if (!accessState().memory.isOversized()) {
+            return;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.writeStallTimeoutMillis());
+        stateLock.lock();
         try {
             State state = accessState();
-            if (state.isFlushing()) {
-                if (tolerateFlushInProgress) {
-                    // or any other completed future
-                    return CompletableFuture.completedFuture(null);
-                }
+            if (!state.memory.isOversized()) {
+                return;
+            }
+            if (!awaitFlushingSlot(deadline)) {
                 throw new TooManyFlushesInBgException();
             }
-
-            state = state.prepareForFlush();
-            this.state = state;
+            // the lock is released while waiting, so another stalled writer could have switched the memtable
+            state = accessState();
+            if (state.memory.isOversized()) {
+                flushInBg(state);
+            }
         } finally {
-            upsertLock.writeLock().unlock();
+            stateLock.unlock();
         }
+    }
 
-        return executor.submit(() -> {
+    // the state lock is supposed to be held
+    // false if the memtable is still full and no flushing slot is freed until the deadline
+    private boolean awaitFlushingSlot(long deadline) {
+        while (accessState().memory.isOversized() && accessState().flushing.size() >= config.maxFlushingMemtables()) {
+            long timeout = deadline - System.nanoTime();
+            if (timeout <= 0) {
+                return false;
+            }
             try {
-                State state = accessState();
+                memoryFlushed.awaitNanos(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
 
-                Storage storage = state.storage;
-                Storage.save(config, storage, state.flushing.values());
-                Storage load = Storage.load(config);
+    // the state lock is supposed to be held and there should be a free flushing slot
+    private void flushInBg(State state) {
+        State next = state.prepareForFlush();
+        // records appended after the roll get to the new memtable, even if their writers entered the old one
+        state.memory.linkNext(next.memory);
+        Path flushingWal;
+        try {
+            flushingWal = wal.roll();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // new memtable is published before the old one is sealed, so upserts never wait for the switch
+        this.state = next;
+        state.memory.seal();
 
-                upsertLock.writeLock().lock();
+        // memtables are flushed one by one in the order they were queued, so the oldest one is always the first
+        lastFlush = flushExecutor.submit(() -> {
+            try {
+                Memory flushing = accessState().flushing.get(0);
+                flushing.awaitWriters();
+                List<Path> files = Storage.save(
+                        config,
+                        sstableIds.getAndIncrement(),
+                        flushing.values(),
+                        flushing.rangeTombstones()
+                );
+
+                Storage previous;
+                storageLock.lock();
                 try {
-                    this.state = state.afterFlush(load);
+                    // compaction could replace storage meanwhile, so the set is taken from the manifest again
+                    manifest.commit(new Manifest.Edit().addAll(files, 0));
+                    Storage load = this.state.storage.reload(config, manifest.tables());
+                    stateLock.lock();
+                    try {
+                        previous = this.state.storage;
+                        this.state = this.state.afterFlush(load);
+                        memoryFlushed.signalAll();
+                    } finally {
+                        stateLock.unlock();
+                    }
                 } finally {
-                    upsertLock.writeLock().unlock();
+                    storageLock.unlock();
                 }
-                storage.maybeClose();
+                Files.delete(flushingWal);
+                previous.close();
+                scheduleCompaction();
                 return null;
             } catch (Exception e) {
                 LOG.error("Can't flush", e);
-                try {
-                    this.state.storage.close();
-                } catch (IOException ex) {
-                    LOG.error("Can't stop storage", ex);
-                    ex.addSuppressed(e);
-                    throw ex;
-                }
+                this.state.storage.close();
                 throw e;
             }
         });
     }
 
     public void flush() throws IOException {
-        boolean runFlush;
-        // it is intentionally the read lock!!!
-        upsertLock.writeLock().lock();
+        Future<?> future;
+        stateLock.lock();
         try {
-            runFlush = state.memory.overflow();
+            State state = accessState();
+            if (!state.memory.isEmpty()) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.writeStallTimeoutMillis());
+                if (!awaitFlushingSlot(deadline)) {
+                    throw new TooManyFlushesInBgException();
+                }
+                flushInBg(accessState());
+            }
+            // flushes are done in order, so the last one completes after all the previous
+            future = lastFlush;
         } finally {
-            upsertLock.writeLock().unlock();
+            stateLock.unlock();
         }
 
-        if (runFlush) {
-            Future<?> future = flushInBg(true);
-            awaitAndUnwrap(future);
-        }
+        awaitAndUnwrap(future);
     }
 
     public void compact() throws IOException {
@@ -155,37 +386,69 @@ public class MemorySegmentDao {
             return;
         }
 
-        Future<Object> future = executor.submit(() -> {
+        Future<Object> future = compactionExecutor.submit(() -> {
             State state = accessState();
 
             if (state.memory.isEmpty() && state.storage.isCompacted()) {
                 return null;
             }
 
-            Storage.compact(
-                    config,
-                    () -> MergeIterator.of(
-                            state.storage.iterate(VERY_FIRST_KEY,
-                                    null
-                            ),
-                            EntryKeyComparator.INSTANCE
-                    )
-            );
+            runCompaction(Compaction.major(state.storage, config));
+            return null;
+        });
+
+        awaitAndUnwrap(future);
+    }
+
+    // automatic compaction steps are done one by one on the compaction thread
+    private void scheduleCompaction() {
+        try {
+            compactionExecutor.execute(this::compactInBg);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Dao is closing, compaction is skipped");
+        }
+    }
+
+    private void compactInBg() {
+        try {
+            State state = accessState();
+            Compaction compaction = Compaction.pick(state.storage, config);
+            if (compaction == null) {
+                return;
+            }
+            runCompaction(compaction);
+            scheduleCompaction();
+        } catch (Exception e) {
+            LOG.error("Can't compact", e);
+        }
+    }
 
-            Storage storage = Storage.load(config);
+    // inputs are merged without any lock, flushes are free to put new sstables to the set meanwhile:
+    // they only add level 0 files, which are not among the inputs, and their ids don't clash with the outputs
+    // inputs are not released meanwhile either: every version keeps them until this compaction is committed
+    private void runCompaction(Compaction compaction) throws IOException {
+        List<Path> outputs = Storage.compact(config, compaction, sstableIds::getAndIncrement);
 
-            upsertLock.writeLock().lock();
+        Storage previous;
+        storageLock.lock();
+        try {
+            Storage.commitCompaction(manifest, compaction, outputs);
+            Storage storage = this.state.storage.reload(config, manifest.tables())
+                    .dropUnreferencedBlobs(config, manifest);
+            stateLock.lock();
             try {
-                this.state = state.afterCompact(storage);
+                // memory could be switched by upserts meanwhile
+                previous = this.state.storage;
+                this.state = this.state.afterCompact(storage);
             } finally {
-                upsertLock.writeLock().unlock();
+                stateLock.unlock();
             }
+        } finally {
+            storageLock.unlock();
+        }
 
-            state.storage.maybeClose();
-            return null;
-        });
-
-        awaitAndUnwrap(future);
+        // inputs are unmapped and deleted when the readers of the previous version are done
+        previous.close();
     }
 
     private void awaitAndUnwrap(Future<?> future) throws IOException {
@@ -217,6 +480,38 @@ public class MemorySegmentDao {
         if (state.closed) {
             return;
         }
+        // flush is shut down first: flushes already queued still schedule compactions to follow them
+        shutdownAndAwait(flushExecutor);
+        shutdownAndAwait(compactionExecutor);
+        state = this.state;
+        state.storage.close();
+        this.state = state.afterClosed();
+        // upserts started before close are let to finish
+        state.memory.seal();
+        state.memory.awaitWriters();
+        wal.close();
+        // flushing memtables are left only if their flush failed, the log segments are their only copy
+        // if saving fails again, the segments are kept and replayed on the next start
+        List<Memory> unsaved = new ArrayList<>(state.flushing);
+        unsaved.add(state.memory);
+        for (Memory memory : unsaved) {
+            memory.awaitWriters();
+            if (memory.isEmpty()) {
+                continue;
+            }
+            List<Path> files = Storage.save(
+                    config,
+                    sstableIds.getAndIncrement(),
+                    memory.values(),
+                    memory.rangeTombstones()
+            );
+            manifest.commit(new Manifest.Edit().addAll(files, 0));
+        }
+        manifest.close();
+        WriteAheadLog.deleteSegments(config.basePath());
+    }
+
+    private static void shutdownAndAwait(ExecutorService executor) {
         executor.shutdown();
         try {
             //noinspection StatementWithEmptyBody
@@ -224,63 +519,22 @@ public class MemorySegmentDao {
         } catch (InterruptedException e) {
             throw new IllegalStateException(e);
         }
-        state = this.state;
-        state.storage.close();
-        this.state = state.afterClosed();
-        if (state.memory.isEmpty()) {
-            return;
-        }
-        Storage.save(config, state.storage, state.memory.values());
     }
 
-    private static class TombstoneFilteringIterator implements Iterator<Entry> {
-        private final Iterator<Entry> iterator;
-        private Entry current;
-
-        public TombstoneFilteringIterator(Iterator<Entry> iterator) {
-            this.iterator = iterator;
-        }
-
-        public Entry peek() {
-            return hasNext() ? current : null;
-        }
-
-        @Override
-        public boolean hasNext() {
-            if (current != null) {
-                return true;
-            }
-
-            while (iterator.hasNext()) {
-                Entry entry = iterator.next();
-                if (!entry.isTombstone()) {
-                    this.current = entry;
-                    return true;
-                }
-            }
-
-            return false;
-        }
-
-        @Override
-        public Entry next() {
-            if (!hasNext()) {
-                throw new NoSuchElementException("...");
-            }
-            Entry next = current;
-            current = null;
-            return next;
-        }
+    private interface MemoryWrite {
+        // returns true if memtable has just become oversized
+        boolean apply(Memory memory) throws IOException;
     }
 
     private static class State {
         final Config config;
         final Memory memory;
-        final Memory flushing;
+        // immutable memtables waiting for flush, the last is newer
+        final List<Memory> flushing;
         final Storage storage;
         final boolean closed;
 
-        State(Config config, Memory memory, Memory flushing, Storage storage) {
+        State(Config config, Memory memory, List<Memory> flushing, Storage storage) {
             this.config = config;
             this.memory = memory;
             this.flushing = flushing;
@@ -291,7 +545,7 @@ public class MemorySegmentDao {
         State(Config config, Storage storage, boolean closed) {
             this.config = config;
             this.memory = Memory.EMPTY;
-            this.flushing = Memory.EMPTY;
+            this.flushing = List.of();
             this.storage = storage;
             this.closed = closed;
         }
@@ -299,25 +553,26 @@ public class MemorySegmentDao {
         static State newState(Config config, Storage storage) {
             return new State(
                     config,
-                    new Memory(config.flushThresholdBytes()),
-                    Memory.EMPTY,
+                    new Memory(config.flushThresholdBytes(), 0),
+                    List.of(),
                     storage
             );
         }
 
         public State prepareForFlush() {
             checkNotClosed();
-            if (isFlushing()) {
-                throw new IllegalStateException("Already flushing");
-            }
+            List<Memory> newFlushing = new ArrayList<>(flushing.size() + 1);
+            newFlushing.addAll(flushing);
+            newFlushing.add(memory);
             return new State(
                     config,
-                    new Memory(config.flushThresholdBytes()),
-                    memory,
+                    new Memory(config.flushThresholdBytes(), memory.segment + 1),
+                    List.copyOf(newFlushing),
                     storage
             );
         }
 
+        // the oldest flushing memtable is saved to storage
         public State afterFlush(Storage storage) {
             checkNotClosed();
             if (!isFlushing()) {
@@ -326,7 +581,7 @@ public class MemorySegmentDao {
             return new State(
                     config,
                     memory,
-                    Memory.EMPTY,
+                    flushing.subList(1, flushing.size()),
                     storage
             );
         }
@@ -356,61 +611,279 @@ public class MemorySegmentDao {
         }
 
         public boolean isFlushing() {
-            return this.flushing != Memory.EMPTY;
+            return !flushing.isEmpty();
         }
     }
 
     private static class Memory {
 
-        static final Memory EMPTY = new Memory(-1);
-        private final AtomicLong size = new AtomicLong();
+        static final Memory EMPTY = new Memory(-1, -1);
+        static final int SEALED = -1;
+        // keys are spread over the shards by hash, so concurrent upserts rarely meet in the same skip list,
+        // writers and shard sizes are counted in striped cells, every cell takes its own cache line
+        private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+        private static final int CELL_LONGS = 16;
+
+        private final AtomicLongArray sizes = new AtomicLongArray(STRIPES * CELL_LONGS);
         private final AtomicBoolean oversized = new AtomicBoolean();
+        private final AtomicLongArray writers = new AtomicLongArray(STRIPES * CELL_LONGS);
+        private volatile boolean sealed;
+        // copy on write, range deletes are rare
+        private volatile RangeTombstones rangeTombstones = RangeTombstones.EMPTY;
+        // the same ranges with their sequence numbers, in the order they are applied
+        private volatile RangeDelete[] rangeDeletes = new RangeDelete[0];
 
-        private final ConcurrentSkipListMap<MemorySegment, Entry> delegate =
-                new ConcurrentSkipListMap<>(MemorySegmentComparator.INSTANCE);
+        private final List<ConcurrentSkipListMap<MemorySegment, Entry>> shards;
 
         private final long sizeThreshold;
+        // log segment of the memtable, every record of the segment gets here
+        private final long segment;
+        // the memtable of the next segment, it is linked before the log is rolled
+        private volatile Memory next;
 
-        Memory(long sizeThreshold) {
+        Memory(long sizeThreshold, long segment) {
             this.sizeThreshold = sizeThreshold;
+            this.segment = segment;
+            List<ConcurrentSkipListMap<MemorySegment, Entry>> shards = new ArrayList<>(STRIPES);
+            for (int i = 0; i < STRIPES; i++) {
+                shards.add(new ConcurrentSkipListMap<>(MemorySegmentComparator.INSTANCE));
+            }
+            this.shards = List.copyOf(shards);
         }
 
         public boolean isEmpty() {
-            return delegate.isEmpty();
+            if (!rangeTombstones.isEmpty()) {
+                return false;
+            }
+            for (ConcurrentSkipListMap<MemorySegment, Entry> shard : shards) {
+                if (!shard.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
         }
 
+        public RangeTombstones rangeTombstones() {
+            return rangeTombstones;
+        }
+
+        // shards are merged, so the entries are sorted as a single sstable needs
         public Collection<Entry> values() {
-            return delegate.values();
+            return new AbstractCollection<>() {
+                @Override
+                public Iterator<Entry> iterator() {
+                    return get(VERY_FIRST_KEY, null);
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (ConcurrentSkipListMap<MemorySegment, Entry> shard : shards) {
+                        size += shard.size();
+                    }
+                    return size;
+                }
+            };
+        }
+
+        // the writer stays in this memtable, so the newer ones are not flushed until it is done
+        public Memory forSegment(long logSegment) {
+            Memory memory = this;
+            while (memory.segment < logSegment) {
+                memory = memory.next;
+            }
+            return memory;
+        }
+
+        public void linkNext(Memory memory) {
+            next = memory;
+        }
+
+        // concurrent upserts of the same key are kept in the order of their log records
+        public boolean put(Entry entry, long sequence) {
+            if (sizeThreshold == -1) {
+                throw new UnsupportedOperationException("Read-only map");
+            }
+            MemorySegment key = entry.key();
+            SequencedEntry sequenced = new SequencedEntry(entry, sequence);
+            int shard = shardIndex(key);
+            ConcurrentSkipListMap<MemorySegment, Entry> map = shards.get(shard);
+            long sizeDelta = Storage.getSizeOnDisk(sequenced);
+            while (true) {
+                Entry previous = map.putIfAbsent(key, sequenced);
+                if (previous == null) {
+                    break;
+                }
+                if (((SequencedEntry) previous).sequence() > sequence) {
+                    return false;
+                }
+                if (map.replace(key, previous, sequenced)) {
+                    sizeDelta -= Storage.getSizeOnDisk(previous);
+                    break;
+                }
+            }
+            // a range delete logged after the entry could have passed its key already, see delete()
+            if (isDeletedLater(sequenced) && map.remove(key, sequenced)) {
+                sizeDelta -= Storage.getSizeOnDisk(sequenced);
+            }
+            return addSize(shard, sizeDelta);
         }
 
-        public boolean put(MemorySegment key, Entry entry) {
+        // range tombstone is published first, so older memtables and sstables are never visible in the range,
+        // then the entries logged before it are removed; the ones put after this scan check the range themselves
+        public boolean delete(MemorySegment from, MemorySegment to, long sequence) {
             if (sizeThreshold == -1) {
                 throw new UnsupportedOperationException("Read-only map");
             }
-            Entry segmentEntry = delegate.put(key, entry);
-            long sizeDelta = Storage.getSizeOnDisk(entry);
-            if (segmentEntry != null) {
-                sizeDelta -= Storage.getSizeOnDisk(segmentEntry);
+            synchronized (this) {
+                rangeTombstones = rangeTombstones.union(RangeTombstones.of(from, to));
+                RangeDelete[] deletes = Arrays.copyOf(rangeDeletes, rangeDeletes.length + 1);
+                deletes[deletes.length - 1] = new RangeDelete(from, to, sequence);
+                rangeDeletes = deletes;
+            }
+            boolean runFlush = false;
+            for (int shard = 0; shard < STRIPES; shard++) {
+                ConcurrentSkipListMap<MemorySegment, Entry> map = shards.get(shard);
+                long sizeDelta = 0;
+                Iterator<Entry> deleted = map.subMap(from, to).values().iterator();
+                while (deleted.hasNext()) {
+                    Entry entry = deleted.next();
+                    if (((SequencedEntry) entry).sequence() < sequence && map.remove(entry.key(), entry)) {
+                        sizeDelta -= Storage.getSizeOnDisk(entry);
+                    }
+                }
+                if (sizeDelta != 0) {
+                    runFlush |= addSize(shard, sizeDelta);
+                }
+            }
+            return addSize(shardIndex(from), RangeTombstones.sizeOnDisk(from, to)) || runFlush;
+        }
+
+        // the total is summed up only by the shards bigger than the average share of the threshold:
+        // at least one of them exists when the total is over it, so the memtable gets oversized
+        // at the latest with the next upsert to such a shard
+        private boolean addSize(int shard, long sizeDelta) {
+            long shardSize = sizes.addAndGet(shard * CELL_LONGS, sizeDelta);
+            if (shardSize <= sizeThreshold / STRIPES || oversized.get()) {
+                return false;
+            }
+            long size = 0;
+            for (int cell = 0; cell < sizes.length(); cell += CELL_LONGS) {
+                size += sizes.get(cell);
             }
-            long newSize = size.addAndGet(sizeDelta);
-            if (newSize > sizeThreshold) {
+            if (size > sizeThreshold) {
                 return !oversized.getAndSet(true);
             }
             return false;
         }
 
-        public boolean overflow() {
-            return !oversized.getAndSet(true);
+        // the entry is left only until its put removes it, it is not visible meanwhile
+        private boolean isDeletedLater(Entry entry) {
+            RangeDelete[] deletes = rangeDeletes;
+            if (deletes.length == 0) {
+                return false;
+            }
+            long sequence = ((SequencedEntry) entry).sequence();
+            for (RangeDelete delete : deletes) {
+                if (delete.sequence() > sequence && delete.covers(entry.key())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int shardIndex(MemorySegment key) {
+            return (int) BloomFilter.hash(key) & (STRIPES - 1);
+        }
+
+        public boolean isOversized() {
+            return oversized.get();
+        }
+
+        // returns the writer cell to pass to exitWrite() or SEALED if the memtable doesn't accept upserts anymore
+        // a writer either sees the seal or is seen by awaitWriters(), since both check after their own write
+        public int enterWrite() {
+            int cell = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * CELL_LONGS;
+            writers.getAndIncrement(cell);
+            if (sealed) {
+                writers.getAndDecrement(cell);
+                return SEALED;
+            }
+            return cell;
+        }
+
+        public void exitWrite(int cell) {
+            writers.getAndDecrement(cell);
+        }
+
+        public void seal() {
+            sealed = true;
+        }
+
+        // the memtable is supposed to be sealed, after return its content doesn't change
+        public void awaitWriters() {
+            for (int cell = 0; cell < writers.length(); cell += CELL_LONGS) {
+                while (writers.get(cell) != 0) {
+                    Thread.yield();
+                }
+            }
         }
 
+        // entries are valid until the iterator is exhausted
         public Iterator<Entry> get(MemorySegment from, MemorySegment to) {
-            return to == null
-                    ? delegate.tailMap(from).values().iterator()
-                    : delegate.subMap(from, to).values().iterator();
+            List<Iterator<Entry>> iterators = new ArrayList<>(STRIPES);
+            for (ConcurrentSkipListMap<MemorySegment, Entry> shard : shards) {
+                Iterator<Entry> iterator = to == null
+                        ? shard.tailMap(from).values().iterator()
+                        : shard.subMap(from, to).values().iterator();
+                if (iterator.hasNext()) {
+                    iterators.add(iterator);
+                }
+            }
+            Iterator<Entry> merged = MergeIterator.of(iterators, EntryKeyComparator.INSTANCE);
+            if (rangeDeletes.length == 0) {
+                return merged;
+            }
+            return new Iterator<>() {
+                private Entry next;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null && merged.hasNext()) {
+                        Entry entry = merged.next();
+                        if (!isDeletedLater(entry)) {
+                            next = entry;
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public Entry next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Entry result = next;
+                    next = null;
+                    return result;
+                }
+            };
         }
 
+        // tombstone is returned for the keys deleted by range tombstones
         public Entry get(MemorySegment key) {
-            return delegate.get(key);
+            Entry entry = shards.get(shardIndex(key)).get(key);
+            if (entry == null ? rangeTombstones.covers(key) : isDeletedLater(entry)) {
+                return new Entry(key, null);
+            }
+            return entry;
+        }
+
+        private record RangeDelete(MemorySegment from, MemorySegment to, long sequence) {
+            boolean covers(MemorySegment key) {
+                return MemorySegmentComparator.INSTANCE.compare(from, key) <= 0
+                        && MemorySegmentComparator.INSTANCE.compare(key, to) < 0;
+            }
         }
     }
 
@@ -2,14 +2,29 @@ package ok.dht.test.pashchenko.dao;
 
 import java.util.*;
 
+// k-way merge on a loser tree: every internal node keeps the loser of the match between its subtrees,
+// so when the winner advances only its path to the root is replayed (log k comparisons, no sifts)
+// tree[k + i] would be the leaf of iterator i, tree[1..k-1] are internal nodes, tree[0] is the overall winner
 public class MergeIterator<E> implements Iterator<E> {
 
-    private final PriorityQueue<IteratorWrapper<E>> iterators;
+    private final Iterator<E>[] iterators;
+    // cached current element of every iterator, null if it is exhausted
+    private final E[] heads;
+    private final int[] tree;
     private final Comparator<E> comparator;
 
-    private MergeIterator(PriorityQueue<IteratorWrapper<E>> iterators, Comparator<E> comparator) {
+    private MergeIterator(Iterator<E>[] iterators, Comparator<E> comparator) {
         this.iterators = iterators;
         this.comparator = comparator;
+        int k = iterators.length;
+        @SuppressWarnings("unchecked")
+        E[] initialHeads = (E[]) new Object[k];
+        this.heads = initialHeads;
+        for (int i = 0; i < k; i++) {
+            heads[i] = iterators[i].hasNext() ? iterators[i].next() : null;
+        }
+        this.tree = new int[k];
+        tree[0] = build(1);
     }
 
     // iterators are strictly ordered by comparator (previous element always < next element)
@@ -23,64 +38,78 @@ public class MergeIterator<E> implements Iterator<E> {
                 // Just go on
         }
 
-        PriorityQueue<IteratorWrapper<E>> queue = new PriorityQueue<>(iterators.size(), (o1, o2) -> {
-            int result = comparator.compare(o1.peek(), o2.peek());
-            if (result != 0) {
-                return result;
-            }
-            // reverse order
-            return Integer.compare(o2.index, o1.index);
-        });
+        @SuppressWarnings("unchecked")
+        Iterator<E>[] array = (Iterator<E>[]) iterators.toArray(new Iterator<?>[0]);
+        return new MergeIterator<>(array, comparator);
+    }
 
-        int index = 0;
-        for (Iterator<E> iterator : iterators) {
-            if (iterator.hasNext()) {
-                queue.add(new IteratorWrapper<>(index++, iterator));
-            }
+    // fills losers of the subtree and returns its winner
+    private int build(int node) {
+        int k = iterators.length;
+        if (node >= k) {
+            return node - k;
+        }
+        int left = build(2 * node);
+        int right = build(2 * node + 1);
+        if (beats(left, right)) {
+            tree[node] = right;
+            return left;
         }
+        tree[node] = left;
+        return right;
+    }
 
-        return new MergeIterator<>(queue, comparator);
+    // the smallest element wins, on equal elements the later iterator (newer data) wins
+    private boolean beats(int a, int b) {
+        E headA = heads[a];
+        E headB = heads[b];
+        if (headA == null) {
+            return false;
+        }
+        if (headB == null) {
+            return true;
+        }
+        int result = comparator.compare(headA, headB);
+        return result < 0 || (result == 0 && a > b);
+    }
+
+    // the winner has advanced, its path to the root is replayed
+    private void advanceWinner() {
+        int winner = tree[0];
+        Iterator<E> iterator = iterators[winner];
+        heads[winner] = iterator.hasNext() ? iterator.next() : null;
+
+        for (int node = (winner + iterators.length) >>> 1; node > 0; node >>>= 1) {
+            int loser = tree[node];
+            if (beats(loser, winner)) {
+                tree[node] = winner;
+                winner = loser;
+            }
+        }
+        tree[0] = winner;
     }
 
     @Override
     public boolean hasNext() {
-        return !iterators.isEmpty();
+        return heads[tree[0]] != null;
     }
 
     @Override
     public E next() {
-        IteratorWrapper<E> iterator = iterators.remove();
-        E next = iterator.next();
-
-        while (!iterators.isEmpty()) {
-            IteratorWrapper<E> candidate = iterators.peek();
-            if (comparator.compare(next, candidate.peek()) != 0) {
-                break;
-            }
-
-            iterators.remove();
-            candidate.next();
-            if (candidate.hasNext()) {
-                iterators.add(candidate);
-            }
+        E next = heads[tree[0]];
+        if (next == null) {
+            throw new NoSuchElementException();
         }
+        advanceWinner();
 
-        if (iterator.hasNext()) {
-            iterators.add(iterator);
+        // older versions of the same key are the next winners, they are skipped right away
+        E head = heads[tree[0]];
+        while (head != null && comparator.compare(next, head) == 0) {
+            advanceWinner();
+            head = heads[tree[0]];
         }
 
         return next;
     }
 
-    private static class IteratorWrapper<E> extends PeekIterator<E> {
-
-        final int index;
-
-        public IteratorWrapper(int index, Iterator<E> delegate) {
-            super(delegate);
-            this.index = index;
-        }
-
-    }
-
 }
@@ -0,0 +1,69 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// skips entries of memtable or sstables deleted by range tombstones of the newer ones
+// deleted ranges are not iterated over: the source is reopened right after the range instead
+class RangeTombstoneFilteringIterator implements Iterator<Entry> {
+
+    interface Source {
+        // keyFrom is inclusive, keyTo is exclusive (null means no upper bound)
+        Iterator<Entry> iterate(MemorySegment keyFrom, MemorySegment keyTo);
+    }
+
+    private final Source source;
+    private final MemorySegment keyTo;
+    private final RangeTombstones newer;
+
+    private Iterator<Entry> iterator;
+    private Entry next;
+
+    private RangeTombstoneFilteringIterator(
+            Source source,
+            MemorySegment keyFrom,
+            MemorySegment keyTo,
+            RangeTombstones newer) {
+        this.source = source;
+        this.keyTo = keyTo;
+        this.newer = newer;
+        this.iterator = source.iterate(keyFrom, keyTo);
+    }
+
+    static Iterator<Entry> of(Source source, MemorySegment keyFrom, MemorySegment keyTo, RangeTombstones newer) {
+        if (newer.isEmpty()) {
+            return source.iterate(keyFrom, keyTo);
+        }
+        return new RangeTombstoneFilteringIterator(source, keyFrom, keyTo, newer);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            int range = newer.find(entry.key());
+            if (range < 0) {
+                next = entry;
+                break;
+            }
+            MemorySegment rangeEnd = newer.end(range);
+            iterator = keyTo != null && MemorySegmentComparator.INSTANCE.compare(rangeEnd, keyTo) >= 0
+                    ? Collections.emptyIterator()
+                    : source.iterate(rangeEnd, keyTo);
+        }
+        return next != null;
+    }
+
+    @Override
+    public Entry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Entry result = next;
+        next = null;
+        return result;
+    }
+}
@@ -0,0 +1,124 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.util.Arrays;
+
+// immutable set of deleted key ranges [start, end), ranges are sorted, overlapping and adjacent ones are merged
+// range tombstones of memtable or sstable delete keys of the older memtables and sstables only:
+// entries of the same memtable are removed by the delete itself, so the ones left there are newer
+final class RangeTombstones {
+
+    static final RangeTombstones EMPTY = new RangeTombstones(new MemorySegment[0], new MemorySegment[0]);
+
+    private final MemorySegment[] starts;
+    private final MemorySegment[] ends;
+
+    private RangeTombstones(MemorySegment[] starts, MemorySegment[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    static RangeTombstones of(MemorySegment start, MemorySegment end) {
+        if (MemorySegmentComparator.INSTANCE.compare(start, end) >= 0) {
+            throw new IllegalArgumentException("Empty range");
+        }
+        return new RangeTombstones(new MemorySegment[]{start}, new MemorySegment[]{end});
+    }
+
+    static long sizeOnDisk(MemorySegment start, MemorySegment end) {
+        return Integer.BYTES * 2 + start.byteSize() + end.byteSize();
+    }
+
+    int size() {
+        return starts.length;
+    }
+
+    boolean isEmpty() {
+        return starts.length == 0;
+    }
+
+    MemorySegment start(int index) {
+        return starts[index];
+    }
+
+    MemorySegment end(int index) {
+        return ends[index];
+    }
+
+    // index of the range containing key, -1 if key is not deleted
+    int find(MemorySegment key) {
+        int left = 0;
+        int right = starts.length - 1;
+        while (left <= right) {
+            int mid = (left + right) >>> 1;
+            if (MemorySegmentComparator.INSTANCE.compare(starts[mid], key) <= 0) {
+                left = mid + 1;
+            } else {
+                right = mid - 1;
+            }
+        }
+        return right >= 0 && MemorySegmentComparator.INSTANCE.compare(key, ends[right]) < 0 ? right : -1;
+    }
+
+    boolean covers(MemorySegment key) {
+        return find(key) >= 0;
+    }
+
+    RangeTombstones union(RangeTombstones other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+
+        MemorySegment[] newStarts = new MemorySegment[size() + other.size()];
+        MemorySegment[] newEnds = new MemorySegment[newStarts.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size() || j < other.size()) {
+            boolean takeThis = j == other.size()
+                    || (i < size() && MemorySegmentComparator.INSTANCE.compare(starts[i], other.starts[j]) <= 0);
+            MemorySegment start = takeThis ? starts[i] : other.starts[j];
+            MemorySegment end = takeThis ? ends[i++] : other.ends[j++];
+            if (count > 0 && MemorySegmentComparator.INSTANCE.compare(start, newEnds[count - 1]) <= 0) {
+                if (MemorySegmentComparator.INSTANCE.compare(end, newEnds[count - 1]) > 0) {
+                    newEnds[count - 1] = end;
+                }
+                continue;
+            }
+            newStarts[count] = start;
+            newEnds[count] = end;
+            count++;
+        }
+        return new RangeTombstones(Arrays.copyOf(newStarts, count), Arrays.copyOf(newEnds, count));
+    }
+
+    // the part of ranges which lies in [from, to), null means no bound
+    RangeTombstones clip(MemorySegment from, MemorySegment to) {
+        if (isEmpty()) {
+            return this;
+        }
+        MemorySegment[] newStarts = new MemorySegment[size()];
+        MemorySegment[] newEnds = new MemorySegment[size()];
+        int count = 0;
+        for (int i = 0; i < size(); i++) {
+            MemorySegment start = starts[i];
+            MemorySegment end = ends[i];
+            if (from != null && MemorySegmentComparator.INSTANCE.compare(start, from) < 0) {
+                start = from;
+            }
+            if (to != null && MemorySegmentComparator.INSTANCE.compare(end, to) > 0) {
+                end = to;
+            }
+            if (MemorySegmentComparator.INSTANCE.compare(start, end) < 0) {
+                newStarts[count] = start;
+                newEnds[count] = end;
+                count++;
+            }
+        }
+        return new RangeTombstones(Arrays.copyOf(newStarts, count), Arrays.copyOf(newEnds, count));
+    }
+}
@@ -0,0 +1,224 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// size bounded cache of entries (tombstones too) read from storage, keys and values are copied to heap
+// every shard is a segmented LRU: new entries get to the probation segment and are promoted
+// to the protected one on the second hit, so a scan of cold keys can't wash hot keys out
+// upserts invalidate the key and bump the shard version, fills started before that are dropped
+final class RowCache {
+
+    private static final int SHARDS = 64;
+    // share of the shard budget taken by the protected segment
+    private static final int PROTECTED_PERCENT = 80;
+    // approximate heap footprint of node, key wrapper, entry, segments and arrays headers
+    private static final long ENTRY_OVERHEAD = 256;
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final RowCacheStats stats = new RowCacheStats();
+
+    RowCache(long capacityBytes) {
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(capacityBytes / SHARDS);
+        }
+    }
+
+    RowCacheStats stats() {
+        return stats;
+    }
+
+    Entry get(Key key) {
+        Entry entry = shard(key).get(key);
+        if (entry == null) {
+            stats.miss();
+        } else {
+            stats.hit();
+        }
+        return entry;
+    }
+
+    // is supposed to be taken before the memtable lookups which precede the storage lookup passed to put()
+    long version(Key key) {
+        return shard(key).version;
+    }
+
+    // value is supposed to be on heap already, not in a mapped file
+    void put(Key key, Entry entry, long version) {
+        shard(key).put(key, new Entry(MemorySegment.ofArray(key.bytes), entry.value()), version);
+    }
+
+    // is supposed to be called after the new entry is visible in memory
+    void invalidate(MemorySegment key) {
+        Key cacheKey = new Key(key);
+        shard(cacheKey).invalidate(cacheKey);
+    }
+
+    // is supposed to be called after the range tombstone is visible in memory
+    void invalidate(MemorySegment from, MemorySegment to) {
+        byte[] fromBytes = from.toByteArray();
+        byte[] toBytes = to.toByteArray();
+        for (Shard shard : shards) {
+            shard.invalidate(fromBytes, toBytes);
+        }
+    }
+
+    private Shard shard(Key key) {
+        return shards[key.hash & (SHARDS - 1)];
+    }
+
+    static final class Key {
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(MemorySegment key) {
+            this.bytes = key.toByteArray();
+            int h = Arrays.hashCode(bytes);
+            // the low bits choose the shard, the rest are used by the hash map
+            this.hash = h ^ (h >>> 16);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof Key other && hash == other.hash && Arrays.equals(bytes, other.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final class Shard {
+        private final long capacity;
+        private final long protectedCapacity;
+        private final Map<Key, Node> nodes = new HashMap<>();
+        // sentinels of circular lists, the most recently used entry is next to the sentinel
+        private final Node probation = new Node();
+        private final Node protectedSegment = new Node();
+        private long probationSize;
+        private long protectedSize;
+        // is changed under the shard lock, read without it
+        private volatile long version;
+
+        Shard(long capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = capacity * PROTECTED_PERCENT / 100;
+        }
+
+        synchronized Entry get(Key key) {
+            Node node = nodes.get(key);
+            if (node == null) {
+                return null;
+            }
+            node.unlink();
+            if (node.isProtected) {
+                node.linkAfter(protectedSegment);
+            } else {
+                probationSize -= node.size;
+                protectedSize += node.size;
+                node.isProtected = true;
+                node.linkAfter(protectedSegment);
+                // the least recently used protected entries get one more chance in probation
+                while (protectedSize > protectedCapacity) {
+                    Node demoted = protectedSegment.prev;
+                    demoted.unlink();
+                    demoted.isProtected = false;
+                    protectedSize -= demoted.size;
+                    probationSize += demoted.size;
+                    demoted.linkAfter(probation);
+                }
+            }
+            return node.entry;
+        }
+
+        synchronized void put(Key key, Entry entry, long expectedVersion) {
+            long size = ENTRY_OVERHEAD + key.bytes.length + (entry.isTombstone() ? 0 : entry.value().byteSize());
+            if (version != expectedVersion || size > capacity) {
+                return;
+            }
+            remove(key);
+            Node node = new Node(key, entry, size);
+            nodes.put(key, node);
+            node.linkAfter(probation);
+            probationSize += size;
+            while (probationSize + protectedSize > capacity) {
+                Node victim = probation.prev == probation ? protectedSegment.prev : probation.prev;
+                remove(victim.key);
+                stats.eviction();
+            }
+        }
+
+        synchronized void invalidate(Key key) {
+            version++;
+            remove(key);
+        }
+
+        // range deletes are rare, so the whole shard is scanned
+        synchronized void invalidate(byte[] from, byte[] to) {
+            version++;
+            nodes.values().removeIf(node -> {
+                byte[] key = node.key.bytes;
+                if (Arrays.compareUnsigned(key, from) < 0 || Arrays.compareUnsigned(key, to) >= 0) {
+                    return false;
+                }
+                unlink(node);
+                return true;
+            });
+        }
+
+        private void remove(Key key) {
+            Node node = nodes.remove(key);
+            if (node == null) {
+                return;
+            }
+            unlink(node);
+        }
+
+        private void unlink(Node node) {
+            node.unlink();
+            if (node.isProtected) {
+                protectedSize -= node.size;
+            } else {
+                probationSize -= node.size;
+            }
+        }
+    }
+
+    private static final class Node {
+        final Key key;
+        final Entry entry;
+        final long size;
+        boolean isProtected;
+        Node prev = this;
+        Node next = this;
+
+        // sentinel
+        Node() {
+            this(null, null, 0);
+        }
+
+        Node(Key key, Entry entry, long size) {
+            this.key = key;
+            this.entry = entry;
+            this.size = size;
+        }
+
+        void linkAfter(Node head) {
+            prev = head;
+            next = head.next;
+            head.next.prev = this;
+            head.next = this;
+        }
+
+        void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = this;
+            next = this;
+        }
+    }
+}
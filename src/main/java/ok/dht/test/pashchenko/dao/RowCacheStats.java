@@ -0,0 +1,49 @@
+package ok.dht.test.pashchenko.dao;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class RowCacheStats {
+
+    // storage lookups answered by the cache
+    private final LongAdder hits = new LongAdder();
+    // storage lookups which went to sstables
+    private final LongAdder misses = new LongAdder();
+    // entries pushed out by the size budget
+    private final LongAdder evictions = new LongAdder();
+
+    void hit() {
+        hits.increment();
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    void eviction() {
+        evictions.increment();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public double hitRate() {
+        long hits = hits();
+        long requests = hits + misses();
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "RowCacheStats{hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions()
+                + ", hitRate=" + hitRate() + '}';
+    }
+}
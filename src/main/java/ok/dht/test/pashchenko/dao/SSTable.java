@@ -0,0 +1,168 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+abstract class SSTable {
+
+    // every known file version starts with (fileVersion), all but the latest have (entryCount)(hasTombstones) next
+    private static final long ENTRY_COUNT_OFFSET = Long.BYTES;
+    private static final long HAS_TOMBSTONES_OFFSET = Long.BYTES * 2;
+
+    protected final MemorySegment file;
+    private final BloomFilter filter;
+    private final Path path;
+    private final long id;
+    private final int level;
+
+    // null for empty sstables
+    private MemorySegment minKey;
+    private MemorySegment maxKey;
+    private RangeTombstones rangeTombstones = RangeTombstones.EMPTY;
+    // keys affected by entries and range tombstones, both are inclusive, null if there are neither
+    private MemorySegment lowerBound;
+    private MemorySegment upperBound;
+
+    protected SSTable(MemorySegment file, BloomFilter filter, Path path, long id, int level) {
+        this.file = file;
+        this.filter = filter;
+        this.path = path;
+        this.id = id;
+        this.level = level;
+    }
+
+    // blobs are mapped blob files by id, values of the sstable can be there
+    static SSTable open(MemorySegment file, Path path, long id, int level, LongFunction<MemorySegment> blobs) {
+        SSTable sstable;
+        long fileVersion = MemoryAccess.getLongAtOffset(file, 0);
+        if (fileVersion == IndexedSSTable.VERSION_WITHOUT_FILTER) {
+            sstable = new IndexedSSTable(file, null, path, id, level);
+        } else if (fileVersion == IndexedSSTable.VERSION) {
+            sstable = new IndexedSSTable(file, BloomFilter.read(file), path, id, level);
+        } else if (fileVersion == BlockSSTable.VERSION_WITH_HEADER) {
+            sstable = new BlockSSTable(file, BloomFilter.read(file), path, id, level, blobs);
+        } else if (fileVersion == BlockSSTable.VERSION
+                || fileVersion == BlockSSTable.VERSION_WITHOUT_BLOB_REFERENCES
+                || fileVersion == BlockSSTable.VERSION_WITHOUT_RANGE_TOMBSTONES) {
+            MemorySegment withoutFooter = BlockSSTable.withoutFooter(file);
+            sstable = new BlockSSTable(file, BloomFilter.read(withoutFooter), path, id, level, blobs);
+        } else {
+            throw new IllegalStateException("Unknown file version: " + fileVersion);
+        }
+
+        if (sstable.entryCount() > 0) {
+            sstable.minKey = sstable.firstKey();
+            sstable.maxKey = sstable.lastKey();
+        }
+        sstable.lowerBound = sstable.minKey;
+        sstable.upperBound = sstable.maxKey;
+        RangeTombstones rangeTombstones = sstable.readRangeTombstones();
+        if (!rangeTombstones.isEmpty()) {
+            sstable.rangeTombstones = rangeTombstones;
+            MemorySegment start = rangeTombstones.start(0);
+            // end is exclusive, so the bound is a bit wider than needed
+            MemorySegment end = rangeTombstones.end(rangeTombstones.size() - 1);
+            if (sstable.lowerBound == null || MemorySegmentComparator.INSTANCE.compare(start, sstable.lowerBound) < 0) {
+                sstable.lowerBound = start;
+            }
+            if (sstable.upperBound == null || MemorySegmentComparator.INSTANCE.compare(end, sstable.upperBound) > 0) {
+                sstable.upperBound = end;
+            }
+        }
+        return sstable;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    // bigger id means fresher data within the same level
+    long id() {
+        return id;
+    }
+
+    int level() {
+        return level;
+    }
+
+    long byteSize() {
+        return file.byteSize();
+    }
+
+    boolean isEmpty() {
+        return minKey == null;
+    }
+
+    MemorySegment minKey() {
+        return minKey;
+    }
+
+    MemorySegment maxKey() {
+        return maxKey;
+    }
+
+    MemorySegment lowerBound() {
+        return lowerBound;
+    }
+
+    MemorySegment upperBound() {
+        return upperBound;
+    }
+
+    // range tombstones count too, both bounds are inclusive
+    boolean overlaps(MemorySegment from, MemorySegment to) {
+        return lowerBound != null
+                && MemorySegmentComparator.INSTANCE.compare(lowerBound, to) <= 0
+                && MemorySegmentComparator.INSTANCE.compare(upperBound, from) >= 0;
+    }
+
+    RangeTombstones rangeTombstones() {
+        return rangeTombstones;
+    }
+
+    // null for sstables written before filters were introduced
+    BloomFilter filter() {
+        return filter;
+    }
+
+    long entryCount() {
+        return MemoryAccess.getLongAtOffset(file, ENTRY_COUNT_OFFSET);
+    }
+
+    boolean hasTombstones() {
+        return MemoryAccess.getLongAtOffset(file, HAS_TOMBSTONES_OFFSET) == 1;
+    }
+
+    // only the latest file versions have range tombstones
+    protected RangeTombstones readRangeTombstones() {
+        return RangeTombstones.EMPTY;
+    }
+
+    // blob id -> total size of the values of this sstable in the blob file
+    // only the latest file version has values in blob files
+    Map<Long, Long> blobReferences() {
+        return Map.of();
+    }
+
+    protected abstract MemorySegment firstKey();
+
+    protected abstract MemorySegment lastKey();
+
+    abstract Entry get(MemorySegment key);
+
+    // keyFrom is inclusive, keyTo is exclusive (null means no upper bound)
+    abstract Iterator<Entry> iterate(MemorySegment keyFrom, MemorySegment keyTo);
+
+    protected RuntimeException checkForClose(IllegalStateException e) {
+        if (!file.scope().isAlive()) {
+            throw new StorageClosedException(e);
+        } else {
+            throw e;
+        }
+    }
+}
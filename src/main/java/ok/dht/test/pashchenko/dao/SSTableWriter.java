@@ -0,0 +1,254 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+// writes sstable in the block format (see BlockSSTable) in a single sequential pass:
+// entries are appended through a buffer, only block offsets and the filter are kept until the footer is written
+// filter is sized by the expected entry count, so it only gets less precise if there are more entries
+// values accepted by the blob writer go to the blob file, values already in blob files keep their references
+final class SSTableWriter implements Closeable {
+
+    static final int BLOCK_SIZE = 4 * 1024;
+    static final int RESTART_INTERVAL = 16;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+    private final MemorySegment bufferSegment = MemorySegment.ofByteBuffer(buffer);
+    private final ResourceScope filterScope = ResourceScope.newConfinedScope();
+    private final MemorySegment filter;
+    private final BlobWriter blobWriter;
+    // blob id -> size of the values referred by this sstable
+    private final Map<Long, Long> blobReferences = new TreeMap<>();
+
+    private long offset;
+    private long blockStart;
+    private int entriesInBlock;
+    private int[] restarts = new int[RESTART_INTERVAL];
+    private int restartCount;
+    private MemorySegment previousKey;
+
+    private long[] blockOffsets = new long[16];
+    private long entryCount;
+    private int blockCount;
+    private boolean hasTombstones;
+
+    SSTableWriter(Path path, long expectedEntries, BlobWriter blobWriter) throws IOException {
+        this.channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        );
+        this.filter = MemorySegment.allocateNative(BloomFilter.byteSize(expectedEntries), Long.BYTES, filterScope);
+        this.blobWriter = blobWriter;
+        putLong(BlockSSTable.VERSION);
+    }
+
+    static void write(
+            Iterator<Entry> entries,
+            RangeTombstones rangeTombstones,
+            long expectedEntries,
+            Path path,
+            BlobWriter blobWriter) throws IOException {
+        try (SSTableWriter writer = new SSTableWriter(path, expectedEntries, blobWriter)) {
+            while (entries.hasNext()) {
+                writer.add(entries.next());
+            }
+            writer.finish(rangeTombstones);
+        }
+    }
+
+    // upper bound: prefix compression and blob files are not taken into account
+    static long sizeOf(Entry entry) {
+        long size = BlockSSTable.ENTRY_HEADER_SIZE + entry.key().byteSize();
+        return entry.isTombstone() ? size : size + entry.value().byteSize();
+    }
+
+    // bytes written so far
+    long byteSize() {
+        return offset;
+    }
+
+    void add(Entry entry) throws IOException {
+        if (entriesInBlock > 0 && offset - blockStart >= BLOCK_SIZE) {
+            finishBlock();
+        }
+        if (entriesInBlock == 0) {
+            startBlock();
+        }
+
+        MemorySegment key = entry.key();
+        int shared = 0;
+        if (entriesInBlock % RESTART_INTERVAL == 0) {
+            addRestart();
+        } else {
+            shared = (int) previousKey.mismatch(key);
+            if (shared == -1) {
+                throw new IllegalArgumentException("Duplicate key");
+            }
+        }
+        MemorySegment unsharedKey = key.asSlice(shared);
+        MemorySegment value = entry.value();
+        long blobId = -1;
+        long blobOffset = 0;
+        if (blobWriter.accepts(entry)) {
+            blobId = blobWriter.id();
+            blobOffset = blobWriter.append(value);
+        } else if (entry instanceof BlobEntry blobEntry) {
+            blobId = blobEntry.blobId();
+            blobOffset = blobEntry.blobOffset();
+        }
+
+        putInt(shared);
+        putInt((int) unsharedKey.byteSize());
+        if (value == null) {
+            putInt(BlockSSTable.TOMBSTONE);
+        } else {
+            putInt(blobId == -1 ? (int) value.byteSize() : BlockSSTable.BLOB_REFERENCE);
+        }
+        put(unsharedKey);
+        if (blobId != -1) {
+            putLong(blobId);
+            putLong(blobOffset);
+            putInt((int) value.byteSize());
+            blobReferences.merge(blobId, value.byteSize(), Long::sum);
+        } else if (value != null) {
+            put(value);
+        }
+        BloomFilter.add(filter, BloomFilter.hash(key));
+
+        previousKey = key;
+        entriesInBlock++;
+        entryCount++;
+        if (value == null) {
+            hasTombstones = true;
+        }
+    }
+
+    private void startBlock() {
+        blockStart = offset;
+        if (blockCount == blockOffsets.length) {
+            blockOffsets = Arrays.copyOf(blockOffsets, blockOffsets.length * 2);
+        }
+        blockOffsets[blockCount++] = blockStart;
+    }
+
+    private void addRestart() {
+        if (restartCount == restarts.length) {
+            restarts = Arrays.copyOf(restarts, restarts.length * 2);
+        }
+        restarts[restartCount++] = (int) (offset - blockStart);
+    }
+
+    private void finishBlock() throws IOException {
+        for (int i = 0; i < restartCount; i++) {
+            putInt(restarts[i]);
+        }
+        putInt(restartCount);
+        entriesInBlock = 0;
+        restartCount = 0;
+    }
+
+    // writes the last block, block index, filter, range tombstones, blob references and footer and syncs the file
+    void finish(RangeTombstones rangeTombstones) throws IOException {
+        if (entriesInBlock > 0) {
+            finishBlock();
+        }
+        long blockIndexOffset = offset;
+        for (int i = 0; i < blockCount; i++) {
+            putLong(blockOffsets[i]);
+        }
+        BloomFilter.writeTrailer(filter);
+        put(filter);
+        long rangeTombstonesOffset = offset;
+        for (int i = 0; i < rangeTombstones.size(); i++) {
+            MemorySegment start = rangeTombstones.start(i);
+            MemorySegment end = rangeTombstones.end(i);
+            putInt((int) start.byteSize());
+            putInt((int) end.byteSize());
+            put(start);
+            put(end);
+        }
+        long blobReferencesOffset = offset;
+        for (Map.Entry<Long, Long> blobReference : blobReferences.entrySet()) {
+            putLong(blobReference.getKey());
+            putLong(blobReference.getValue());
+        }
+
+        putLong(entryCount);
+        putLong(hasTombstones ? 1 : 0);
+        putLong(blockCount);
+        putLong(blockIndexOffset);
+        putLong(rangeTombstonesOffset);
+        putLong(blobReferencesOffset);
+        flushBuffer();
+        channel.force(false);
+    }
+
+    private void putInt(int value) throws IOException {
+        ensureRemaining(Integer.BYTES);
+        buffer.putInt(value);
+        offset += Integer.BYTES;
+    }
+
+    private void putLong(long value) throws IOException {
+        ensureRemaining(Long.BYTES);
+        buffer.putLong(value);
+        offset += Long.BYTES;
+    }
+
+    private void put(MemorySegment data) throws IOException {
+        long size = data.byteSize();
+        if (size > BUFFER_SIZE) {
+            // big values go to file directly
+            flushBuffer();
+            ByteBuffer dataBuffer = data.asByteBuffer();
+            while (dataBuffer.hasRemaining()) {
+                channel.write(dataBuffer);
+            }
+        } else {
+            ensureRemaining((int) size);
+            bufferSegment.asSlice(buffer.position(), size).copyFrom(data);
+            buffer.position(buffer.position() + (int) size);
+        }
+        offset += size;
+    }
+
+    private void ensureRemaining(int size) throws IOException {
+        if (buffer.remaining() < size) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            filterScope.close();
+        }
+    }
+}
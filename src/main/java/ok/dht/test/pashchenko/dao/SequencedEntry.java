@@ -0,0 +1,18 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+// memtable entry with the sequence number of its log record, see WriteAheadLog.Position
+// the entries and range deletes of a memtable are ordered by it as the log replays them
+final class SequencedEntry extends Entry {
+    private final long sequence;
+
+    SequencedEntry(Entry entry, long sequence) {
+        super(entry.key(), entry.value());
+        this.sequence = sequence;
+    }
+
+    long sequence() {
+        return sequence;
+    }
+}
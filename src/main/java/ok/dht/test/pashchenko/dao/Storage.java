@@ -1,21 +1,33 @@
 package ok.dht.test.pashchenko.dao;
 
-import jdk.incubator.foreign.MemoryAccess;
 import jdk.incubator.foreign.MemorySegment;
-import jdk.incubator.foreign.ResourceScope;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.lang.ref.Cleaner;
-import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 class Storage implements Closeable {
 
@@ -32,140 +44,347 @@ class Storage implements Closeable {
         }
     });
 
-    private static final long VERSION = 0;
-    private static final int INDEX_HEADER_SIZE = Long.BYTES * 3;
-    private static final int INDEX_RECORD_SIZE = Long.BYTES;
+    private static final MemorySegment VERY_FIRST_KEY = MemorySegment.ofArray(new byte[]{});
 
+    // data<id>.dat, levels are kept in the manifest
+    // files written before the manifest was introduced have the level in the name: data<id>_L<level>.dat
     private static final String FILE_NAME = "data";
     private static final String FILE_EXT = ".dat";
+    private static final Pattern FILE_PATTERN = Pattern.compile(FILE_NAME + "(\\d+)(?:_L(\\d+))?\\.dat");
     private static final String FILE_EXT_TMP = ".tmp";
+    // blob<id>.blob, blob files are in the manifest too, their level is not used
+    // blob file written by a flush has the id of its sstable, compaction takes a new one from the same sequence
+    private static final String BLOB_FILE_NAME = "blob";
+    private static final String BLOB_FILE_EXT = ".blob";
+    private static final Pattern BLOB_FILE_PATTERN = Pattern.compile(BLOB_FILE_NAME + "(\\d+)\\.blob");
     private static final String COMPACTED_FILE = FILE_NAME + "_compacted_" + FILE_EXT;
+    // lines: +<compaction output> and -<compaction input>, the file existence means that compaction is committed
+    // it is written only by the versions before the manifest
+    private static final String COMPACTION_LOG = "compaction.log";
+    private static final String OUTPUT_MARK = "+";
+    private static final String INPUT_MARK = "-";
+
+    // recovers after crash, so it is called only on start
+    // files which are not in the set (not finished flushes, not committed compactions and their replaced inputs)
+    // are deleted, a directory without manifest gets one with the set of files found there
+    static Manifest recover(Config config) throws IOException {
+        Path basePath = config.basePath();
+        Map<String, Integer> tables = Manifest.read(basePath);
+        if (tables == null) {
+            tables = recoverWithoutManifest(config);
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(basePath)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                boolean dataFile = FILE_PATTERN.matcher(fileName).matches()
+                        || BLOB_FILE_PATTERN.matcher(fileName).matches();
+                boolean uncommitted = dataFile && !tables.containsKey(fileName);
+                if (uncommitted || fileName.endsWith(FILE_EXT_TMP)) {
+                    Files.delete(file);
+                }
+            }
+        }
+        return Manifest.create(basePath, tables);
+    }
 
-    static Storage load(Config config) throws IOException {
+    private static Map<String, Integer> recoverWithoutManifest(Config config) throws IOException {
         Path basePath = config.basePath();
-        Path compactedFile = config.basePath().resolve(COMPACTED_FILE);
+        Path compactedFile = basePath.resolve(COMPACTED_FILE);
         if (Files.exists(compactedFile)) {
             finishCompact(config, compactedFile);
         }
+        Path compactionLog = basePath.resolve(COMPACTION_LOG);
+        if (Files.exists(compactionLog)) {
+            finishCompaction(compactionLog);
+        }
 
-        ArrayList<MemorySegment> sstables = new ArrayList<>();
-        ResourceScope scope = ResourceScope.newSharedScope(CLEANER);
+        Map<String, Integer> tables = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(basePath)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                Matcher matcher = FILE_PATTERN.matcher(fileName);
+                if (matcher.matches()) {
+                    tables.put(fileName, matcher.group(2) == null ? 0 : Integer.parseInt(matcher.group(2)));
+                }
+            }
+        }
+        return tables;
+    }
 
-        // FIXME check existing files
-        for (int i = 0; ; i++) {
-            Path nextFile = basePath.resolve(FILE_NAME + i + FILE_EXT);
-            try {
-                sstables.add(mapForRead(scope, nextFile));
-            } catch (NoSuchFileException e) {
-                break;
+    // opens the given set of sstables: file name -> level
+    static Storage load(
+            Config config,
+            Map<String, Integer> tables,
+            BloomFilterStats bloomFilterStats) throws IOException {
+        return open(config, tables, Map.of(), bloomFilterStats);
+    }
+
+    // the next version of the set: files of this version are shared with it, only the new ones are mapped
+    // files which are not in the next version are deleted when this one is released by all its readers
+    // changes of the set are supposed to be serialized by the caller
+    Storage reload(Config config, Map<String, Integer> tables) throws IOException {
+        Storage next = open(config, tables, files, bloomFilterStats);
+        for (Map.Entry<String, MappedFile> file : files.entrySet()) {
+            if (!tables.containsKey(file.getKey())) {
+                file.getValue().markObsolete();
+            }
+        }
+        return next;
+    }
+
+    private static Storage open(
+            Config config,
+            Map<String, Integer> tables,
+            Map<String, MappedFile> mappedFiles,
+            BloomFilterStats bloomFilterStats) throws IOException {
+        List<SSTable> sstables = new ArrayList<>();
+        Map<String, MappedFile> files = new HashMap<>();
+        Map<Long, MemorySegment> blobs = new HashMap<>();
+        Map<Long, Path> blobPaths = new HashMap<>();
+        LongFunction<MemorySegment> blobResolver = blobId -> {
+            MemorySegment blob = blobs.get(blobId);
+            if (blob == null) {
+                throw new IllegalStateException("Blob file " + blobId + " is not in the set");
+            }
+            return blob;
+        };
+        try {
+            for (Map.Entry<String, Integer> table : tables.entrySet()) {
+                String fileName = table.getKey();
+                Matcher matcher = FILE_PATTERN.matcher(fileName);
+                Matcher blobMatcher = BLOB_FILE_PATTERN.matcher(fileName);
+                if (!matcher.matches() && !blobMatcher.matches()) {
+                    throw new IllegalStateException("Unexpected file in manifest: " + fileName);
+                }
+                Path path = config.basePath().resolve(fileName);
+                MappedFile file = mappedFiles.get(fileName);
+                if (file == null) {
+                    file = MappedFile.map(path, CLEANER);
+                } else {
+                    file.acquire();
+                }
+                files.put(fileName, file);
+                if (blobMatcher.matches()) {
+                    long blobId = Long.parseLong(blobMatcher.group(1));
+                    blobs.put(blobId, file.segment());
+                    blobPaths.put(blobId, path);
+                    continue;
+                }
+                long id = Long.parseLong(matcher.group(1));
+                sstables.add(SSTable.open(file.segment(), path, id, table.getValue(), blobResolver));
             }
+        } catch (IOException | RuntimeException e) {
+            for (MappedFile file : files.values()) {
+                file.release();
+            }
+            throw e;
         }
 
-        boolean hasTombstones = !sstables.isEmpty() && MemoryAccess.getLongAtOffset(sstables.get(0), 16) == 1;
-        return new Storage(scope, sstables, hasTombstones);
+        return new Storage(files, sstables, blobs, blobPaths, config.compactionStrategy(), bloomFilterStats);
     }
 
     // it is supposed that entries can not be changed externally during this method call
-    static void save(
+    // returns the sstable and its blob file if some values went there
+    // the files become a part of the set only when they are added to the manifest (see Manifest.Edit.addAll())
+    static List<Path> save(
             Config config,
-            Storage previousState,
-            Collection<Entry> entries) throws IOException {
-        int nextSSTableIndex = previousState.sstables.size();
-        Path sstablePath = config.basePath().resolve(FILE_NAME + nextSSTableIndex + FILE_EXT);
-        save(entries::iterator, sstablePath);
+            long id,
+            Collection<Entry> entries,
+            RangeTombstones rangeTombstones) throws IOException {
+        Path sstablePath = sstablePath(config, id);
+        try (BlobWriter blobWriter = new BlobWriter(blobPath(config, id), id, config.blobThresholdBytes(), Set.of())) {
+            SSTableWriter.write(entries.iterator(), rangeTombstones, entries.size(), sstablePath, blobWriter);
+            return blobWriter.finish() ? List.of(sstablePath, blobWriter.path()) : List.of(sstablePath);
+        }
     }
 
-    private static void save(
-            Data entries,
-            Path sstablePath
-    ) throws IOException {
-
-        Path sstableTmpPath = sstablePath.resolveSibling(sstablePath.getFileName().toString() + FILE_EXT_TMP);
+    private static Path sstablePath(Config config, long id) {
+        return config.basePath().resolve(FILE_NAME + id + FILE_EXT);
+    }
 
-        Files.deleteIfExists(sstableTmpPath);
-        Files.createFile(sstableTmpPath);
+    private static Path blobPath(Config config, long id) {
+        return config.basePath().resolve(BLOB_FILE_NAME + id + BLOB_FILE_EXT);
+    }
 
-        try (ResourceScope writeScope = ResourceScope.newConfinedScope()) {
-            long size = 0;
-            long entriesCount = 0;
-            boolean hasTombstone = false;
-            for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
-                Entry entry = iterator.next();
-                size += getSize(entry);
-                if (entry.isTombstone()) {
-                    hasTombstone = true;
-                }
-                entriesCount++;
-            }
+    private static Path tmpPath(Path path) {
+        return path.resolveSibling(path.getFileName().toString() + FILE_EXT_TMP);
+    }
 
-            long dataStart = INDEX_HEADER_SIZE + INDEX_RECORD_SIZE * entriesCount;
+    // id for the next sstable, every next flush or compaction output gets a bigger one
+    long nextId() {
+        return nextId;
+    }
 
-            MemorySegment nextSSTable = MemorySegment.mapFile(
-                            sstableTmpPath,
-                            0,
-                            dataStart + size,
-                            FileChannel.MapMode.READ_WRITE,
-                            writeScope
-            );
+    public static long getSizeOnDisk(Entry entry) {
+        return SSTableWriter.sizeOf(entry);
+    }
 
-            long index = 0;
-            long offset = dataStart;
-            for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
-                Entry entry = iterator.next();
-                MemoryAccess.setLongAtOffset(nextSSTable, INDEX_HEADER_SIZE + index * INDEX_RECORD_SIZE, offset);
+    // writes compaction output, it becomes visible only after commitCompaction()
+    // ids are taken from the same sequence as flushes use, so they never clash with the files flushed meanwhile
+    // values of the collected blob files and big values of the inputs written before blob files
+    // are moved to a single blob file of the compaction, it is the last output then
+    public static List<Path> compact(Config config, Compaction compaction, LongSupplier ids) throws IOException {
+        if (compaction.isTrivialMove()) {
+            return List.of();
+        }
 
-                offset += writeRecord(nextSSTable, offset, entry.key());
-                offset += writeRecord(nextSSTable, offset, entry.value());
+        long blobId = ids.getAsLong();
+        try (BlobWriter blobWriter = new BlobWriter(
+                blobPath(config, blobId),
+                blobId,
+                config.blobThresholdBytes(),
+                compaction.collectedBlobs())) {
+            List<Path> outputs = compact(config, compaction, ids, blobWriter);
+            if (blobWriter.finish()) {
+                outputs.add(blobWriter.path());
+            }
+            return outputs;
+        }
+    }
 
-                index++;
+    private static List<Path> compact(
+            Config config,
+            Compaction compaction,
+            LongSupplier ids,
+            BlobWriter blobWriter) throws IOException {
+        // output is split to the files of the target size while merged entries are streamed to them
+        // range tombstones are split by the key ranges of outputs, so outputs of the same run never overlap
+        List<Path> outputs = new ArrayList<>();
+        long expectedEntries = expectedEntriesPerOutput(compaction);
+        RangeTombstones rangeTombstones = compaction.rangeTombstones();
+        MemorySegment lowerBound = null;
+        SSTableWriter writer = null;
+        try {
+            for (Iterator<Entry> iterator = compaction.merge(VERY_FIRST_KEY, null); iterator.hasNext(); ) {
+                Entry entry = iterator.next();
+                if (writer != null && writer.byteSize() >= compaction.targetFileSizeBytes()) {
+                    writer.finish(rangeTombstones.clip(lowerBound, entry.key()));
+                    writer.close();
+                    writer = null;
+                    lowerBound = entry.key();
+                }
+                if (writer == null) {
+                    writer = newOutput(config, ids, expectedEntries, outputs, blobWriter);
+                }
+                writer.add(entry);
+            }
+            if (writer == null && !rangeTombstones.isEmpty()) {
+                // everything is deleted, but the older data at the levels below is still to be covered
+                writer = newOutput(config, ids, expectedEntries, outputs, blobWriter);
+            }
+            if (writer != null) {
+                writer.finish(rangeTombstones.clip(lowerBound, null));
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
             }
+        }
+        return outputs;
+    }
 
-            MemoryAccess.setLongAtOffset(nextSSTable, 0, VERSION);
-            MemoryAccess.setLongAtOffset(nextSSTable, 8, entriesCount);
-            MemoryAccess.setLongAtOffset(nextSSTable, 16, hasTombstone ? 1 : 0);
+    // replaces compaction inputs with outputs in the set of sstables by a single manifest edit
+    // inputs are deleted when the storage versions which contain them are released (see reload())
+    // it is quick, so it is done under the same lock as flushes put their sstables to the set
+    // trivial move only changes the level of the input in the manifest, the file is left as is
+    public static void commitCompaction(Manifest manifest, Compaction compaction, List<Path> outputs)
+            throws IOException {
+        Manifest.Edit edit = new Manifest.Edit();
+        if (compaction.isTrivialMove()) {
+            manifest.commit(edit.add(compaction.inputs().get(0).path(), compaction.outputLevel()));
+            return;
+        }
 
-            nextSSTable.force();
+        for (Path output : outputs) {
+            edit.add(output, compaction.outputLevel());
+        }
+        for (SSTable input : compaction.inputs()) {
+            edit.remove(input.path());
         }
+        manifest.commit(edit);
 
-        Files.move(sstableTmpPath, sstablePath, StandardCopyOption.ATOMIC_MOVE);
     }
 
-    private static long getSize(Entry entry) {
-        if (entry.value() == null) {
-            return Long.BYTES + entry.key().byteSize() + Long.BYTES;
-        } else {
-            return Long.BYTES + entry.value().byteSize() + entry.key().byteSize() + Long.BYTES;
+    // blob files which no sstable of this version refers to anymore are removed from the set
+    // this version is closed then, the returned one is to be used instead
+    // changes of the set are supposed to be serialized by the caller
+    Storage dropUnreferencedBlobs(Config config, Manifest manifest) throws IOException {
+        Manifest.Edit edit = new Manifest.Edit();
+        boolean changed = false;
+        for (Map.Entry<Long, Path> blob : blobPaths.entrySet()) {
+            if (!blobLiveBytes.containsKey(blob.getKey())) {
+                edit.remove(blob.getValue());
+                changed = true;
+            }
         }
+        if (!changed) {
+            return this;
+        }
+        manifest.commit(edit);
+        Storage next = reload(config, manifest.tables());
+        close();
+        return next;
     }
 
-    public static long getSizeOnDisk(Entry entry) {
-        return getSize(entry) + INDEX_RECORD_SIZE;
-    }
-
-    private static long writeRecord(MemorySegment nextSSTable, long offset, MemorySegment record) {
-        if (record == null) {
-            MemoryAccess.setLongAtOffset(nextSSTable, offset, -1);
-            return Long.BYTES;
+    // blob files which have at least garbageRatio of bytes not referred by the sstables anymore
+    Set<Long> blobsToCollect(double garbageRatio) {
+        Set<Long> result = new HashSet<>();
+        for (Map.Entry<Long, MemorySegment> blob : blobs.entrySet()) {
+            long totalBytes = blob.getValue().byteSize() - BlobWriter.HEADER_SIZE;
+            long garbageBytes = totalBytes - blobLiveBytes.getOrDefault(blob.getKey(), 0L);
+            if (garbageBytes > 0 && garbageBytes >= totalBytes * garbageRatio) {
+                result.add(blob.getKey());
+            }
         }
-        long recordSize = record.byteSize();
-        MemoryAccess.setLongAtOffset(nextSSTable, offset, recordSize);
-        nextSSTable.asSlice(offset + Long.BYTES, recordSize).copyFrom(record);
-        return Long.BYTES + recordSize;
+        return result;
     }
 
-    @SuppressWarnings("DuplicateThrows")
-    private static MemorySegment mapForRead(ResourceScope scope, Path file) throws NoSuchFileException, IOException {
-        long size = Files.size(file);
+    private static SSTableWriter newOutput(
+            Config config,
+            LongSupplier ids,
+            long expectedEntries,
+            List<Path> outputs,
+            BlobWriter blobWriter) throws IOException {
+        Path output = sstablePath(config, ids.getAsLong());
+        SSTableWriter writer = new SSTableWriter(output, expectedEntries, blobWriter);
+        outputs.add(output);
+        return writer;
+    }
 
-        return MemorySegment.mapFile(file, 0, size, FileChannel.MapMode.READ_ONLY, scope);
+    // output filters are sized by the share of input entries which fits to the target file size
+    private static long expectedEntriesPerOutput(Compaction compaction) {
+        long entries = 0;
+        long bytes = 0;
+        for (SSTable input : compaction.inputs()) {
+            entries += input.entryCount();
+            bytes += input.byteSize();
+        }
+        if (bytes <= compaction.targetFileSizeBytes()) {
+            return entries;
+        }
+        // the last entry can make output a bit bigger than the target
+        double share = (double) compaction.targetFileSizeBytes() / bytes * 1.25;
+        return Math.min(entries, (long) Math.ceil(entries * share));
     }
 
-    public static void compact(Config config, Data data) throws IOException {
-        Path compactedFile = config.basePath().resolve(COMPACTED_FILE);
-        save(data, compactedFile);
-        finishCompact(config, compactedFile);
+    // idempotent, so it is safe to repeat it after crash
+    // compaction committed by the version before the manifest
+    private static void finishCompaction(Path compactionLog) throws IOException {
+        for (String line : Files.readAllLines(compactionLog, StandardCharsets.UTF_8)) {
+            Path file = compactionLog.resolveSibling(line.substring(1));
+            if (line.startsWith(OUTPUT_MARK)) {
+                Path fileTmp = tmpPath(file);
+                if (Files.exists(fileTmp)) {
+                    Files.move(fileTmp, file, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } else if (line.startsWith(INPUT_MARK)) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.delete(compactionLog);
     }
 
+    // full compaction of the files written before levels were introduced
     private static void finishCompact(Config config, Path compactedFile) throws IOException {
         for (int i = 0; ; i++) {
             Path nextFile = config.basePath().resolve(FILE_NAME + i + FILE_EXT);
@@ -177,84 +396,118 @@ class Storage implements Closeable {
         Files.move(compactedFile, config.basePath().resolve(FILE_NAME + 0 + FILE_EXT), StandardCopyOption.ATOMIC_MOVE);
     }
 
-    // supposed to have fresh files first
-
-    private final ResourceScope scope;
-    private final ArrayList<MemorySegment> sstables;
+    // file name -> file, a reference to every file is held until the version is released
+    private final Map<String, MappedFile> files;
+    // blob id -> mapped blob file
+    private final Map<Long, MemorySegment> blobs;
+    private final Map<Long, Path> blobPaths;
+    // blob id -> size of the values referred by the sstables, blob files missing here are not referred at all
+    private final Map<Long, Long> blobLiveBytes = new HashMap<>();
+    // the owner (dao state) holds one reference, every reader which is in progress holds another one
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // by level, level 0 is ordered by id, sorted runs are ordered by key
+    private final List<List<SSTable>> levels;
+    // every run is a list of non-overlapping sstables ordered by key
+    // last is newer
+    private final List<List<SSTable>> runs;
+    // range tombstones of every run, they delete entries of the older runs
+    private final List<RangeTombstones> runRangeTombstones;
     private final boolean hasTombstones;
-
-    private Storage(ResourceScope scope, ArrayList<MemorySegment> sstables, boolean hasTombstones) {
-        this.scope = scope;
-        this.sstables = sstables;
-        this.hasTombstones = hasTombstones;
-    }
-
-    private long greaterOrEqualEntryIndex(MemorySegment sstable, MemorySegment key) {
-        long index = entryIndex(sstable, key);
-        if (index < 0) {
-            return ~index;
+    private final long nextId;
+    private final BloomFilterStats bloomFilterStats;
+
+    private Storage(
+            Map<String, MappedFile> files,
+            List<SSTable> sstables,
+            Map<Long, MemorySegment> blobs,
+            Map<Long, Path> blobPaths,
+            CompactionStrategy compactionStrategy,
+            BloomFilterStats bloomFilterStats
+    ) {
+        this.files = files;
+        this.blobs = blobs;
+        this.blobPaths = blobPaths;
+        this.bloomFilterStats = bloomFilterStats;
+
+        // ids of blob files come from the same sequence
+        long maxId = blobs.keySet().stream().mapToLong(Long::longValue).max().orElse(-1);
+        boolean tombstones = false;
+        this.levels = new ArrayList<>();
+        for (SSTable sstable : sstables) {
+            while (levels.size() <= sstable.level()) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(sstable.level()).add(sstable);
+            maxId = Math.max(maxId, sstable.id());
+            tombstones |= sstable.hasTombstones() || !sstable.rangeTombstones().isEmpty();
+            for (Map.Entry<Long, Long> blobReference : sstable.blobReferences().entrySet()) {
+                blobLiveBytes.merge(blobReference.getKey(), blobReference.getValue(), Long::sum);
+            }
+        }
+        this.nextId = maxId + 1;
+        this.hasTombstones = tombstones;
+
+        this.runs = new ArrayList<>();
+        this.runRangeTombstones = new ArrayList<>();
+        for (int level = levels.size() - 1; level >= 0; level--) {
+            List<SSTable> tables = levels.get(level);
+            tables.sort(Comparator.comparingLong(SSTable::id));
+            if (level > 0 && compactionStrategy == CompactionStrategy.LEVELED) {
+                List<SSTable> run = new ArrayList<>(tables.size());
+                RangeTombstones rangeTombstones = RangeTombstones.EMPTY;
+                for (SSTable sstable : tables) {
+                    if (!sstable.isEmpty()) {
+                        run.add(sstable);
+                    }
+                    rangeTombstones = rangeTombstones.union(sstable.rangeTombstones());
+                }
+                run.sort(Comparator.comparing(SSTable::minKey, MemorySegmentComparator.INSTANCE));
+                addRun(run, rangeTombstones);
+                continue;
+            }
+            for (SSTable sstable : tables) {
+                addRun(sstable.isEmpty() ? List.of() : List.of(sstable), sstable.rangeTombstones());
+            }
         }
-        return index;
     }
 
-    // file structure:
-    // (fileVersion)(entryCount)((entryPosition)...)|((keySize/key/valueSize/value)...)
-    private long entryIndex(MemorySegment sstable, MemorySegment key) {
-        long fileVersion = MemoryAccess.getLongAtOffset(sstable, 0);
-        if (fileVersion != 0) {
-            throw new IllegalStateException("Unknown file version: " + fileVersion);
-        }
-        long recordsCount = MemoryAccess.getLongAtOffset(sstable, 8);
-        if (key == null) {
-            // fixme
-            return recordsCount;
+    // sstables without entries still take part in reads if they have range tombstones
+    private void addRun(List<SSTable> run, RangeTombstones rangeTombstones) {
+        if (!run.isEmpty() || !rangeTombstones.isEmpty()) {
+            runs.add(run);
+            runRangeTombstones.add(rangeTombstones);
         }
+    }
 
-        long left = 0;
-        long right = recordsCount - 1;
-
-        while (left <= right) {
-            long mid = (left + right) >>> 1;
-
-            long keyPos = MemoryAccess.getLongAtOffset(sstable, INDEX_HEADER_SIZE + mid * INDEX_RECORD_SIZE);
-            long keySize = MemoryAccess.getLongAtOffset(sstable, keyPos);
-
-            MemorySegment keyForCheck = sstable.asSlice(keyPos + Long.BYTES, keySize);
-            int comparedResult = MemorySegmentComparator.INSTANCE.compare(key, keyForCheck);
-            if (comparedResult > 0) {
-                left = mid + 1;
-            } else if (comparedResult < 0) {
-                right = mid - 1;
-            } else {
-                return mid;
-            }
-        }
+    List<SSTable> level(int level) {
+        return level < levels.size() ? Collections.unmodifiableList(levels.get(level)) : List.of();
+    }
 
-        return ~left;
+    int maxLevel() {
+        return levels.size() - 1;
     }
 
-    private Entry entryAt(MemorySegment sstable, long keyIndex) {
-        try {
-            long offset = MemoryAccess.getLongAtOffset(sstable, INDEX_HEADER_SIZE + keyIndex * INDEX_RECORD_SIZE);
-            long keySize = MemoryAccess.getLongAtOffset(sstable, offset);
-            long valueOffset = offset + Long.BYTES + keySize;
-            long valueSize = MemoryAccess.getLongAtOffset(sstable, valueOffset);
-            return new Entry(
-                    sstable.asSlice(offset + Long.BYTES, keySize),
-                    valueSize == -1 ? null : sstable.asSlice(valueOffset + Long.BYTES, valueSize)
-            );
-        } catch (IllegalStateException e) {
-            throw checkForClose(e);
+    // last is newer
+    List<SSTable> tables() {
+        List<SSTable> tables = new ArrayList<>();
+        for (int level = levels.size() - 1; level >= 0; level--) {
+            tables.addAll(levels.get(level));
         }
+        return tables;
     }
 
+    // tombstone is returned for the keys deleted by range tombstones
     public Entry get(MemorySegment key) {
         try {
-            for (int i = sstables.size() - 1; i >= 0; i--) {
-                MemorySegment sstable = sstables.get(i);
-                long keyFromPos = entryIndex(sstable, key);
-                if (keyFromPos >= 0) {
-                    return entryAt(sstable, keyFromPos);
+            long hash = BloomFilter.hash(key);
+            for (int i = runs.size() - 1; i >= 0; i--) {
+                Entry entry = get(runs.get(i), key, hash);
+                if (entry != null) {
+                    return entry;
+                }
+                if (runRangeTombstones.get(i).covers(key)) {
+                    return new Entry(key, null);
                 }
             }
             return null;
@@ -263,34 +516,61 @@ class Storage implements Closeable {
         }
     }
 
-    private Iterator<Entry> iterate(MemorySegment sstable, MemorySegment keyFrom, MemorySegment keyTo) {
-        long keyFromPos = greaterOrEqualEntryIndex(sstable, keyFrom);
-        long keyToPos = greaterOrEqualEntryIndex(sstable, keyTo);
-
-        return new Iterator<>() {
-            long pos = keyFromPos;
+    private Entry get(List<SSTable> run, MemorySegment key, long hash) {
+        SSTable sstable = find(run, key);
+        if (sstable == null) {
+            return null;
+        }
+        BloomFilter filter = sstable.filter();
+        if (filter != null && !filter.mightContain(hash)) {
+            bloomFilterStats.hit();
+            return null;
+        }
+        Entry entry = sstable.get(key);
+        if (entry == null && filter != null) {
+            bloomFilterStats.falsePositive();
+        }
+        return entry;
+    }
 
-            @Override
-            public boolean hasNext() {
-                return pos < keyToPos;
-            }
+    // sstable of the run which key range contains key
+    private static SSTable find(List<SSTable> run, MemorySegment key) {
+        int index = ceilingByMaxKey(run, key);
+        if (index == run.size()) {
+            return null;
+        }
+        SSTable sstable = run.get(index);
+        return MemorySegmentComparator.INSTANCE.compare(sstable.minKey(), key) <= 0 ? sstable : null;
+    }
 
-            @Override
-            public Entry next() {
-                Entry entry = entryAt(sstable, pos);
-                pos++;
-                return entry;
+    // index of the first sstable which max key is >= key
+    private static int ceilingByMaxKey(List<SSTable> run, MemorySegment key) {
+        int left = 0;
+        int right = run.size() - 1;
+        while (left <= right) {
+            int mid = (left + right) >>> 1;
+            if (MemorySegmentComparator.INSTANCE.compare(run.get(mid).maxKey(), key) < 0) {
+                left = mid + 1;
+            } else {
+                right = mid - 1;
             }
-        };
+        }
+        return left;
     }
 
     // last is newer
     // it is ok to mutate list after
-    public ArrayList<Iterator<Entry>> iterate(MemorySegment keyFrom, MemorySegment keyTo) {
+    // newer are range tombstones of memtables, entries they delete are skipped as well
+    public ArrayList<Iterator<Entry>> iterate(MemorySegment keyFrom, MemorySegment keyTo, RangeTombstones newer) {
         try {
-            ArrayList<Iterator<Entry>> iterators = new ArrayList<>(sstables.size());
-            for (MemorySegment sstable : sstables) {
-                iterators.add(iterate(sstable, keyFrom, keyTo));
+            ArrayList<Iterator<Entry>> iterators = new ArrayList<>(Collections.nCopies(runs.size(), null));
+            for (int i = runs.size() - 1; i >= 0; i--) {
+                List<SSTable> run = runs.get(i);
+                RangeTombstoneFilteringIterator.Source source = run.size() == 1
+                        ? run.get(0)::iterate
+                        : (from, to) -> new RunIterator(run, from, to);
+                iterators.set(i, RangeTombstoneFilteringIterator.of(source, keyFrom, keyTo, newer));
+                newer = newer.union(runRangeTombstones.get(i));
             }
             return iterators;
         } catch (IllegalStateException e) {
@@ -298,45 +578,135 @@ class Storage implements Closeable {
         }
     }
 
+    // files are unmapped only when the version is released, so it is read without acquire()
     private RuntimeException checkForClose(IllegalStateException e) {
-        if (isClosed()) {
+        if (references.get() == 0) {
             throw new StorageClosedException(e);
         } else {
             throw e;
         }
     }
 
-    @Override
-    public void close() throws IOException {
-        while (scope.isAlive()) {
-            try {
-                scope.close();
-                return;
-            } catch (IllegalStateException ignored) {
+    // pins the version for a read, fails if it is already released: the caller is supposed to take the newer one
+    boolean tryAcquire() {
+        while (true) {
+            int current = references.get();
+            if (current == 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
             }
         }
     }
 
-    public void maybeClose() {
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            for (MappedFile file : files.values()) {
+                file.release();
+            }
+        }
+    }
 
+    // the version stays acquired while the iterator is in use, so it keeps working after compaction
+    // entries are backed by the mapped files, so they are valid until the iterator is exhausted
+    Iterator<Entry> releaseAfter(Iterator<Entry> iterator) {
+        return new ReleasingIterator(this, iterator);
+    }
+
+    // the owner's reference is released, readers in progress finish on this version
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
     }
 
     public boolean isClosed() {
-        return !scope.isAlive();
+        return closed.get();
     }
 
     public boolean isCompacted() {
-        if (sstables.isEmpty()) {
+        if (runs.isEmpty()) {
             return true;
         }
-        if (sstables.size() > 1) {
+        if (runs.size() > 1) {
             return false;
         }
         return !hasTombstones;
     }
 
-    public interface Data {
-        Iterator<Entry> iterator() throws IOException;
+    private static final class ReleasingIterator implements Iterator<Entry> {
+        private final Iterator<Entry> iterator;
+        // releases the version once, either when the iterator is exhausted or when it becomes unreachable
+        private final Cleaner.Cleanable cleanable;
+        private boolean exhausted;
+
+        ReleasingIterator(Storage storage, Iterator<Entry> iterator) {
+            this.iterator = iterator;
+            this.cleanable = CLEANER.register(this, storage::release);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (exhausted) {
+                return false;
+            }
+            if (iterator.hasNext()) {
+                return true;
+            }
+            exhausted = true;
+            cleanable.clean();
+            return false;
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return iterator.next();
+        }
     }
 
+    // sstables of the run are opened one by one
+    private static class RunIterator implements Iterator<Entry> {
+        private final List<SSTable> run;
+        private final MemorySegment keyFrom;
+        private final MemorySegment keyTo;
+
+        private int index;
+        private Iterator<Entry> current = Collections.emptyIterator();
+
+        RunIterator(List<SSTable> run, MemorySegment keyFrom, MemorySegment keyTo) {
+            this.run = run;
+            this.keyFrom = keyFrom;
+            this.keyTo = keyTo;
+            this.index = keyFrom == null ? 0 : ceilingByMaxKey(run, keyFrom);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (index == run.size()) {
+                    return false;
+                }
+                SSTable sstable = run.get(index++);
+                if (keyTo != null && MemorySegmentComparator.INSTANCE.compare(sstable.minKey(), keyTo) >= 0) {
+                    index = run.size();
+                    return false;
+                }
+                current = sstable.iterate(keyFrom, keyTo);
+            }
+            return true;
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+    }
 }
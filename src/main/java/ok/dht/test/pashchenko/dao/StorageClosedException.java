@@ -2,6 +2,10 @@ package ok.dht.test.pashchenko.dao;
 
 public class StorageClosedException extends RuntimeException {
 
+    public StorageClosedException() {
+        super("Storage is closed");
+    }
+
     public StorageClosedException(Throwable causedBy) {
         super(causedBy);
     }
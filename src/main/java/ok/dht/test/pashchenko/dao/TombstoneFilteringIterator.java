@@ -0,0 +1,44 @@
+package ok.dht.test.pashchenko.dao;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+class TombstoneFilteringIterator implements Iterator<Entry> {
+    private final Iterator<Entry> iterator;
+    private Entry current;
+
+    public TombstoneFilteringIterator(Iterator<Entry> iterator) {
+        this.iterator = iterator;
+    }
+
+    public Entry peek() {
+        return hasNext() ? current : null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (current != null) {
+            return true;
+        }
+
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.isTombstone()) {
+                this.current = entry;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public Entry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("...");
+        }
+        Entry next = current;
+        current = null;
+        return next;
+    }
+}
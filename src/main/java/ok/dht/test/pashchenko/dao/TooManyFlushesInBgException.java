@@ -1,4 +1,5 @@
 package ok.dht.test.pashchenko.dao;
 
+// all the memtables are full and no flush completed within the write stall timeout, upsert can be retried later
 public class TooManyFlushesInBgException extends RuntimeException {
 }
@@ -0,0 +1,10 @@
+package ok.dht.test.pashchenko.dao;
+
+public enum WalSyncMode {
+    // upsert returns when its batch is written and synced to disk
+    BATCH,
+    // upsert returns when its batch is written, the log is synced to disk in background every sync period
+    PERIODIC,
+    // upsert returns when its batch is written, syncing is left to OS (survives process crash only)
+    NONE
+}
@@ -0,0 +1,497 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+// append-only log of upserts which are not flushed yet, every memtable has its own segment wal<id>.log
+// record structure:
+// (crc)(keySize)(valueSize)(key)(value)
+// sizes are ints, valueSize is -1 for tombstones, crc covers the rest of the record
+// range tombstone record:
+// (crc)(startSize)(-2)(endSize)(start)(end)
+// group commit without locks: appenders claim room in the current batch with atomic add and copy records in parallel,
+// the first record which does not fit seals the batch and starts the next one
+// writer thread seals the current batch when it is idle, writes sealed batches in order and syncs them at once
+// every append returns the position of its record: the segment and the sequence number, which grows in the log order
+final class WriteAheadLog implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final String FILE_NAME = "wal";
+    private static final String FILE_EXT = ".log";
+    private static final Pattern FILE_PATTERN = Pattern.compile(FILE_NAME + "(\\d+)\\" + FILE_EXT);
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 3;
+    private static final int TOMBSTONE = -1;
+    private static final int RANGE_TOMBSTONE = -2;
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    private final Path basePath;
+    private final WalSyncMode syncMode;
+    private final ScheduledExecutorService syncExecutor;
+    private final Thread writer;
+
+    // in the order they are written
+    private final Queue<Batch> sealed = new ConcurrentLinkedQueue<>();
+    // buffers of written batches
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    // is replaced only by the thread which sealed it
+    private volatile Batch current;
+    private volatile IOException failure;
+    private volatile boolean writerIdle;
+    private volatile boolean closed;
+
+    // are changed by roll, which is not called concurrently
+    private long segmentId;
+    private Path segment;
+    // is read by sync executor
+    private volatile FileChannel channel;
+
+    WriteAheadLog(Config config) throws IOException {
+        this.basePath = config.basePath();
+        this.syncMode = config.walSyncMode();
+        openSegment(0);
+        current = newBatch(channel, segmentId, 0, 0);
+
+        writer = new Thread(this::writeBatches, "MemorySegmentDaoWalWriter");
+        writer.setDaemon(true);
+        writer.start();
+
+        if (syncMode == WalSyncMode.PERIODIC) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "MemorySegmentDaoWal"));
+            syncExecutor.scheduleWithFixedDelay(
+                    this::sync,
+                    config.walSyncPeriodMillis(),
+                    config.walSyncPeriodMillis(),
+                    TimeUnit.MILLISECONDS
+            );
+        } else {
+            syncExecutor = null;
+        }
+    }
+
+    // entries of the segments left after crash or failed flush, the newest entry for every key
+    // range tombstones delete the entries logged before them, the ones logged after them are kept
+    static Replayed replay(Path basePath) throws IOException {
+        TreeMap<MemorySegment, Entry> entries = new TreeMap<>(MemorySegmentComparator.INSTANCE);
+        RangeTombstones rangeTombstones = RangeTombstones.EMPTY;
+        for (Path segment : segments(basePath)) {
+            ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(segment));
+            MemorySegment logSegment = MemorySegment.ofArray(log.array());
+            CRC32C crc = new CRC32C();
+            while (log.remaining() >= RECORD_HEADER_SIZE) {
+                int start = log.position();
+                int checksum = log.getInt();
+                int keySize = log.getInt();
+                int valueSize = log.getInt();
+                int endSize = 0;
+                if (valueSize == RANGE_TOMBSTONE) {
+                    if (log.remaining() < Integer.BYTES) {
+                        break;
+                    }
+                    endSize = log.getInt();
+                }
+                int size = keySize + Math.max(valueSize, 0) + endSize;
+                if (keySize < 0 || valueSize < RANGE_TOMBSTONE || endSize < 0 || size < 0 || log.remaining() < size) {
+                    break;
+                }
+                crc.reset();
+                crc.update(log.duplicate().position(start + Integer.BYTES).limit(log.position() + size));
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                MemorySegment key = logSegment.asSlice(log.position(), keySize);
+                if (valueSize == RANGE_TOMBSTONE) {
+                    MemorySegment end = logSegment.asSlice(log.position() + keySize, endSize);
+                    entries.subMap(key, end).clear();
+                    rangeTombstones = rangeTombstones.union(RangeTombstones.of(key, end));
+                } else {
+                    MemorySegment value = valueSize == TOMBSTONE
+                            ? null
+                            : logSegment.asSlice(log.position() + keySize, valueSize);
+                    entries.put(key, new Entry(key, value));
+                }
+                log.position(log.position() + size);
+            }
+            if (log.hasRemaining()) {
+                // the tail of the last batch can be torn by crash
+                LOG.warn("{}: {} bytes at the end are skipped", segment, log.remaining());
+            }
+        }
+        return new Replayed(entries.values(), rangeTombstones);
+    }
+
+    // is supposed to be called when everything the segments contain is saved to sstables
+    static void deleteSegments(Path basePath) throws IOException {
+        for (Path segment : segments(basePath)) {
+            Files.delete(segment);
+        }
+    }
+
+    // oldest first
+    private static List<Path> segments(Path basePath) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(basePath)) {
+            for (Path file : files) {
+                if (FILE_PATTERN.matcher(file.getFileName().toString()).matches()) {
+                    segments.add(file);
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(WriteAheadLog::segmentId));
+        return segments;
+    }
+
+    private static long segmentId(Path segment) {
+        Matcher matcher = FILE_PATTERN.matcher(segment.getFileName().toString());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not a log segment: " + segment);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    // the next segment always gets the next id: memtables rely on that
+    private void openSegment(long id) throws IOException {
+        Path path = basePath.resolve(FILE_NAME + id + FILE_EXT);
+        channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        );
+        segmentId = id;
+        segment = path;
+    }
+
+    // returns when entry is durable according to sync mode
+    Position append(Entry entry) throws IOException {
+        MemorySegment key = entry.key();
+        MemorySegment value = entry.value();
+        int size = RECORD_HEADER_SIZE + (int) key.byteSize() + (entry.isTombstone() ? 0 : (int) value.byteSize());
+        Slot slot = claim(size);
+
+        ByteBuffer record = slot.record();
+        record.position(Integer.BYTES);
+        record.putInt((int) key.byteSize());
+        record.putInt(entry.isTombstone() ? TOMBSTONE : (int) value.byteSize());
+        put(record, key);
+        if (!entry.isTombstone()) {
+            put(record, value);
+        }
+        putChecksum(record);
+
+        fill(slot.batch(), size);
+        await(slot.batch());
+        return slot.position();
+    }
+
+    // returns when range tombstone is durable according to sync mode
+    Position appendRangeTombstone(MemorySegment start, MemorySegment end) throws IOException {
+        int size = RECORD_HEADER_SIZE + Integer.BYTES + (int) start.byteSize() + (int) end.byteSize();
+        Slot slot = claim(size);
+
+        ByteBuffer record = slot.record();
+        record.position(Integer.BYTES);
+        record.putInt((int) start.byteSize());
+        record.putInt(RANGE_TOMBSTONE);
+        record.putInt((int) end.byteSize());
+        put(record, start);
+        put(record, end);
+        putChecksum(record);
+
+        fill(slot.batch(), size);
+        await(slot.batch());
+        return slot.position();
+    }
+
+    // room for the record in the current batch, or at the start of the next one if it does not fit
+    private Slot claim(int size) throws IOException {
+        while (true) {
+            checkNotFailed();
+            Batch batch = current;
+            int capacity = batch.buffer.capacity();
+            long offset = batch.claimed.getAndAdd(size);
+            if (offset + size <= capacity) {
+                return new Slot(batch, offset, slice(batch.buffer, (int) offset, size));
+            }
+            if (offset <= capacity) {
+                // the first claim which does not fit seals the batch, big records get a batch of their own size
+                Batch next = newBatch(batch.channel, batch.segmentId, batch.number + 1, size);
+                next.claimed.set(size);
+                seal(batch, (int) offset, next);
+                return new Slot(next, 0, slice(next.buffer, 0, size));
+            }
+            awaitNext(batch);
+        }
+    }
+
+    // seals the current batch whatever it holds, the next one is written to the current segment
+    // or to the one just opened by roll
+    private Batch sealCurrent(boolean nextSegment) {
+        while (true) {
+            Batch batch = current;
+            int capacity = batch.buffer.capacity();
+            long offset = batch.claimed.getAndAdd(capacity + 1L);
+            if (offset <= capacity) {
+                Batch next = nextSegment
+                        ? newBatch(channel, segmentId, batch.number + 1, 0)
+                        : newBatch(batch.channel, batch.segmentId, batch.number + 1, 0);
+                seal(batch, (int) offset, next);
+                return batch;
+            }
+            awaitNext(batch);
+        }
+    }
+
+    // the batch is queued before the next one is published, so they are queued in order
+    private void seal(Batch batch, int size, Batch next) {
+        batch.size = size;
+        sealed.add(batch);
+        current = next;
+        wakeWriter();
+    }
+
+    // the batch is sealed by another thread, which publishes the next one right now
+    private void awaitNext(Batch batch) {
+        while (current == batch) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private void fill(Batch batch, int size) {
+        batch.filled.addAndGet(size);
+        wakeWriter();
+    }
+
+    private void wakeWriter() {
+        if (writerIdle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private Batch newBatch(FileChannel batchChannel, long batchSegmentId, long number, int size) {
+        ByteBuffer buffer = size > BATCH_SIZE ? null : buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(Math.max(size, BATCH_SIZE));
+        }
+        return new Batch(batchChannel, batchSegmentId, number, buffer);
+    }
+
+    private void await(Batch batch) throws IOException {
+        try {
+            batch.written.join();
+        } catch (CompletionException e) {
+            throw new IOException("Write-ahead log is broken", e.getCause());
+        }
+    }
+
+    // starts a new segment for the next memtable
+    // returns the previous one, which can be deleted when its memtable is flushed
+    Path roll() throws IOException {
+        Path previous = segment;
+        FileChannel previousChannel = channel;
+        openSegment(segmentId + 1);
+        // appends claimed after this point get to the new segment
+        await(sealCurrent(true));
+        if (syncMode != WalSyncMode.NONE) {
+            previousChannel.force(false);
+        }
+        previousChannel.close();
+        return previous;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int size) {
+        return buffer.duplicate().position(offset).limit(offset + size).slice();
+    }
+
+    private static void putChecksum(ByteBuffer record) {
+        CRC32C crc = new CRC32C();
+        crc.update(record.duplicate().position(Integer.BYTES).limit(record.position()));
+        record.putInt(0, (int) crc.getValue());
+    }
+
+    private static void put(ByteBuffer record, MemorySegment data) {
+        MemorySegment.ofByteBuffer(record).asSlice(0, data.byteSize()).copyFrom(data);
+        record.position(record.position() + (int) data.byteSize());
+    }
+
+    private void writeBatches() {
+        List<Batch> batches = new ArrayList<>();
+        while (true) {
+            Batch batch = sealed.poll();
+            if (batch == null) {
+                if (current.claimed.get() > 0) {
+                    sealCurrent(false);
+                    continue;
+                }
+                if (closed) {
+                    return;
+                }
+                writerIdle = true;
+                if (sealed.isEmpty() && current.claimed.get() == 0 && !closed) {
+                    LockSupport.park(this);
+                }
+                writerIdle = false;
+                continue;
+            }
+            // everything sealed meanwhile shares the sync
+            for (; batch != null; batch = sealed.poll()) {
+                batches.add(batch);
+            }
+            write(batches);
+            batches.clear();
+        }
+    }
+
+    private void write(List<Batch> batches) {
+        IOException error = failure;
+        List<FileChannel> channels = new ArrayList<>(2);
+        for (Batch batch : batches) {
+            while (batch.filled.get() < batch.size) {
+                // appenders which claimed room before the batch was sealed are copying records
+                Thread.onSpinWait();
+            }
+            if (error != null) {
+                continue;
+            }
+            try {
+                ByteBuffer data = slice(batch.buffer, 0, batch.size);
+                while (data.hasRemaining()) {
+                    batch.channel.write(data);
+                }
+                if (!channels.contains(batch.channel)) {
+                    channels.add(batch.channel);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error == null && syncMode == WalSyncMode.BATCH) {
+            try {
+                for (FileChannel batchChannel : channels) {
+                    batchChannel.force(false);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null && failure == null) {
+            LOG.error("Can't write write-ahead log", error);
+            failure = error;
+        }
+
+        for (Batch batch : batches) {
+            if (batch.buffer.capacity() == BATCH_SIZE) {
+                buffers.add(batch.buffer);
+            }
+            if (error == null) {
+                batch.written.complete(null);
+            } else {
+                batch.written.completeExceptionally(error);
+            }
+        }
+    }
+
+    private void checkNotFailed() throws IOException {
+        if (failure != null) {
+            throw new IOException("Write-ahead log is broken", failure);
+        }
+    }
+
+    private void sync() {
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException ignored) {
+            // segment was rolled (and synced) or log is closed meanwhile
+        } catch (IOException e) {
+            LOG.error("Can't sync write-ahead log", e);
+        }
+    }
+
+    record Replayed(Collection<Entry> entries, RangeTombstones rangeTombstones) {
+        boolean isEmpty() {
+            return entries.isEmpty() && rangeTombstones.isEmpty();
+        }
+    }
+
+    // batches are numbered in the order they are written, records of a batch are in the order of their offsets
+    record Position(long segment, long sequence) {
+    }
+
+    private record Slot(Batch batch, long offset, ByteBuffer record) {
+        Position position() {
+            return new Position(batch.segmentId, batch.number << 32 | offset);
+        }
+    }
+
+    private static final class Batch {
+        final FileChannel channel;
+        final long segmentId;
+        final long number;
+        final ByteBuffer buffer;
+        // bytes claimed by appenders, more than capacity once the batch is sealed
+        final AtomicLong claimed = new AtomicLong();
+        // bytes of the records copied to the buffer
+        final AtomicInteger filled = new AtomicInteger();
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+        // is set by the thread which sealed the batch before it is queued
+        volatile int size;
+
+        Batch(FileChannel channel, long segmentId, long number, ByteBuffer buffer) {
+            this.channel = channel;
+            this.segmentId = segmentId;
+            this.number = number;
+            this.buffer = buffer;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+        }
+        try {
+            await(sealCurrent(false));
+        } finally {
+            closed = true;
+            LockSupport.unpark(writer);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (syncMode != WalSyncMode.NONE) {
+            channel.force(false);
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,136 @@
+package ok.dht.test.skroba.dao;
+
+import ok.dht.test.skroba.dao.base.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Watches storage shape and read amplification and runs compactions on its own thread.
+ */
+class CompactionScheduler implements Closeable {
+    
+    private static final Logger LOG = LoggerFactory.getLogger(CompactionScheduler.class);
+    
+    private static final long CHECK_PERIOD_MILLIS = 1000;
+    // probes per get is not trusted until enough gets are measured
+    static final long MIN_MEASURED_GETS = 1024;
+    
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "MemorySegmentDaoCompaction"));
+    
+    private final LongAdder gets = new LongAdder();
+    private final LongAdder probes = new LongAdder();
+    
+    private final Config config;
+    private final Supplier<Storage> storage;
+    private final Compactor compactor;
+    
+    CompactionScheduler(Config config, Supplier<Storage> storage, Compactor compactor) {
+        this.config = config;
+        this.storage = storage;
+        this.compactor = compactor;
+    }
+    
+    void start() {
+        executor.scheduleWithFixedDelay(this::check, CHECK_PERIOD_MILLIS, CHECK_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    // storage.get() adds count of probed sstables here
+    LongAdder probes() {
+        return probes;
+    }
+    
+    void recordGet() {
+        gets.increment();
+    }
+    
+    // is supposed to be called after every flush
+    void maybeCompact() {
+        try {
+            executor.execute(this::check);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Compaction scheduler is closed", e);
+        }
+    }
+    
+    Future<?> compactNow() {
+        return executor.submit((Callable<Void>) () -> {
+            compact();
+            return null;
+        });
+    }
+    
+    private void check() {
+        try {
+            if (needsCompaction(storage.get())) {
+                compact();
+            }
+        } catch (Exception e) {
+            LOG.error("Can't compact", e);
+        }
+    }
+    
+    private boolean needsCompaction(Storage currentStorage) {
+        return needsCompaction(
+                config,
+                currentStorage.sstablesCount(),
+                currentStorage.byteSizeSinceCompaction(),
+                gets.sum(),
+                probes.sum()
+        );
+    }
+    
+    // sstable 0 is the result of the last compaction, bytes since compaction are the size of the others
+    static boolean needsCompaction(
+            Config config,
+            int sstablesCount,
+            long bytesSinceCompaction,
+            long measuredGets,
+            long measuredProbes) {
+        if (sstablesCount < 2) {
+            return false;
+        }
+        if (sstablesCount >= config.compactionSSTablesThreshold()
+                || bytesSinceCompaction >= config.compactionBytesThreshold()) {
+            return true;
+        }
+        return measuredGets >= MIN_MEASURED_GETS
+                && (double) measuredProbes / measuredGets >= config.compactionProbesPerGetThreshold();
+    }
+    
+    private void compact() throws IOException {
+        compactor.compact();
+        gets.reset();
+        probes.reset();
+    }
+    
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            while (true) {
+                if (executor.awaitTermination(10, TimeUnit.DAYS)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    interface Compactor {
+        void compact() throws IOException;
+    }
+}
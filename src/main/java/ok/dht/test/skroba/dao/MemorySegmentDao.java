@@ -20,7 +20,9 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>> {
@@ -31,14 +33,20 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
     
     private final ReadWriteLock upsertLock = new ReentrantReadWriteLock();
     
+    // flush and compaction both change the set of sstable files
+    private final Lock storageLock = new ReentrantLock();
+    
     private final ExecutorService executor = Executors.newSingleThreadExecutor(
             r -> new Thread(r, "MemorySegmentDaoBG"));
     private final Config config;
     private volatile State stateOfClass;
+    private final CompactionScheduler compactionScheduler;
     
     public MemorySegmentDao(Config config) throws IOException {
         this.config = config;
         this.stateOfClass = State.newState(config, StorageUtils.load(config));
+        this.compactionScheduler = new CompactionScheduler(config, () -> accessState().storage, this::compactStorage);
+        this.compactionScheduler.start();
     }
     
     @Override
@@ -65,7 +73,8 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         
         Entry<MemorySegment> result = state.memory.get(key);
         if (result == null) {
-            result = state.storage.get(key);
+            compactionScheduler.recordGet();
+            result = state.storage.get(key, compactionScheduler.probes());
         }
         
         return (result == null || result.isTombstone()) ? null : result;
@@ -108,6 +117,7 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         }
         
         return executor.submit(() -> {
+            storageLock.lock();
             try {
                 State state = accessState();
                 
@@ -122,6 +132,7 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
                     upsertLock.writeLock().unlock();
                 }
                 storage.maybeClose();
+                compactionScheduler.maybeCompact();
                 return null;
             } catch (Exception e) {
                 LOG.error("Can't flush", e);
@@ -133,6 +144,8 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
                     throw ex;
                 }
                 throw e;
+            } finally {
+                storageLock.unlock();
             }
         });
     }
@@ -162,11 +175,17 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             return;
         }
         
-        Future<Object> future = executor.submit(() -> {
+        Future<?> future = compactionScheduler.compactNow();
+        awaitAndUnwrap(future);
+    }
+    
+    private void compactStorage() throws IOException {
+        storageLock.lock();
+        try {
             State state = accessState();
             
-            if (state.memory.isEmpty() && state.storage.isCompacted()) {
-                return null;
+            if (state.storage.isCompacted()) {
+                return;
             }
             
             StorageUtils.compact(
@@ -183,16 +202,16 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             
             upsertLock.writeLock().lock();
             try {
-                this.stateOfClass = state.afterCompact(storage);
+                // memory could be switched for flush meanwhile, so the actual state is updated
+                this.stateOfClass = this.stateOfClass.afterCompact(storage);
             } finally {
                 upsertLock.writeLock().unlock();
             }
             
             state.storage.maybeClose();
-            return null;
-        });
-        
-        awaitAndUnwrap(future);
+        } finally {
+            storageLock.unlock();
+        }
     }
     
     private void awaitAndUnwrap(Future<?> future) throws IOException {
@@ -231,6 +250,7 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
             Thread.currentThread().interrupt();
             throw new IllegalStateException(e);
         }
+        compactionScheduler.close();
         state = this.stateOfClass;
         state.storage.close();
         this.stateOfClass = state.afterClosed();
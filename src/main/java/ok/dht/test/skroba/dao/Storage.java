@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 import static ok.dht.test.skroba.dao.StorageUtils.INDEX_HEADER_SIZE;
 import static ok.dht.test.skroba.dao.StorageUtils.INDEX_RECORD_SIZE;
@@ -86,15 +87,18 @@ class Storage implements Closeable {
         }
     }
     
-    public Entry<MemorySegment> get(MemorySegment key) {
+    // probes is increased by count of sstables looked through
+    public Entry<MemorySegment> get(MemorySegment key, LongAdder probes) {
         try {
             for (int i = sstables.size() - 1; i >= 0; i--) {
                 MemorySegment sstable = sstables.get(i);
                 long keyFromPos = entryIndex(sstable, key);
                 if (keyFromPos >= 0) {
+                    probes.add(sstables.size() - i);
                     return entryAt(sstable, keyFromPos);
                 }
             }
+            probes.add(sstables.size());
             return null;
         } catch (IllegalStateException e) {
             throw checkForClose(e);
@@ -164,6 +168,19 @@ class Storage implements Closeable {
         return !scope.isAlive();
     }
     
+    public int sstablesCount() {
+        return sstables.size();
+    }
+    
+    // the oldest sstable is the result of the last compaction (if any)
+    public long byteSizeSinceCompaction() {
+        long size = 0;
+        for (int i = 1; i < sstables.size(); i++) {
+            size += sstables.get(i).byteSize();
+        }
+        return size;
+    }
+    
     public boolean isCompacted() {
         if (sstables.isEmpty()) {
             return true;
@@ -2,8 +2,35 @@ package ok.dht.test.skroba.dao.base;
 
 import java.nio.file.Path;
 
+/**
+ * Compaction is started in background as soon as any of the thresholds is exceeded:
+ * sstables count, size of sstables flushed since the last compaction, or average count of sstables probed per get.
+ */
 public record Config(
         Path basePath,
-        long flushThresholdBytes) {
+        long flushThresholdBytes,
+        int compactionSSTablesThreshold,
+        long compactionBytesThreshold,
+        double compactionProbesPerGetThreshold) {
+    
+    // a get of a key missing in memory binary searches the sstables newest first, so a miss costs
+    // at most this many searches; with small memtables it is the threshold which triggers compaction
+    public static final int DEFAULT_COMPACTION_SSTABLES_THRESHOLD = 16;
+    // compaction rewrites all the data, so big flushes are merged before they make the next compaction too long
+    public static final long DEFAULT_COMPACTION_BYTES_THRESHOLD = 64L * 1024 * 1024;
+    // hits in the newest sstables are cheap even with many sstables, so reads trigger compaction
+    // only when the measured gets go to the older ones: 4 searches per get on average
+    public static final double DEFAULT_COMPACTION_PROBES_PER_GET_THRESHOLD = 4.0;
+    
+    public Config(
+            Path basePath,
+            long flushThresholdBytes) {
+        this(
+                basePath,
+                flushThresholdBytes,
+                DEFAULT_COMPACTION_SSTABLES_THRESHOLD,
+                DEFAULT_COMPACTION_BYTES_THRESHOLD,
+                DEFAULT_COMPACTION_PROBES_PER_GET_THRESHOLD
+        );
+    }
 }
-
@@ -21,6 +21,11 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
@@ -34,6 +39,8 @@ public class ServiceImpl implements Service {
     private static final int POOL_QUEUE_SIZE = 1000;
     private static final int FIFO_RARENESS = 3;
     private static final Log LOGGER = LogFactory.getLog(ServiceImpl.class);
+    private static final String ENTITIES_PATH = "/v0/entities";
+    private static final int TOMBSTONE_LENGTH = -1;
 
     private final ServiceConfig config;
     private Dao<MemorySegment, Entry<MemorySegment>> dao;
@@ -99,6 +106,10 @@ public class ServiceImpl implements Service {
 
         @Override
         public void handleRequest(Request request, HttpSession session) throws IOException {
+            if (ENTITIES_PATH.equals(request.getPath())) {
+                handleBatchRequest(request, session);
+                return;
+            }
             String id = request.getParameter("id=");
             if (id == null || id.isEmpty()) {
                 sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
@@ -119,6 +130,25 @@ public class ServiceImpl implements Service {
             }
         }
 
+        private void handleBatchRequest(Request request, HttpSession session) throws IOException {
+            if (request.getMethod() != Request.METHOD_POST) {
+                sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+                return;
+            }
+            try {
+                pool.execute(() -> {
+                    try {
+                        sendResponse(session, handleBatch(request));
+                    } catch (Exception e) {
+                        LOGGER.error("Error when making response to " + request, e);
+                        sendResponse(session, new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                session.sendResponse(new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY));
+            }
+        }
+
         private static void sendResponse(HttpSession session, Response response) {
             try {
                 session.sendResponse(response);
@@ -155,6 +185,56 @@ public class ServiceImpl implements Service {
             return new Response(Response.CREATED, Response.EMPTY);
         }
 
+        private Response handleBatch(Request request) {
+            List<Entry<MemorySegment>> entries;
+            try {
+                entries = parseBatch(request.getBody());
+            } catch (IllegalArgumentException e) {
+                return new Response(Response.BAD_REQUEST, Response.EMPTY);
+            }
+            dao.upsertAll(entries);
+            return new Response(Response.CREATED, Response.EMPTY);
+        }
+
+        /*
+         * Body of the batch is a sequence of records:
+         * (keyLength int)(key UTF-8)(valueLength int)(value), valueLength -1 deletes the key and has no value.
+         * Keys are the same as id of /v0/entity, later records win on equal keys.
+         */
+        private static List<Entry<MemorySegment>> parseBatch(byte[] body) {
+            if (body == null) {
+                throw new IllegalArgumentException("Empty batch");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            List<Entry<MemorySegment>> entries = new ArrayList<>();
+            try {
+                while (buffer.hasRemaining()) {
+                    byte[] key = readBytes(buffer, buffer.getInt());
+                    if (key.length == 0) {
+                        throw new IllegalArgumentException("Empty key");
+                    }
+                    int valueLength = buffer.getInt();
+                    MemorySegment value = valueLength == TOMBSTONE_LENGTH
+                            ? null
+                            : MemorySegment.ofArray(readBytes(buffer, valueLength));
+                    entries.add(new BaseEntry<>(fromString(new String(key, StandardCharsets.UTF_8)), value));
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Malformed batch", e);
+            }
+            return entries;
+        }
+
+        // length is checked before allocation, so a broken length can't take all the heap
+        private static byte[] readBytes(ByteBuffer buffer, int length) {
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IllegalArgumentException("Malformed batch");
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return bytes;
+        }
+
         @Override
         public synchronized void stop() {
             for (SelectorThread thread : selectors) {
@@ -48,6 +48,26 @@ class Memory {
         return false;
     }
 
+    // size is accounted once for the whole batch
+    public boolean putAll(Collection<Entry<MemorySegment>> entries) {
+        if (sizeThreshold == -1) {
+            throw new UnsupportedOperationException("Read-only map");
+        }
+        long sizeDelta = 0;
+        for (Entry<MemorySegment> entry : entries) {
+            Entry<MemorySegment> segmentEntry = delegate.put(entry.key(), entry);
+            sizeDelta += Storage.getSizeOnDisk(entry);
+            if (segmentEntry != null) {
+                sizeDelta -= Storage.getSizeOnDisk(segmentEntry);
+            }
+        }
+        long newSize = size.addAndGet(sizeDelta);
+        if (newSize > sizeThreshold) {
+            return !oversized.getAndSet(true);
+        }
+        return false;
+    }
+
     public boolean overflow() {
         return !oversized.getAndSet(true);
     }
@@ -8,6 +8,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
@@ -88,6 +89,28 @@ public class MemorySegmentDao implements Dao<MemorySegment, Entry<MemorySegment>
         }
     }
 
+    // the whole batch gets to the same memtable: the memtable can't be switched for flush in the middle of it
+    // entries are put one by one though, so readers can see a part of the batch
+    @Override
+    public void upsertAll(Collection<Entry<MemorySegment>> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        boolean runFlush;
+        // it is intentionally the read lock!!!
+        upsertLock.readLock().lock();
+        try {
+            runFlush = accessState().memory.putAll(entries);
+        } finally {
+            upsertLock.readLock().unlock();
+        }
+
+        if (runFlush) {
+            flushInBg(false);
+        }
+    }
+
     private Future<?> flushInBg(boolean tolerateFlushInProgress) {
         upsertLock.writeLock().lock();
         try {
@@ -2,6 +2,7 @@ package ok.dht.test.yasevich.dao;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Iterator;
 
 public interface Dao<D, E extends Entry<D>> extends Closeable {
@@ -63,6 +64,18 @@ public interface Dao<D, E extends Entry<D>> extends Closeable {
      */
     void upsert(E entry);
 
+    /**
+     * Inserts or replaces all the entries, later entries win on equal keys.
+     * The batch is not atomic to readers: a concurrent get may see a part of it.
+     * Note: default implementation upserts them one by one.
+     * @param entries elements to upsert
+     */
+    default void upsertAll(Collection<E> entries) {
+        for (E entry : entries) {
+            upsert(entry);
+        }
+    }
+
     /**
      * Persists data (no-op by default).
      */
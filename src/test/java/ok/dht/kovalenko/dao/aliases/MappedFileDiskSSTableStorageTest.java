@@ -0,0 +1,86 @@
+package ok.dht.kovalenko.dao.aliases;
+
+import ok.dht.ServiceConfig;
+import ok.dht.kovalenko.dao.Serializer;
+import ok.dht.kovalenko.dao.dto.PairedFiles;
+import ok.dht.kovalenko.dao.iterators.MergeIterator;
+import ok.dht.kovalenko.dao.utils.DaoUtils;
+import ok.dht.kovalenko.dao.utils.FileUtils;
+import ok.dht.kovalenko.dao.visitors.ConfigVisitor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedFileDiskSSTableStorageTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void tablesFlushedDuringCompactionAreKept() throws Exception {
+        ServiceConfig config = new ServiceConfig(0, "", List.of(), this.dir);
+        Serializer serializer = new Serializer(new AtomicBoolean());
+        AtomicLong filesCounter = new AtomicLong();
+        MappedFileDiskSSTableStorage storage = new MappedFileDiskSSTableStorage(config, serializer, filesCounter);
+        storage.load();
+
+        storage.flush(List.of(entry("k1", "v1"), entry("k2", "v2")).iterator());
+        storage.flush(List.of(entry("k1", "v1new")).iterator());
+
+        NavigableMap<Long, MappedFileDiskSSTable> merged = storage.tables();
+        PairedFiles compacted = FileUtils.createPairedFiles(config, filesCounter);
+        serializer.write(new MergeIterator(Collections.emptyList(),
+                MappedFileDiskSSTableStorage.get(merged, DaoUtils.EMPTY_BYTEBUFFER, null)), compacted);
+        // the flush completes while the compaction is writing its table
+        storage.flush(List.of(entry("k2", "v2new"), entry("k3", "v3")).iterator());
+        storage.replaceWithCompacted(merged.keySet(), compacted);
+
+        assertEquals(Set.of(1L, 2L), storage.tables().keySet());
+        assertValues(storage);
+        assertTrue(Files.exists(this.dir.resolve(FileUtils.getDataFilename(2))));
+        assertFalse(Files.exists(this.dir.resolve(FileUtils.getDataFilename(3))));
+        assertFalse(Files.exists(this.dir.resolve(FileUtils.getDataFilename(4))));
+        storage.close();
+
+        // priorities on disk are 1..n again, so the tables are found on start
+        AtomicLong reopenedFilesCounter = new AtomicLong();
+        Files.walkFileTree(this.dir, new ConfigVisitor(config, serializer, reopenedFilesCounter));
+        MappedFileDiskSSTableStorage reopened
+                = new MappedFileDiskSSTableStorage(config, serializer, reopenedFilesCounter);
+        reopened.load();
+        assertValues(reopened);
+        reopened.close();
+    }
+
+    private static void assertValues(MappedFileDiskSSTableStorage storage) {
+        assertEquals("v1new", string(storage.get(buffer("k1")).value()));
+        assertEquals("v2new", string(storage.get(buffer("k2")).value()));
+        assertEquals("v3", string(storage.get(buffer("k3")).value()));
+    }
+
+    private static TypedEntry entry(String key, String value) {
+        return new TypedBaseEntry(buffer(key), buffer(value));
+    }
+
+    private static ByteBuffer buffer(String data) {
+        return ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+    }
+}
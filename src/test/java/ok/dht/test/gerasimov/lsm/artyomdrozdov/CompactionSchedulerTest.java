@@ -0,0 +1,93 @@
+package ok.dht.test.gerasimov.lsm.artyomdrozdov;
+
+import jdk.incubator.foreign.MemorySegment;
+import ok.dht.test.gerasimov.lsm.BaseEntry;
+import ok.dht.test.gerasimov.lsm.Config;
+import ok.dht.test.gerasimov.lsm.Entry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompactionSchedulerTest {
+
+    private static final Config CONFIG = new Config(Path.of("unused"), 1024, 4, 1000, 2.0);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void singleSSTableIsNotCompacted() {
+        assertFalse(CompactionScheduler.needsCompaction(CONFIG, 1, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE));
+        assertFalse(CompactionScheduler.needsCompaction(CONFIG, 0, 0, 0, 0));
+    }
+
+    @Test
+    void sstablesThreshold() {
+        assertFalse(CompactionScheduler.needsCompaction(CONFIG, 3, 0, 0, 0));
+        assertTrue(CompactionScheduler.needsCompaction(CONFIG, 4, 0, 0, 0));
+    }
+
+    @Test
+    void bytesThreshold() {
+        assertFalse(CompactionScheduler.needsCompaction(CONFIG, 2, 999, 0, 0));
+        assertTrue(CompactionScheduler.needsCompaction(CONFIG, 2, 1000, 0, 0));
+    }
+
+    @Test
+    void probesPerGetThreshold() {
+        long gets = CompactionScheduler.MIN_MEASURED_GETS;
+        assertFalse(CompactionScheduler.needsCompaction(CONFIG, 2, 0, gets, 2 * gets - 1));
+        assertTrue(CompactionScheduler.needsCompaction(CONFIG, 2, 0, gets, 2 * gets));
+    }
+
+    @Test
+    void probesAreNotTrustedUntilEnoughGets() {
+        long gets = CompactionScheduler.MIN_MEASURED_GETS - 1;
+        assertFalse(CompactionScheduler.needsCompaction(CONFIG, 2, 0, gets, 100 * gets));
+    }
+
+    @Test
+    @Timeout(30)
+    void flushesTriggerCompaction() throws Exception {
+        Config config = new Config(dir, 1024, 3, Long.MAX_VALUE, Double.MAX_VALUE);
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            for (int i = 0; i < 3; i++) {
+                dao.upsert(new BaseEntry<>(segment("k" + i), segment("v" + i)));
+                dao.flush();
+            }
+            while (sstablesCount() > 1) {
+                Thread.sleep(10);
+            }
+        }
+
+        try (MemorySegmentDao dao = new MemorySegmentDao(config)) {
+            for (int i = 0; i < 3; i++) {
+                Entry<MemorySegment> entry = dao.get(segment("k" + i));
+                assertNotNull(entry);
+                assertEquals("v" + i, new String(entry.value().toByteArray(), StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(1, sstablesCount());
+    }
+
+    private long sstablesCount() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().matches("data\\d+\\.dat")).count();
+        }
+    }
+
+    private static MemorySegment segment(String data) {
+        return MemorySegment.ofArray(data.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,149 @@
+package ok.dht.test.kazakov.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(60)
+class ArenaDaoMemoryTest {
+
+    private static final long THRESHOLD = 64L * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void overwritesOfHotKeyReachThreshold() {
+        final ArenaDaoMemory memory = new ArenaDaoMemory(THRESHOLD);
+        final MemorySegment key = segment("hot");
+        final MemorySegment value = MemorySegment.ofArray(new byte[1024]);
+
+        int puts = 0;
+        while (!memory.put(key, new BaseEntry<>(key, value))) {
+            puts++;
+            assertTrue(puts <= THRESHOLD / 1024, "dead values are not counted");
+        }
+        assertEquals(1, memory.values().size());
+    }
+
+    @Test
+    void memoryIsReleasedByLastReader() {
+        final ArenaDaoMemory memory = filledMemory();
+        final Entry<MemorySegment> inPlace = memory.values().iterator().next();
+
+        assertTrue(memory.tryAcquire());
+        memory.free();
+        assertEquals("key0", string(inPlace.key()));
+        memory.release();
+
+        assertThrows(IllegalStateException.class, () -> inPlace.key().toByteArray());
+        assertFalse(memory.tryAcquire());
+    }
+
+    @Test
+    void readersGetCopies() {
+        final ArenaDaoMemory memory = filledMemory();
+
+        assertTrue(memory.tryAcquire());
+        final Entry<MemorySegment> single = memory.get(segment("key1"));
+        final Entry<MemorySegment> ranged = memory.get(segment("key2"), null).next();
+        memory.free();
+
+        assertEquals("value1", string(single.value()));
+        assertEquals("value2", string(ranged.value()));
+    }
+
+    @Test
+    void exhaustedIteratorReleasesMemtable() {
+        final ArenaDaoMemory memory = filledMemory();
+
+        assertTrue(memory.tryAcquire());
+        final var iterator = memory.get(segment("key0"), segment("key2"));
+        memory.free();
+        assertTrue(memory.tryAcquire());
+        memory.release();
+
+        while (iterator.hasNext()) {
+            iterator.next();
+        }
+        assertFalse(iterator.hasNext());
+        assertFalse(memory.tryAcquire());
+    }
+
+    @Test
+    void readsDuringFlushesSeeEveryWrittenKey() throws Exception {
+        final MemorySegmentDao dao = new MemorySegmentDao(new Config(dir, THRESHOLD, true));
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicBoolean done = new AtomicBoolean();
+        final ExecutorService readers = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(readers.submit(() -> {
+                    while (!done.get()) {
+                        final int bound = written.get();
+                        if (bound == 0) {
+                            continue;
+                        }
+                        final int index = ThreadLocalRandom.current().nextInt(bound);
+                        final Entry<MemorySegment> entry = dao.get(segment("key" + index));
+                        assertNotNull(entry, "key" + index);
+                        assertEquals("value" + index, string(entry.value()));
+                        dao.get(segment("key" + index), null).next();
+                    }
+                    return null;
+                }));
+            }
+
+            for (int i = 0; i < 20_000; i++) {
+                dao.upsert(new BaseEntry<>(segment("key" + i), segment("value" + i)));
+                written.set(i + 1);
+                if (i % 2_000 == 0) {
+                    dao.flush();
+                }
+            }
+            done.set(true);
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            done.set(true);
+            readers.shutdown();
+            dao.close();
+        }
+    }
+
+    private static ArenaDaoMemory filledMemory() {
+        final ArenaDaoMemory memory = new ArenaDaoMemory(THRESHOLD);
+        for (int i = 0; i < 3; i++) {
+            memory.put(segment("key" + i), new BaseEntry<>(segment("key" + i), segment("value" + i)));
+        }
+        return memory;
+    }
+
+    private static MemorySegment segment(final String data) {
+        return MemorySegment.ofArray(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(final MemorySegment segment) {
+        return new String(segment.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
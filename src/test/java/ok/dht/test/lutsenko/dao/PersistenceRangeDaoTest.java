@@ -0,0 +1,148 @@
+package ok.dht.test.lutsenko.dao;
+
+import ok.dht.test.lutsenko.dao.common.BaseEntry;
+import ok.dht.test.lutsenko.dao.common.DaoConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PersistenceRangeDaoTest {
+
+    // ключи со спецсимволами прошлого формата и не-ASCII символами
+    private static final List<BaseEntry<String>> ENTRIES = List.of(
+            new BaseEntry<>("a\\b", "back\\slash"),
+            new BaseEntry<>("k1", "v1"),
+            new BaseEntry<>("k2\n", "new\nline"),
+            new BaseEntry<>("k3", ""),
+            new BaseEntry<>("ключ\\n", "значение\n\\")
+    );
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void entriesSurviveReopen() throws IOException {
+        PersistenceRangeDao dao = open();
+        for (BaseEntry<String> entry : ENTRIES) {
+            dao.upsert(entry);
+        }
+        dao.upsert(new BaseEntry<>("deleted", null));
+        dao.close();
+
+        assertEquals(List.of("daoData0.dat"), files());
+        dao = open();
+        try {
+            assertEntries(dao);
+            assertNull(dao.get("deleted"));
+        } finally {
+            dao.close();
+        }
+    }
+
+    @Test
+    void legacyFilesAreMigrated() throws IOException {
+        writeLegacy(dir.resolve("daoData0.txt"), List.of(
+                new BaseEntry<>("a\\b", "old"),
+                new BaseEntry<>("deleted", "old")
+        ));
+        List<BaseEntry<String>> newer = new ArrayList<>(ENTRIES);
+        newer.add(new BaseEntry<>("deleted", null));
+        newer.sort((e1, e2) -> e1.key().compareTo(e2.key()));
+        writeLegacy(dir.resolve("daoData1.txt"), newer);
+
+        PersistenceRangeDao dao = open();
+        try {
+            assertEntries(dao);
+            assertNull(dao.get("deleted"));
+        } finally {
+            dao.close();
+        }
+        assertEquals(List.of("daoData0.dat", "daoData1.dat"), files());
+    }
+
+    @Test
+    void interruptedMigrationIsFinished() throws IOException {
+        Path legacy = dir.resolve("daoData0.txt");
+        writeLegacy(legacy, ENTRIES);
+        byte[] legacyBytes = Files.readAllBytes(legacy);
+        open().close();
+        // сбой после переименования нового файла, но до удаления старого, и недописанный временный файл
+        Files.write(legacy, legacyBytes);
+        Files.write(dir.resolve("daoData1.dat.tmp"), new byte[]{1, 2, 3});
+        writeLegacy(dir.resolve("daoData1.txt"), List.of(new BaseEntry<>("m4", "v4")));
+
+        PersistenceRangeDao dao = open();
+        try {
+            assertEntries(dao);
+            assertEquals("v4", dao.get("m4").value());
+        } finally {
+            dao.close();
+        }
+        assertEquals(List.of("daoData0.dat", "daoData1.dat"), files());
+    }
+
+    private void assertEntries(PersistenceRangeDao dao) {
+        for (BaseEntry<String> entry : ENTRIES) {
+            assertEquals(entry, dao.get(entry.key()));
+        }
+        Iterator<BaseEntry<String>> all = dao.get("a", "l");
+        for (BaseEntry<String> entry : ENTRIES.subList(0, 4)) {
+            assertTrue(all.hasNext());
+            assertEquals(entry, all.next());
+        }
+        assertFalse(all.hasNext());
+    }
+
+    private PersistenceRangeDao open() throws IOException {
+        return new PersistenceRangeDao(new DaoConfig(dir, 1 << 20));
+    }
+
+    private List<String> files() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    // формат daoData*.txt, см. LegacyFormat
+    private static void writeLegacy(Path file, List<BaseEntry<String>> entries) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        buffer.putInt(0);
+        for (BaseEntry<String> entry : entries) {
+            byte[] key = escape(entry.key()).getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(key.length);
+            buffer.put(key);
+            int entrySize = Integer.BYTES * 4 + key.length + 1;
+            if (entry.value() == null) {
+                buffer.putInt(0);
+            } else {
+                byte[] value = escape(entry.value()).getBytes(StandardCharsets.UTF_8);
+                buffer.putInt(1);
+                buffer.putInt(value.length);
+                buffer.put(value);
+                entrySize += value.length;
+            }
+            buffer.put((byte) '\n');
+            buffer.putInt(entrySize);
+        }
+        Files.write(file, Arrays.copyOf(buffer.array(), buffer.position()));
+    }
+
+    private static String escape(String data) {
+        return data.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+}
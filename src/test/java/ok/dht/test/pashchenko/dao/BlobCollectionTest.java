@@ -0,0 +1,142 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.files;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.key;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.segment;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.string;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(60)
+class BlobCollectionTest {
+
+    private static final int COUNT = 100;
+    // the first blob file is mostly garbage after these keys are overwritten
+    private static final int OVERWRITTEN = 90;
+    private static final String BLOB_FILES = "blob\\d+\\.blob";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void leveledCollectionSurvivesReopen() throws IOException, InterruptedException {
+        collectionSurvivesReopen(config(CompactionStrategy.LEVELED));
+    }
+
+    @Test
+    void tieredCollectionSurvivesReopen() throws IOException, InterruptedException {
+        collectionSurvivesReopen(config(CompactionStrategy.TIERED));
+    }
+
+    // flushes put newer files to level 0 while the output is written, so the output never stays at the level
+    // of its inputs, otherwise its later ids would make it outrank the newer data
+    @Test
+    void tieredCollectionGoesToNextTier() throws IOException {
+        Config config = config(CompactionStrategy.TIERED);
+        writeGarbage(config);
+
+        Storage storage = Storage.load(config, Manifest.read(dir), new BloomFilterStats());
+        try {
+            Compaction compaction = Compaction.pick(storage, config);
+            assertNotNull(compaction);
+            assertFalse(compaction.collectedBlobs().isEmpty());
+            for (SSTable input : compaction.inputs()) {
+                assertTrue(input.level() < compaction.outputLevel());
+            }
+        } finally {
+            storage.close();
+        }
+    }
+
+    private void collectionSurvivesReopen(Config config) throws IOException, InterruptedException {
+        Path garbage = writeGarbage(config);
+
+        // compaction is scheduled on start
+        MemorySegmentDao dao = new MemorySegmentDao(config);
+        try {
+            while (Files.exists(garbage)) {
+                Thread.sleep(10);
+            }
+            assertValues(dao);
+        } finally {
+            dao.close();
+        }
+        List<Path> blobs = files(dir, BLOB_FILES);
+
+        dao = new MemorySegmentDao(config);
+        try {
+            assertValues(dao);
+        } finally {
+            dao.close();
+        }
+        assertFalse(Files.exists(garbage));
+        assertEquals(blobs, files(dir, BLOB_FILES));
+    }
+
+    // the blob file of the first flush, its values are mostly overwritten after compaction
+    private Path writeGarbage(Config config) throws IOException {
+        Path garbage;
+        MemorySegmentDao dao = new MemorySegmentDao(config);
+        try {
+            for (int i = 0; i < COUNT; i++) {
+                dao.upsert(new Entry(key(i), value(i, 1)));
+            }
+            dao.flush();
+            List<Path> blobs = files(dir, BLOB_FILES);
+            assertEquals(1, blobs.size());
+            garbage = blobs.get(0);
+
+            for (int i = 0; i < OVERWRITTEN; i++) {
+                dao.upsert(new Entry(key(i), value(i, 2)));
+            }
+            dao.flush();
+            dao.compact();
+            assertTrue(Files.exists(garbage));
+            assertValues(dao);
+        } finally {
+            dao.close();
+        }
+        return garbage;
+    }
+
+    private static void assertValues(MemorySegmentDao dao) {
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(string(value(i, i < OVERWRITTEN ? 2 : 1)), string(dao.get(key(i)).value()));
+        }
+    }
+
+    // values are large enough to be kept in blob files
+    private static MemorySegment value(int i, int version) {
+        StringBuilder value = new StringBuilder("value" + i + "v" + version);
+        while (value.length() < 128) {
+            value.append('.');
+        }
+        return segment(value.toString());
+    }
+
+    private Config config(CompactionStrategy compactionStrategy) {
+        // automatic compactions only collect blob files
+        long flushThresholdBytes = 1024 * 1024;
+        return new Config(
+                dir,
+                flushThresholdBytes,
+                compactionStrategy,
+                Integer.MAX_VALUE,
+                1L << 40,
+                10,
+                flushThresholdBytes * 2
+        ).withBlobs(64, 0.5);
+    }
+}
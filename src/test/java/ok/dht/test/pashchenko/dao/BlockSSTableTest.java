@@ -0,0 +1,279 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.keys;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.segment;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.string;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(60)
+class BlockSSTableTest {
+
+    private static final int COUNT = 2000;
+    // keys differ only in the last bytes, so most of every key is shared with the previous one
+    private static final String PREFIX = "k".repeat(300);
+    private static final int FOOTER_SIZE = Long.BYTES * 6;
+
+    private final ResourceScope scope = ResourceScope.newConfinedScope();
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void unmap() {
+        scope.close();
+    }
+
+    @Test
+    void entriesRoundTrip() throws IOException {
+        List<Entry> entries = entries();
+        SSTable sstable = open(write(entries));
+
+        assertTrue(blockStarts(sstable.file).length > 1);
+        assertEquals(COUNT, sstable.entryCount());
+        assertTrue(sstable.hasTombstones());
+        assertEquals(string(key(0)), string(sstable.minKey()));
+        assertEquals(string(key(COUNT - 1)), string(sstable.maxKey()));
+        assertEntries(entries, sstable.iterate(null, null));
+        for (Entry entry : entries) {
+            assertEntry(entry, sstable.get(entry.key()));
+        }
+        // the keys between the written ones, before the first one and after the last one
+        for (int i = -1; i < COUNT; i++) {
+            assertNull(sstable.get(between(i)));
+        }
+        assertNull(sstable.get(segment(PREFIX)));
+    }
+
+    // the first entry of a block and every restart entry keep the whole key, the rest only the unshared part
+    @Test
+    void seekToRestartsAndBlockBoundaries() throws IOException {
+        List<Entry> entries = entries();
+        SSTable sstable = open(write(entries));
+
+        List<Integer> boundaries = new ArrayList<>();
+        long[] blockStarts = blockStarts(sstable.file);
+        for (int block = 0; block < blockStarts.length; block++) {
+            int first = indexOf(firstKey(sstable.file, blockStarts[block]));
+            int end = block + 1 < blockStarts.length
+                    ? indexOf(firstKey(sstable.file, blockStarts[block + 1]))
+                    : COUNT;
+            for (int restart = first; restart < end; restart += SSTableWriter.RESTART_INTERVAL) {
+                boundaries.add(restart);
+            }
+            // the last entry of the block
+            boundaries.add(end - 1);
+        }
+
+        for (int i : boundaries) {
+            assertEntry(entries.get(i), sstable.get(key(i)));
+            assertEntries(entries.subList(i, COUNT), sstable.iterate(key(i), null));
+            assertEntries(entries.subList(i, i + 1), sstable.iterate(key(i), between(i)));
+            if (i > 0) {
+                assertEntries(entries.subList(i, COUNT), sstable.iterate(between(i - 1), null));
+                assertEntries(entries.subList(0, i), sstable.iterate(null, key(i)));
+            }
+        }
+    }
+
+    // from is bigger than the last key of a block and less than the first key of the next one
+    @Test
+    void rangeFromBetweenBlocks() throws IOException {
+        List<Entry> entries = entries();
+        SSTable sstable = open(write(entries));
+
+        long[] blockStarts = blockStarts(sstable.file);
+        for (int block = 1; block < blockStarts.length; block++) {
+            int first = indexOf(firstKey(sstable.file, blockStarts[block]));
+            assertEntries(entries.subList(first, COUNT), sstable.iterate(between(first - 1), null));
+            assertEntries(
+                    entries.subList(first, Math.min(first + 3, COUNT)),
+                    sstable.iterate(between(first - 1), key(Math.min(first + 3, COUNT - 1)))
+            );
+        }
+        assertEntries(entries, sstable.iterate(between(-1), null));
+        assertFalse(sstable.iterate(between(COUNT - 1), null).hasNext());
+        assertFalse(sstable.iterate(between(0), key(1)).hasNext());
+    }
+
+    @Test
+    void singleEntry() throws IOException {
+        List<Entry> entries = List.of(new Entry(key(0), value(0)));
+        SSTable sstable = open(write(entries));
+
+        assertEquals(1, sstable.entryCount());
+        assertFalse(sstable.hasTombstones());
+        assertEquals(string(key(0)), string(sstable.minKey()));
+        assertEquals(string(key(0)), string(sstable.maxKey()));
+        assertEntry(entries.get(0), sstable.get(key(0)));
+        assertNull(sstable.get(between(-1)));
+        assertNull(sstable.get(between(0)));
+        assertEntries(entries, sstable.iterate(null, null));
+        assertEntries(entries, sstable.iterate(between(-1), between(0)));
+        assertFalse(sstable.iterate(between(0), null).hasNext());
+        assertFalse(sstable.iterate(null, key(0)).hasNext());
+    }
+
+    @Test
+    void emptyTable() throws IOException {
+        SSTable sstable = open(write(List.of()));
+
+        assertTrue(sstable.isEmpty());
+        assertEquals(0, sstable.entryCount());
+        assertNull(sstable.minKey());
+        assertNull(sstable.maxKey());
+        assertFalse(sstable.overlaps(key(0), key(COUNT)));
+        assertNull(sstable.get(key(0)));
+        assertFalse(sstable.iterate(null, null).hasNext());
+        assertFalse(sstable.iterate(key(0), key(COUNT)).hasNext());
+    }
+
+    // files of VERSION_WITH_HEADER are read in place, they are only rewritten by compaction
+    @Test
+    void versionWithHeaderIsRead() throws IOException {
+        List<Entry> entries = entries();
+        Path path = toVersionWithHeader(write(entries));
+        SSTable sstable = open(path);
+
+        assertEquals(BlockSSTable.VERSION_WITH_HEADER, MemoryAccess.getLongAtOffset(sstable.file, 0));
+        assertEquals(COUNT, sstable.entryCount());
+        assertTrue(sstable.hasTombstones());
+        assertTrue(sstable.rangeTombstones().isEmpty());
+        assertTrue(sstable.blobReferences().isEmpty());
+        assertEquals(string(key(COUNT - 1)), string(sstable.maxKey()));
+        assertEntries(entries, sstable.iterate(null, null));
+        for (int i = 0; i < COUNT; i++) {
+            assertEntry(entries.get(i), sstable.get(key(i)));
+            assertNull(sstable.get(between(i)));
+            assertTrue(sstable.filter().mightContain(BloomFilter.hash(key(i))));
+        }
+        assertEntries(entries.subList(COUNT / 2, COUNT), sstable.iterate(between(COUNT / 2 - 1), null));
+    }
+
+    // every 7th entry is a tombstone
+    private static List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < COUNT; i++) {
+            entries.add(new Entry(key(i), i % 7 == 3 ? null : value(i)));
+        }
+        return entries;
+    }
+
+    private static MemorySegment key(int i) {
+        return segment(PREFIX + String.format("%08d", i * 2));
+    }
+
+    // not written: bigger than key(i) and less than key(i + 1)
+    private static MemorySegment between(int i) {
+        return segment(PREFIX + String.format("%08d", i * 2 + 1));
+    }
+
+    private static MemorySegment value(int i) {
+        return segment("value" + i);
+    }
+
+    private static int indexOf(MemorySegment key) {
+        return Integer.parseInt(string(key).substring(PREFIX.length())) / 2;
+    }
+
+    private static void assertEntry(Entry expected, Entry actual) {
+        assertEquals(string(expected.key()), string(actual.key()));
+        assertEquals(string(expected.value()), string(actual.value()));
+    }
+
+    private static void assertEntries(List<Entry> expected, Iterator<Entry> actual) {
+        List<Entry> entries = new ArrayList<>();
+        actual.forEachRemaining(entries::add);
+        assertEquals(keys(expected.iterator()), keys(entries.iterator()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertEntry(expected.get(i), entries.get(i));
+        }
+    }
+
+    private Path write(List<Entry> entries) throws IOException {
+        Path path = dir.resolve("data" + entries.size() + ".dat");
+        try (BlobWriter blobWriter = new BlobWriter(dir.resolve("blob0.blob"), 0, 0, Set.of())) {
+            SSTableWriter.write(entries.iterator(), RangeTombstones.EMPTY, entries.size(), path, blobWriter);
+        }
+        return path;
+    }
+
+    private SSTable open(Path path) throws IOException {
+        MemorySegment file = MemorySegment.mapFile(path, 0, Files.size(path), FileChannel.MapMode.READ_ONLY, scope);
+        return SSTable.open(file, path, 0, 0, blobId -> {
+            throw new IllegalStateException("No blob files");
+        });
+    }
+
+    private static long footer(MemorySegment file, int field) {
+        return MemoryAccess.getLongAtOffset(file, file.byteSize() - FOOTER_SIZE + (long) field * Long.BYTES);
+    }
+
+    // block index of the latest version: (blockCount) is the 3rd field of the footer, (blockIndexOffset) the 4th
+    private static long[] blockStarts(MemorySegment file) {
+        long[] blockStarts = new long[(int) footer(file, 2)];
+        long blockIndexOffset = footer(file, 3);
+        for (int i = 0; i < blockStarts.length; i++) {
+            blockStarts[i] = MemoryAccess.getLongAtOffset(file, blockIndexOffset + (long) i * Long.BYTES);
+        }
+        return blockStarts;
+    }
+
+    private static MemorySegment firstKey(MemorySegment file, long blockStart) {
+        assertEquals(0, MemoryAccess.getIntAtOffset(file, blockStart));
+        int keySize = MemoryAccess.getIntAtOffset(file, blockStart + Integer.BYTES);
+        return file.asSlice(blockStart + BlockSSTable.ENTRY_HEADER_SIZE, keySize);
+    }
+
+    // the same blocks and filter with the metadata in the header instead of the footer
+    private Path toVersionWithHeader(Path path) throws IOException {
+        byte[] file = Files.readAllBytes(path);
+        MemorySegment segment = MemorySegment.ofArray(file);
+        long entryCount = footer(segment, 0);
+        long hasTombstones = footer(segment, 1);
+        long blockCount = footer(segment, 2);
+        long blockIndexOffset = footer(segment, 3);
+        long rangeTombstonesOffset = footer(segment, 4);
+        int headerSize = Long.BYTES * 4;
+
+        ByteBuffer result = ByteBuffer.allocate((int) rangeTombstonesOffset + headerSize)
+                .order(ByteOrder.nativeOrder());
+        result.putLong(BlockSSTable.VERSION_WITH_HEADER);
+        result.putLong(entryCount);
+        result.putLong(hasTombstones);
+        result.putLong(blockCount);
+        result.putLong(blockIndexOffset + headerSize);
+        result.put(file, Long.BYTES, (int) blockIndexOffset - Long.BYTES);
+        for (int i = 0; i < blockCount; i++) {
+            long blockStart = MemoryAccess.getLongAtOffset(segment, blockIndexOffset + (long) i * Long.BYTES);
+            result.putLong(blockStart + headerSize);
+        }
+        long filterOffset = blockIndexOffset + blockCount * Long.BYTES;
+        result.put(file, (int) filterOffset, (int) (rangeTombstonesOffset - filterOffset));
+
+        Path converted = dir.resolve("data-v2.dat");
+        Files.write(converted, result.array());
+        return converted;
+    }
+}
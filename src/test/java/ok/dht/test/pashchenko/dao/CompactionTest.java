@@ -0,0 +1,223 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.files;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.key;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.segment;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.string;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(60)
+class CompactionTest {
+
+    private static final long TARGET_FILE_SIZE = 4096;
+    private static final String DATA_FILES = "data\\d+\\.dat";
+
+    // file name -> level, the set the storage is loaded from
+    private final Map<String, Integer> tables = new HashMap<>();
+    private long nextId;
+    private Manifest manifest;
+    private Storage storage;
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void close() throws IOException {
+        if (storage != null) {
+            storage.close();
+        }
+        if (manifest != null) {
+            manifest.close();
+        }
+    }
+
+    // level 0 sstables overlap each other and both sstables of level 1,
+    // the merge is split by the target file size into sstables of disjoint key ranges
+    @Test
+    void leveledOutputsDontOverlap() throws IOException {
+        Config config = leveled(3, 1L << 40);
+        table(config, 1, entries(0, 100, "v1"));
+        table(config, 1, entries(200, 300, "v1"));
+        table(config, 0, entries(50, 250, "v2"));
+        table(config, 0, entries(80, 120, "v3"));
+        table(config, 0, entries(280, 400, "v4"));
+        load(config);
+
+        Compaction compaction = Compaction.pick(storage, config);
+        assertNotNull(compaction);
+        assertFalse(compaction.isTrivialMove());
+        assertEquals(1, compaction.outputLevel());
+        assertEquals(5, compaction.inputs().size());
+        run(config, compaction);
+
+        assertTrue(storage.level(0).isEmpty());
+        List<SSTable> level1 = new ArrayList<>(storage.level(1));
+        assertTrue(level1.size() > 1);
+        level1.sort((s1, s2) -> MemorySegmentComparator.INSTANCE.compare(s1.minKey(), s2.minKey()));
+        for (int i = 1; i < level1.size(); i++) {
+            MemorySegment previousMaxKey = level1.get(i - 1).maxKey();
+            assertTrue(MemorySegmentComparator.INSTANCE.compare(previousMaxKey, level1.get(i).minKey()) < 0);
+        }
+        for (int i = 0; i < 400; i++) {
+            String version = i >= 80 && i < 120 ? "v3" : i >= 50 && i < 250 ? "v2" : i >= 280 ? "v4" : "v1";
+            assertEquals("value" + i + version, string(storage.get(key(i)).value()));
+        }
+        assertNull(Compaction.pick(storage, config));
+    }
+
+    // nothing at the next level overlaps the only input, so it is moved there as is
+    @Test
+    void trivialMove() throws IOException {
+        Config config = leveled(1, 1L << 40);
+        table(config, 1, entries(0, 100, "v1"));
+        Path moved = table(config, 0, entries(200, 300, "v2"));
+        load(config);
+        List<Path> dataFiles = files(dir, DATA_FILES);
+
+        Compaction compaction = Compaction.pick(storage, config);
+        assertNotNull(compaction);
+        assertTrue(compaction.isTrivialMove());
+        assertEquals(1, compaction.outputLevel());
+        assertEquals(List.of(moved), compaction.inputs().stream().map(SSTable::path).toList());
+        run(config, compaction);
+
+        assertEquals(dataFiles, files(dir, DATA_FILES));
+        assertTrue(storage.level(0).isEmpty());
+        assertEquals(2, storage.level(1).size());
+        assertEquals(Integer.valueOf(1), tables.get(moved.getFileName().toString()));
+        assertEquals("value250v2", string(storage.get(key(250)).value()));
+    }
+
+    // tombstones still cover the older entries of level 2 after level 0 is pushed to level 1,
+    // and they are dropped when level 1 is pushed to the bottom level
+    @Test
+    void tombstonesAreDroppedOnlyAtBottomLevel() throws IOException {
+        // every level but level 0 is oversized
+        Config config = leveled(1, 1);
+        table(config, 2, entries(0, 100, "v1"));
+        // overlaps level 0, so it is merged rather than moved
+        table(config, 1, entries(40, 60, "v2"));
+        table(config, 0, tombstones(0, 50));
+        load(config);
+
+        Compaction compaction = Compaction.pick(storage, config);
+        assertNotNull(compaction);
+        assertFalse(compaction.isTrivialMove());
+        assertEquals(1, compaction.outputLevel());
+        run(config, compaction);
+        assertTrue(storage.level(1).stream().allMatch(SSTable::hasTombstones));
+        assertNull(storage.get(key(10)).value());
+        assertNull(storage.get(key(45)).value());
+        assertEquals("value55v2", string(storage.get(key(55)).value()));
+
+        compaction = Compaction.pick(storage, config);
+        assertNotNull(compaction);
+        assertEquals(2, compaction.outputLevel());
+        run(config, compaction);
+        assertTrue(storage.level(1).isEmpty());
+        assertFalse(storage.level(2).stream().anyMatch(SSTable::hasTombstones));
+        assertNull(storage.get(key(10)));
+        assertNull(storage.get(key(45)));
+        assertEquals("value55v2", string(storage.get(key(55)).value()));
+        assertEquals("value60v1", string(storage.get(key(60)).value()));
+    }
+
+    // a merged tier goes to the next one, tombstones are dropped only when nothing is left below
+    @Test
+    void tieredOutputGoesToNextLevel() throws IOException {
+        Config config = new Config(dir, 1024 * 1024, CompactionStrategy.TIERED, 2, 1L << 40, 10, TARGET_FILE_SIZE);
+        table(config, 1, entries(0, 100, "v1"));
+        table(config, 0, entries(50, 150, "v2"));
+        table(config, 0, tombstones(0, 20));
+        load(config);
+
+        Compaction compaction = Compaction.pick(storage, config);
+        assertNotNull(compaction);
+        assertEquals(1, compaction.outputLevel());
+        assertTrue(compaction.inputs().stream().allMatch(input -> input.level() == 0));
+        run(config, compaction);
+        assertTrue(storage.level(0).isEmpty());
+        assertEquals(2, storage.level(1).size());
+        assertNull(storage.get(key(10)).value());
+
+        compaction = Compaction.pick(storage, config);
+        assertNotNull(compaction);
+        assertEquals(2, compaction.outputLevel());
+        assertTrue(compaction.inputs().stream().allMatch(input -> input.level() == 1));
+        run(config, compaction);
+        assertTrue(storage.level(1).isEmpty());
+        assertEquals(1, storage.level(2).size());
+        assertFalse(storage.level(2).get(0).hasTombstones());
+        assertNull(storage.get(key(10)));
+        assertEquals("value30v1", string(storage.get(key(30)).value()));
+        assertEquals("value120v2", string(storage.get(key(120)).value()));
+        assertNull(Compaction.pick(storage, config));
+    }
+
+    private Config leveled(int level0CompactionTrigger, long baseLevelSizeBytes) {
+        return new Config(
+                dir,
+                1024 * 1024,
+                CompactionStrategy.LEVELED,
+                level0CompactionTrigger,
+                baseLevelSizeBytes,
+                10,
+                TARGET_FILE_SIZE
+        );
+    }
+
+    private static List<Entry> entries(int from, int to, String version) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            entries.add(new Entry(key(i), segment("value" + i + version)));
+        }
+        return entries;
+    }
+
+    private static List<Entry> tombstones(int from, int to) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            entries.add(new Entry(key(i), null));
+        }
+        return entries;
+    }
+
+    // newer sstables get bigger ids
+    private Path table(Config config, int level, List<Entry> entries) throws IOException {
+        Path path = Storage.save(config, nextId++, entries, RangeTombstones.EMPTY).get(0);
+        tables.put(path.getFileName().toString(), level);
+        return path;
+    }
+
+    private void load(Config config) throws IOException {
+        manifest = Manifest.create(dir, tables);
+        storage = Storage.load(config, manifest.tables(), new BloomFilterStats());
+    }
+
+    private void run(Config config, Compaction compaction) throws IOException {
+        List<Path> outputs = Storage.compact(config, compaction, () -> nextId++);
+        Storage.commitCompaction(manifest, compaction, outputs);
+        tables.clear();
+        tables.putAll(manifest.tables());
+        Storage previous = storage;
+        storage = Storage.load(config, tables, new BloomFilterStats());
+        previous.close();
+    }
+}
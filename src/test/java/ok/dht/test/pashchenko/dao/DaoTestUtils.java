@@ -0,0 +1,69 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+final class DaoTestUtils {
+
+    private DaoTestUtils() {
+    }
+
+    static MemorySegment segment(String data) {
+        return MemorySegment.ofArray(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String string(MemorySegment segment) {
+        return segment == null ? null : new String(segment.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // keys of the same width are ordered as their numbers
+    static MemorySegment key(int i) {
+        return segment(String.format("key%08d", i));
+    }
+
+    static MemorySegment value(int i) {
+        return segment("value" + i);
+    }
+
+    static Entry entry(int i) {
+        return new Entry(key(i), value(i));
+    }
+
+    static String get(MemorySegmentDao dao, int i) {
+        Entry entry = dao.get(key(i));
+        return entry == null ? null : string(entry.value());
+    }
+
+    static List<String> keys(Iterator<Entry> entries) {
+        List<String> keys = new ArrayList<>();
+        while (entries.hasNext()) {
+            keys.add(string(entries.next().key()));
+        }
+        return keys;
+    }
+
+    // the files of an open dao as they would be found after a crash at this moment
+    static Path crashImage(Path dir) throws IOException {
+        Path image = Files.createTempDirectory(dir.getParent(), "crash");
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, image.resolve(file.getFileName()));
+            }
+        }
+        return image;
+    }
+
+    static List<Path> files(Path dir, String regex) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().matches(regex)).sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package ok.dht.test.pashchenko.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.crashImage;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.entry;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.get;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(60)
+class ManifestTest {
+
+    private static final int COUNT = 100;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void editsAreReplayed() throws IOException {
+        assertNull(Manifest.read(dir));
+        try (Manifest manifest = Manifest.create(dir, Map.of())) {
+            manifest.commit(new Manifest.Edit().add(dir.resolve("data0.dat"), 0).add(dir.resolve("data1.dat"), 0));
+            manifest.commit(new Manifest.Edit().remove(dir.resolve("data0.dat")).add(dir.resolve("data2.dat"), 1));
+            assertEquals(Map.of("data1.dat", 0, "data2.dat", 1), manifest.tables());
+        }
+        assertEquals(Map.of("data1.dat", 0, "data2.dat", 1), Manifest.read(dir));
+    }
+
+    @Test
+    void tornEditIsNotApplied() throws IOException {
+        try (Manifest manifest = Manifest.create(dir, Map.of("data0.dat", 0))) {
+            manifest.commit(new Manifest.Edit().remove(dir.resolve("data0.dat")).add(dir.resolve("data1.dat"), 1));
+        }
+        try (FileChannel channel = FileChannel.open(dir.resolve("MANIFEST"), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        // the removal and the addition of the torn edit are dropped together
+        assertEquals(Map.of("data0.dat", 0), Manifest.read(dir));
+    }
+
+    @Test
+    void logIsRewrittenAsSnapshot() throws IOException {
+        try (Manifest manifest = Manifest.create(dir, Map.of())) {
+            for (int i = 0; i < 3000; i++) {
+                manifest.commit(new Manifest.Edit().add(dir.resolve("data" + i + ".dat"), 0));
+                manifest.commit(new Manifest.Edit().remove(dir.resolve("data" + i + ".dat")));
+            }
+            manifest.commit(new Manifest.Edit().add(dir.resolve("data3000.dat"), 2));
+        }
+        assertEquals(Map.of("data3000.dat", 2), Manifest.read(dir));
+        assertTrue(Files.size(dir.resolve("MANIFEST")) < 64 * 1024);
+    }
+
+    // an interrupt closes the channel in the middle of the append
+    @Test
+    void editsAfterFailedCommitAreReplayed() throws IOException {
+        try (Manifest manifest = Manifest.create(dir, Map.of("data0.dat", 0))) {
+            Thread.currentThread().interrupt();
+            try {
+                Manifest.Edit edit = new Manifest.Edit().add(dir.resolve("data1.dat"), 0);
+                assertThrows(IOException.class, () -> manifest.commit(edit));
+            } finally {
+                Thread.interrupted();
+            }
+            assertEquals(Map.of("data0.dat", 0), manifest.tables());
+
+            manifest.commit(new Manifest.Edit().add(dir.resolve("data2.dat"), 0));
+            manifest.commit(new Manifest.Edit().add(dir.resolve("data3.dat"), 1));
+        }
+        assertEquals(Map.of("data0.dat", 0, "data2.dat", 0, "data3.dat", 1), Manifest.read(dir));
+    }
+
+    @Test
+    void editIsNotAppliedIfSnapshotFails() throws IOException {
+        try (Manifest manifest = Manifest.create(dir, Map.of())) {
+            // the next edit rewrites the log as a snapshot
+            for (int i = 0; i < 512; i++) {
+                manifest.commit(new Manifest.Edit().add(dir.resolve("data" + i + ".dat"), 0));
+                manifest.commit(new Manifest.Edit().remove(dir.resolve("data" + i + ".dat")));
+            }
+            // which can't be written aside
+            Files.createDirectory(dir.resolve("MANIFEST.tmp"));
+            Manifest.Edit edit = new Manifest.Edit().add(dir.resolve("data0.dat"), 0);
+            assertThrows(IOException.class, () -> manifest.commit(edit));
+            assertEquals(Map.of(), manifest.tables());
+
+            Files.delete(dir.resolve("MANIFEST.tmp"));
+            manifest.commit(new Manifest.Edit().add(dir.resolve("data1.dat"), 0));
+            assertEquals(Map.of("data1.dat", 0), manifest.tables());
+        }
+        assertEquals(Map.of("data1.dat", 0), Manifest.read(dir));
+    }
+
+    @Test
+    void uncommittedFilesAreDeletedOnStart() throws IOException {
+        Path image;
+        MemorySegmentDao dao = open(dir);
+        try {
+            upsertAll(dao);
+            dao.flush();
+            image = crashImage(dir);
+        } finally {
+            dao.close();
+        }
+        // sstable and blob file written by a flush which crashed before its edit was committed
+        Files.write(image.resolve("data99.dat"), new byte[]{1, 2, 3});
+        Files.write(image.resolve("blob99.blob"), new byte[]{1, 2, 3});
+        Files.write(image.resolve("MANIFEST.tmp"), new byte[]{1, 2, 3});
+
+        dao = open(image);
+        try {
+            assertGetAll(dao);
+        } finally {
+            dao.close();
+        }
+        assertFalse(Files.exists(image.resolve("data99.dat")));
+        assertFalse(Files.exists(image.resolve("blob99.blob")));
+        assertFalse(Files.exists(image.resolve("MANIFEST.tmp")));
+    }
+
+    @Test
+    void directoryWithoutManifestIsRecoveredFromFileNames() throws IOException {
+        MemorySegmentDao dao = open(dir);
+        try {
+            upsertAll(dao);
+        } finally {
+            dao.close();
+        }
+        // as it was written before the manifest existed
+        Files.delete(dir.resolve("MANIFEST"));
+
+        dao = open(dir);
+        try {
+            assertGetAll(dao);
+        } finally {
+            dao.close();
+        }
+        assertEquals(1, Manifest.read(dir).size());
+    }
+
+    private static void upsertAll(MemorySegmentDao dao) {
+        for (int i = 0; i < COUNT; i++) {
+            dao.upsert(entry(i));
+        }
+    }
+
+    private static void assertGetAll(MemorySegmentDao dao) {
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals("value" + i, get(dao, i));
+        }
+    }
+
+    private static MemorySegmentDao open(Path dir) throws IOException {
+        return new MemorySegmentDao(new Config(dir, 1024 * 1024));
+    }
+}
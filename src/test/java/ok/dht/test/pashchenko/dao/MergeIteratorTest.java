@@ -0,0 +1,54 @@
+package ok.dht.test.pashchenko.dao;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class MergeIteratorTest {
+
+    // elements are (key, source), only keys are compared
+    private static final Comparator<int[]> BY_KEY = Comparator.comparingInt(element -> element[0]);
+
+    @Test
+    void mergesLikeSortedMapWithNewerSourcesWinning() {
+        Random random = new Random(42);
+        for (int k = 0; k <= 9; k++) {
+            for (int attempt = 0; attempt < 20; attempt++) {
+                List<Iterator<int[]>> iterators = new ArrayList<>();
+                // the later source overrides the earlier ones
+                Map<Integer, Integer> expected = new TreeMap<>();
+                for (int source = 0; source < k; source++) {
+                    TreeSet<Integer> keys = new TreeSet<>();
+                    int size = random.nextInt(50);
+                    for (int i = 0; i < size; i++) {
+                        keys.add(random.nextInt(100));
+                    }
+                    List<int[]> elements = new ArrayList<>();
+                    for (int key : keys) {
+                        elements.add(new int[]{key, source});
+                        expected.put(key, source);
+                    }
+                    iterators.add(elements.iterator());
+                }
+
+                Iterator<int[]> merged = MergeIterator.of(iterators, BY_KEY);
+                for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+                    int[] element = merged.next();
+                    assertEquals((int) entry.getKey(), element[0]);
+                    assertEquals((int) entry.getValue(), element[1]);
+                }
+                assertFalse(merged.hasNext());
+            }
+        }
+    }
+}
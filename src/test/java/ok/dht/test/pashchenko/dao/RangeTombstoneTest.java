@@ -0,0 +1,121 @@
+package ok.dht.test.pashchenko.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.crashImage;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.entry;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.get;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.key;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.keys;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+@Timeout(60)
+class RangeTombstoneTest {
+
+    private static final int COUNT = 100;
+    private static final int WRITERS = 4;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void rangeIsDeletedInMemoryStorageAndAfterReopen() throws IOException {
+        MemorySegmentDao dao = open(dir);
+        try {
+            for (int i = 0; i < COUNT / 2; i++) {
+                dao.upsert(entry(i));
+            }
+            dao.flush();
+            for (int i = COUNT / 2; i < COUNT; i++) {
+                dao.upsert(entry(i));
+            }
+            dao.delete(key(10), key(90));
+            dao.upsert(entry(50));
+
+            assertDeleted(dao);
+            dao.flush();
+            assertDeleted(dao);
+        } finally {
+            dao.close();
+        }
+
+        dao = open(dir);
+        try {
+            assertDeleted(dao);
+        } finally {
+            dao.close();
+        }
+    }
+
+    // every upsert is either before or after every range delete both in the memtable and in the log,
+    // so the replayed log is the same as what the dao returned before the crash
+    @Test
+    void memtableAgreesWithLogUnderConcurrentUpserts() throws Exception {
+        MemorySegmentDao dao = open(dir);
+        ExecutorService writers = Executors.newFixedThreadPool(WRITERS);
+        AtomicBoolean done = new AtomicBoolean();
+        List<String> live;
+        Path image;
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < WRITERS; t++) {
+                futures.add(writers.submit(() -> {
+                    while (!done.get()) {
+                        for (int i = 0; i < COUNT; i++) {
+                            dao.upsert(entry(i));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (int i = 0; i < 200; i++) {
+                dao.delete(key(0), key(COUNT));
+            }
+            done.set(true);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            live = keys(dao.get(null, null));
+            image = crashImage(dir);
+        } finally {
+            done.set(true);
+            writers.shutdown();
+            dao.close();
+        }
+
+        MemorySegmentDao replayed = open(image);
+        try {
+            assertEquals(live, keys(replayed.get(null, null)));
+        } finally {
+            replayed.close();
+        }
+    }
+
+    private static void assertDeleted(MemorySegmentDao dao) {
+        for (int i = 0; i < COUNT; i++) {
+            if (i < 10 || i >= 90 || i == 50) {
+                assertEquals("value" + i, get(dao, i));
+            } else {
+                assertNull(get(dao, i));
+            }
+        }
+        assertEquals(21, keys(dao.get(null, null)).size());
+    }
+
+    private static MemorySegmentDao open(Path dir) throws IOException {
+        return new MemorySegmentDao(new Config(dir, 1024 * 1024).withWalSyncMode(WalSyncMode.NONE, 0));
+    }
+}
@@ -0,0 +1,88 @@
+package ok.dht.test.pashchenko.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.get;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.key;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.segment;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@Timeout(60)
+class RowCacheTest {
+
+    private static final int KEYS = 4;
+    private static final int READERS = 4;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void cacheIsInvalidatedByUpsert() throws IOException {
+        MemorySegmentDao dao = open(dir);
+        try {
+            dao.upsert(new Entry(key(0), segment("old")));
+            dao.flush();
+            assertEquals("old", get(dao, 0));
+            dao.upsert(new Entry(key(0), segment("new")));
+            assertEquals("new", get(dao, 0));
+            dao.flush();
+            assertEquals("new", get(dao, 0));
+        } finally {
+            dao.close();
+        }
+    }
+
+    // a read which misses the memtable right before an upsert gets to it must not cache the old value
+    // after the upsert is flushed
+    @Test
+    void readsRacingWithUpsertsAndFlushesDoNotCacheStaleValues() throws Exception {
+        MemorySegmentDao dao = open(dir);
+        ExecutorService readers = Executors.newFixedThreadPool(READERS);
+        AtomicBoolean done = new AtomicBoolean();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < READERS; t++) {
+                futures.add(readers.submit(() -> {
+                    while (!done.get()) {
+                        get(dao, ThreadLocalRandom.current().nextInt(KEYS));
+                    }
+                    return null;
+                }));
+            }
+
+            for (int round = 0; round < 300; round++) {
+                for (int i = 0; i < KEYS; i++) {
+                    dao.upsert(new Entry(key(i), segment("value" + i + "-" + round)));
+                }
+                dao.flush();
+                for (int i = 0; i < KEYS; i++) {
+                    assertEquals("value" + i + "-" + round, get(dao, i));
+                }
+            }
+            done.set(true);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            done.set(true);
+            readers.shutdown();
+            dao.close();
+        }
+    }
+
+    private static MemorySegmentDao open(Path dir) throws IOException {
+        return new MemorySegmentDao(new Config(dir, 1024 * 1024).withRowCache(1024 * 1024));
+    }
+}
@@ -0,0 +1,203 @@
+package ok.dht.test.pashchenko.dao;
+
+import jdk.incubator.foreign.MemorySegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.crashImage;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.entry;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.files;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.get;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.key;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.segment;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.string;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(60)
+class WriteAheadLogTest {
+
+    private static final int COUNT = 100;
+    private static final String SEGMENT_REGEX = "wal\\d+\\.log";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void unflushedUpsertsAreReplayedAfterCrash() throws IOException {
+        Path image;
+        MemorySegmentDao dao = open(dir);
+        try {
+            upsertAll(dao);
+            dao.upsert(new Entry(key(0), null));
+            image = crashImage(dir);
+        } finally {
+            dao.close();
+        }
+
+        dao = open(image);
+        try {
+            assertNull(get(dao, 0));
+            for (int i = 1; i < COUNT; i++) {
+                assertEquals("value" + i, get(dao, i));
+            }
+        } finally {
+            dao.close();
+        }
+        // replayed entries are saved to sstables, the log is not needed anymore
+        assertTrue(files(image, SEGMENT_REGEX).isEmpty());
+        dao = open(image);
+        try {
+            assertEquals("value" + (COUNT - 1), get(dao, COUNT - 1));
+        } finally {
+            dao.close();
+        }
+    }
+
+    @Test
+    void tornTailIsSkipped() throws IOException {
+        Path image;
+        MemorySegmentDao dao = open(dir);
+        try {
+            upsertAll(dao);
+            image = crashImage(dir);
+        } finally {
+            dao.close();
+        }
+        List<Path> segments = files(image, SEGMENT_REGEX);
+        Path last = segments.get(segments.size() - 1);
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        dao = open(image);
+        try {
+            for (int i = 0; i < COUNT - 1; i++) {
+                assertEquals("value" + i, get(dao, i));
+            }
+            assertNull(get(dao, COUNT - 1));
+        } finally {
+            dao.close();
+        }
+    }
+
+    @Test
+    void garbageAfterTheLastRecordIsSkipped() throws IOException {
+        Path image;
+        MemorySegmentDao dao = open(dir);
+        try {
+            upsertAll(dao);
+            image = crashImage(dir);
+        } finally {
+            dao.close();
+        }
+        List<Path> segments = files(image, SEGMENT_REGEX);
+        Files.write(segments.get(segments.size() - 1), new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13},
+                StandardOpenOption.APPEND);
+
+        dao = open(image);
+        try {
+            for (int i = 0; i < COUNT; i++) {
+                assertEquals("value" + i, get(dao, i));
+            }
+        } finally {
+            dao.close();
+        }
+    }
+
+    @Test
+    void memtablesOfFailedFlushAreSavedOnClose() throws IOException {
+        MemorySegmentDao dao = open(dir);
+        try {
+            upsertAll(dao);
+            // sstables can't be created while directories take their names
+            List<Path> blockers = List.of(dir.resolve("data0.dat"), dir.resolve("data1.dat"), dir.resolve("data2.dat"));
+            for (Path blocker : blockers) {
+                Files.createDirectory(blocker);
+            }
+            assertThrows(IOException.class, dao::flush);
+            for (Path blocker : blockers) {
+                Files.delete(blocker);
+            }
+        } finally {
+            dao.close();
+        }
+
+        dao = open(dir);
+        try {
+            for (int i = 0; i < COUNT; i++) {
+                assertEquals("value" + i, get(dao, i));
+            }
+        } finally {
+            dao.close();
+        }
+    }
+
+    @Test
+    void concurrentAppendsAcrossRollsAreReplayed() throws Exception {
+        int threads = 8;
+        int perThread = 2_000;
+        WriteAheadLog wal = new WriteAheadLog(new Config(dir, 1024 * 1024).withWalSyncMode(WalSyncMode.BATCH, 0));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Path image;
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int first = t * perThread;
+                futures.add(executor.submit(() -> {
+                    for (int i = first; i < first + perThread; i++) {
+                        // every hundredth record does not fit a batch
+                        wal.append(i % 100 == 0 ? new Entry(key(i), bigValue(i)) : entry(i));
+                    }
+                    return null;
+                }));
+            }
+            for (int i = 0; i < 10; i++) {
+                wal.roll();
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            image = crashImage(dir);
+        } finally {
+            executor.shutdown();
+            wal.close();
+        }
+
+        List<Entry> replayed = new ArrayList<>(WriteAheadLog.replay(image).entries());
+        assertEquals(threads * perThread, replayed.size());
+        for (Entry entry : replayed) {
+            int i = Integer.parseInt(string(entry.key()).substring("key".length()));
+            String expected = i % 100 == 0 ? string(bigValue(i)) : "value" + i;
+            assertEquals(expected, string(entry.value()));
+        }
+    }
+
+    private static MemorySegment bigValue(int i) {
+        return segment(("value" + i).repeat(20_000));
+    }
+
+    private static void upsertAll(MemorySegmentDao dao) {
+        for (int i = 0; i < COUNT; i++) {
+            dao.upsert(entry(i));
+        }
+    }
+
+    private static MemorySegmentDao open(Path dir) throws IOException {
+        return new MemorySegmentDao(new Config(dir, 1024 * 1024).withWalSyncMode(WalSyncMode.BATCH, 0));
+    }
+}
@@ -0,0 +1,77 @@
+package ok.dht.test.pashchenko.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.entry;
+import static ok.dht.test.pashchenko.dao.DaoTestUtils.get;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(60)
+class WriteStallTest {
+
+    private static final long WRITE_STALL_TIMEOUT_MILLIS = 300;
+    private static final int MAX_ENTRIES = 100_000;
+
+    @TempDir
+    Path dir;
+
+    // a failed flush keeps its flushing slot until close, so the next full memtable can't be flushed
+    @Test
+    void upsertsAreDelayedAndThenRejected() throws IOException {
+        Config config = new Config(dir, 4096).withWriteStall(1, WRITE_STALL_TIMEOUT_MILLIS);
+        MemorySegmentDao dao = new MemorySegmentDao(config);
+        List<Path> blockers = new ArrayList<>();
+        int written = 0;
+        try {
+            // sstables of the flushes can't be created
+            for (int id = 0; id < 10; id++) {
+                blockers.add(Files.createDirectory(dir.resolve("data" + id + ".dat")));
+            }
+
+            long stalledNanos;
+            while (true) {
+                assertTrue(written < MAX_ENTRIES);
+                long start = System.nanoTime();
+                try {
+                    dao.upsert(entry(written));
+                } catch (TooManyFlushesInBgException e) {
+                    stalledNanos = System.nanoTime() - start;
+                    break;
+                }
+                written++;
+            }
+            assertTrue(written > 0);
+            assertTrue(stalledNanos >= TimeUnit.MILLISECONDS.toNanos(WRITE_STALL_TIMEOUT_MILLIS));
+
+            // nothing is flushed meanwhile, so the next upsert is rejected as well
+            Entry next = entry(written);
+            assertThrows(TooManyFlushesInBgException.class, () -> dao.upsert(next));
+        } finally {
+            for (Path blocker : blockers) {
+                Files.delete(blocker);
+            }
+            dao.close();
+        }
+
+        // memtables of the failed flush and of the stalled upserts are saved on close
+        MemorySegmentDao reopened = new MemorySegmentDao(config);
+        try {
+            for (int i = 0; i < written; i++) {
+                assertEquals("value" + i, get(reopened, i));
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package ok.dht.test.yasevich;
+
+import ok.dht.ServiceConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@Timeout(60)
+class ServiceImplTest {
+
+    private static final int COUNT = 1000;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void batchIsUpsertedAndSurvivesRestart() throws Exception {
+        ServiceConfig config = config();
+        ServiceImpl service = new ServiceImpl(config);
+        service.start().get();
+        try {
+            assertEquals(HttpURLConnection.HTTP_CREATED, put(config, "deleted", new byte[]{1}).statusCode());
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            for (int i = 0; i < COUNT; i++) {
+                writeRecord(out, "key" + i, value(i));
+            }
+            writeRecord(out, "deleted", null);
+            // later record wins
+            writeRecord(out, "key0", value(-1));
+            assertEquals(HttpURLConnection.HTTP_CREATED, post(config, body.toByteArray()).statusCode());
+
+            assertBatch(config);
+        } finally {
+            service.stop().get();
+        }
+
+        service = new ServiceImpl(config);
+        service.start().get();
+        try {
+            assertBatch(config);
+        } finally {
+            service.stop().get();
+        }
+    }
+
+    @Test
+    void malformedBatchIsRejected() throws Exception {
+        ServiceConfig config = config();
+        ServiceImpl service = new ServiceImpl(config);
+        service.start().get();
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            writeRecord(out, "key0", value(0));
+            // value is shorter than its length
+            out.writeInt(4);
+            out.write("key1".getBytes(StandardCharsets.UTF_8));
+            out.writeInt(100);
+            out.write(1);
+            assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, post(config, body.toByteArray()).statusCode());
+            assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, post(config, new byte[]{0, 0, 0, 0}).statusCode());
+            // the batch is applied as a whole or not at all
+            assertEquals(HttpURLConnection.HTTP_NOT_FOUND, get(config, "key0").statusCode());
+
+            HttpResponse<byte[]> response = client.send(
+                    HttpRequest.newBuilder(URI.create(config.selfUrl() + "/v0/entities"))
+                            .PUT(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+                            .build(),
+                    HttpResponse.BodyHandlers.ofByteArray()
+            );
+            assertEquals(HttpURLConnection.HTTP_BAD_METHOD, response.statusCode());
+        } finally {
+            service.stop().get();
+        }
+    }
+
+    private void assertBatch(ServiceConfig config) throws Exception {
+        assertArrayEquals(value(-1), get(config, "key0").body());
+        for (int i = 1; i < COUNT; i++) {
+            HttpResponse<byte[]> response = get(config, "key" + i);
+            assertEquals(HttpURLConnection.HTTP_OK, response.statusCode());
+            assertArrayEquals(value(i), response.body());
+        }
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, get(config, "deleted").statusCode());
+    }
+
+    // (keyLength int)(key UTF-8)(valueLength int)(value), -1 is a tombstone
+    private static void writeRecord(DataOutputStream out, String key, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] value(int i) {
+        return ("value" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private HttpResponse<byte[]> get(ServiceConfig config, String id) throws Exception {
+        return client.send(
+                HttpRequest.newBuilder(URI.create(config.selfUrl() + "/v0/entity?id=" + id)).GET().build(),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+    }
+
+    private HttpResponse<byte[]> put(ServiceConfig config, String id, byte[] data) throws Exception {
+        return client.send(
+                HttpRequest.newBuilder(URI.create(config.selfUrl() + "/v0/entity?id=" + id))
+                        .PUT(HttpRequest.BodyPublishers.ofByteArray(data))
+                        .build(),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+    }
+
+    private HttpResponse<byte[]> post(ServiceConfig config, byte[] batch) throws Exception {
+        return client.send(
+                HttpRequest.newBuilder(URI.create(config.selfUrl() + "/v0/entities"))
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(batch))
+                        .build(),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+    }
+
+    private ServiceConfig config() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        String url = "http://localhost:" + port;
+        return new ServiceConfig(port, url, List.of(url), dir);
+    }
+}